@@ -0,0 +1,119 @@
+// AdmissionController.java
+package org.example;
+
+import com.typesafe.config.Config;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decides whether the server accepts another chat message. Each user has a
+ * token bucket, and the server as a whole refuses chat traffic while its chat
+ * queue is too deep or the heap is nearly full. Rejections carry a backoff
+ * hint so well-behaved clients can slow down instead of retrying blindly.
+ *
+ * Batches draw from a second bucket per user, counted in messages, whose burst
+ * fits a whole batch. Bulk sends such as announcements neither eat into the
+ * interactive rate nor get cut down to its small burst.
+ */
+public class AdmissionController {
+    private final Map<String, TokenBucket> buckets = new HashMap<>();
+    private final Map<String, TokenBucket> batchBuckets = new HashMap<>();
+    private final double sendRate;
+    private final int sendBurst;
+    private final double batchRate;
+    private final int batchBurst;
+    private final int maxChatQueue;
+    private final double maxHeapRatio;
+    private final long overloadBackoffMillis;
+    private final long heapSampleMillis;
+    private long lastHeapSample = 0;
+    private double heapRatio = 0;
+    private long rejectedRate = 0;
+    private long rejectedOverload = 0;
+
+    public static final class Decision {
+        private static final Decision ACCEPT = new Decision(null, 0, 1);
+        private final String reason;
+        private final long retryAfterMillis;
+        private final int admitted;
+
+        private Decision(String reason, long retryAfterMillis, int admitted) {
+            this.reason = reason;
+            this.retryAfterMillis = retryAfterMillis;
+            this.admitted = admitted;
+        }
+
+        public boolean isAccepted() { return reason == null; }
+        public String getReason() { return reason; }
+        public long getRetryAfterMillis() { return retryAfterMillis; }
+        // Number of messages that may be sent, can be less than requested for batches
+        public int getAdmitted() { return admitted; }
+    }
+
+    public AdmissionController(Config config) {
+        this.sendRate = config.getDouble("send-rate");
+        this.sendBurst = config.getInt("send-burst");
+        this.batchRate = config.getDouble("batch-rate");
+        this.batchBurst = config.getInt("batch-burst");
+        this.maxChatQueue = config.getInt("max-chat-queue");
+        this.maxHeapRatio = config.getDouble("max-heap-ratio");
+        this.overloadBackoffMillis = config.getDuration("overload-backoff").toMillis();
+        this.heapSampleMillis = config.getDuration("heap-sample-interval").toMillis();
+    }
+
+    public Decision admitSend(String user, int chatQueueDepth, long now) {
+        if (chatQueueDepth > maxChatQueue || heapRatio(now) > maxHeapRatio) {
+            rejectedOverload++;
+            return new Decision("Server is overloaded, message not sent", overloadBackoffMillis, 0);
+        }
+
+        TokenBucket bucket = buckets.computeIfAbsent(user, k -> new TokenBucket(sendRate, sendBurst, now));
+        if (!bucket.tryAcquire(now)) {
+            rejectedRate++;
+            return new Decision("You are sending messages too fast, message not sent",
+                    bucket.millisUntilAvailable(now), 0);
+        }
+        return Decision.ACCEPT;
+    }
+
+    /**
+     * Admits the first messages of a batch, as many as the user's batch bucket allows.
+     * Every message costs a token, so batching has a rate of its own. The backoff
+     * hint is the time until the rest of the batch can be admitted.
+     */
+    public Decision admitBatch(String user, int size, int chatQueueDepth, long now) {
+        if (chatQueueDepth > maxChatQueue || heapRatio(now) > maxHeapRatio) {
+            rejectedOverload += size;
+            return new Decision("Server is overloaded, messages not sent", overloadBackoffMillis, 0);
+        }
+
+        TokenBucket bucket = batchBuckets.computeIfAbsent(user, k -> new TokenBucket(batchRate, batchBurst, now));
+        int taken = bucket.tryAcquire(now, size);
+        if (taken < size) {
+            rejectedRate += size - taken;
+            return new Decision(String.format("You are sending messages too fast, %d of %d messages not sent",
+                    size - taken, size), bucket.millisUntilAvailable(now, size - taken), taken);
+        }
+        return new Decision(null, 0, size);
+    }
+
+    public void forget(String user) {
+        buckets.remove(user);
+        batchBuckets.remove(user);
+    }
+
+    public int trackedUsers() { return buckets.size(); }
+    public long getRejectedRate() { return rejectedRate; }
+    public long getRejectedOverload() { return rejectedOverload; }
+
+    private double heapRatio(long now) {
+        // Sampling keeps the per-message cost to a timestamp comparison
+        if (now - lastHeapSample >= heapSampleMillis) {
+            Runtime runtime = Runtime.getRuntime();
+            heapRatio = (double) (runtime.totalMemory() - runtime.freeMemory()) / runtime.maxMemory();
+            lastHeapSample = now;
+        }
+        return heapRatio;
+    }
+}
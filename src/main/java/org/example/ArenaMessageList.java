@@ -0,0 +1,97 @@
+// ArenaMessageList.java
+package org.example;
+
+import java.time.LocalDateTime;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * List view over messages stored in a MessageArena. Only the handles live on
+ * the heap; every get decodes a fresh Message, and removing an element releases
+ * its record in the arena.
+ */
+public class ArenaMessageList extends AbstractList<Message> {
+    private final MessageArena arena;
+    private long[] handles = new long[8];
+    private int size = 0;
+
+    public ArenaMessageList(MessageArena arena) {
+        this.arena = arena;
+    }
+
+    @Override
+    public Message get(int index) {
+        return arena.get(handles[checkIndex(index)]);
+    }
+
+    public LocalDateTime timestampAt(int index) {
+        return arena.timestamp(handles[checkIndex(index)]);
+    }
+
+    public long idAt(int index) {
+        return arena.id(handles[checkIndex(index)]);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean add(Message message) {
+        if (size == handles.length) {
+            handles = Arrays.copyOf(handles, size * 2);
+        }
+        handles[size++] = arena.put(message);
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public Message remove(int index) {
+        Message removed = get(index);
+        removeRange(index, index + 1);
+        return removed;
+    }
+
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        for (int i = fromIndex; i < toIndex; i++) {
+            arena.release(handles[i]);
+        }
+        System.arraycopy(handles, toIndex, handles, fromIndex, size - toIndex);
+        size -= toIndex - fromIndex;
+        modCount++;
+    }
+
+    @Override
+    public boolean removeIf(Predicate<? super Message> filter) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (filter.test(arena.get(handles[i]))) {
+                arena.release(handles[i]);
+            } else {
+                handles[kept++] = handles[i];
+            }
+        }
+        boolean changed = kept < size;
+        size = kept;
+        if (changed) {
+            modCount++;
+        }
+        return changed;
+    }
+
+    @Override
+    public void clear() {
+        removeRange(0, size);
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return index;
+    }
+}
@@ -14,6 +14,24 @@ public class ChatUI {
     private final Set<String> chatPartners = new HashSet<>();
     private boolean isInGroupChat = false;
     private String currentGroup = null;
+    // Member list pages per group, valid for the membership version they were fetched at
+    private final Map<String, Map<Integer, ServerActor.GroupMembers>> memberCache = new HashMap<>();
+    // Only a window of the open chat's history is shown; /more pages back from its oldest message
+    private volatile long oldestShownId = 0;
+    private volatile boolean hasOlderMessages = false;
+    private int rangeShown = 0;  // messages of the /history listing shown so far
+    // Messages shown lately, patched when an edit, deletion or reaction for them arrives
+    private final Map<Long, Message> recentMessages = new LinkedHashMap<Long, Message>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Message> eldest) {
+            return size() > RECENT_MESSAGES;
+        }
+    };
+    private static final int RECENT_MESSAGES = 500;
+    // Users typing in the open chat -> when that was last reported
+    private final Map<String, Long> typingSince = new HashMap<>();
+    // A typing state not repeated within this long counts as stopped
+    private static final long TYPING_TIMEOUT_MILLIS = 6000;
 
     private static final String CLEAR_CONSOLE = "\033[H\033[2J";
     private static final String SYSTEM_COLOR = "\u001B[33m";  // Yellow
@@ -126,54 +144,231 @@ public class ChatUI {
     }
 
     // Tweaked method to remove new message bubble for group messages
-    public void displayGroupChatHistory(Group group, List<Message> messages) {
-        clearScreen();
-        System.out.println(HEADER_COLOR + "┌" + DOUBLE_DIVIDER + "┐" + RESET_COLOR);
-        System.out.println(HEADER_COLOR + "│" + GROUP_COLOR + " Group Chat: " + group.getName() +
-                createPadding(Math.max(0, 38 - group.getName().length())) + HEADER_COLOR + "│" + RESET_COLOR);
-        System.out.println(HEADER_COLOR + "└" + DOUBLE_DIVIDER + "┘" + RESET_COLOR + "\n");
-
-        // Display members
-        System.out.println(GROUP_COLOR + "Members: " + String.join(", ", group.getMembers()) + RESET_COLOR);
-        System.out.println(DIVIDER);
+    public void displayGroupChatHistory(GroupView group, List<Message> messages, boolean hasMore) {
+        // Built up front and printed at once, the window is at most one page of messages
+        StringBuilder sb = new StringBuilder(CLEAR_CONSOLE);
+        sb.append(HEADER_COLOR + "┌" + DOUBLE_DIVIDER + "┐" + RESET_COLOR + "\n");
+        sb.append(HEADER_COLOR + "│" + GROUP_COLOR + " Group Chat: " + group.getName() +
+                createPadding(Math.max(0, 38 - group.getName().length())) + HEADER_COLOR + "│" + RESET_COLOR + "\n");
+        sb.append(HEADER_COLOR + "└" + DOUBLE_DIVIDER + "┘" + RESET_COLOR + "\n\n");
+
+        // Display member count, the list itself is fetched with /members
+        sb.append(GROUP_COLOR + "Members: " + group.getMemberCount() + " (type /members to list them)" + RESET_COLOR + "\n");
+        sb.append(DIVIDER + "\n");
 
         // Display messages or no-messages prompt
         if (messages.isEmpty()) {
-            System.out.println(SYSTEM_COLOR + "No messages in this group yet. Start the conversation!" + RESET_COLOR);
+            sb.append(SYSTEM_COLOR + "No messages in this group yet. Start the conversation!" + RESET_COLOR + "\n");
         } else {
-            messages.forEach(message -> {
-                String timestamp = TIMESTAMP_COLOR + "[" +
-                        message.getTimestamp().format(DateTimeFormatter.ofPattern("HH:mm:ss")) + "]" + RESET_COLOR;
-
-                // Formatting the group messages like system messages, showing sender and group name
-                if (message.getType() == Message.MessageType.SYSTEM) {
-                    System.out.printf("%s %s%s%s\n",
-                            timestamp,
-                            SYSTEM_COLOR,
-                            message.getContent(),
-                            RESET_COLOR);
-                } else {
-                    String sender = message.getSender().equals(username) ?
-                            "You" :
-                            SENDER_COLOR + message.getSender() + RESET_COLOR;
-
-                    String groupInfo = GROUP_COLOR + group.getName() + RESET_COLOR;
-                    System.out.printf("%s %s (%s): %s\n", timestamp, sender, groupInfo, message.getContent());
-                }
-            });
+            if (hasMore) {
+                sb.append(SYSTEM_COLOR + "Earlier messages: /more" + RESET_COLOR + "\n");
+            }
+            messages.forEach(message -> appendHistoryLine(sb, message, group.getName()));
         }
+        showingWindow(messages, hasMore);
 
         // Display help information prominently
-        System.out.println("\n" + HEADER_COLOR + "AVAILABLE COMMANDS" + RESET_COLOR);
-        System.out.println(DIVIDER);
-        System.out.println("• Type your message and press Enter to send");
-        System.out.println("• /invite <username> - Invite someone to the group");
-        System.out.println("• /members - View current group members");
-        System.out.println("• /leave - Leave the group");
-        System.out.println("• /exit - Return to main menu");
-        System.out.println("• /help - Show these commands again");
-        System.out.println(DIVIDER);
-        System.out.print("\nYou: ");
+        sb.append("\n" + HEADER_COLOR + "AVAILABLE COMMANDS" + RESET_COLOR + "\n");
+        sb.append(DIVIDER + "\n");
+        sb.append("• Type your message and press Enter to send\n");
+        sb.append("• /more - Show earlier messages\n");
+        sb.append("• /invite <username> - Invite someone to the group\n");
+        sb.append("• /members - View current group members\n");
+        sb.append("• /leave - Leave the group\n");
+        sb.append("• /exit - Return to main menu\n");
+        sb.append("• /help - Show these commands again\n");
+        sb.append(DIVIDER + "\n");
+        sb.append("\nYou: ");
+        System.out.print(sb);
+        System.out.flush();
+    }
+
+    /**
+     * Prints a page fetched with /more below what is on screen, oldest message first.
+     */
+    public void displayOlderMessages(ServerActor.OlderMessages page) {
+        // The user may have left the chat while the page was on its way
+        if (!page.getConversation().equals(currentChatPartner) && !page.getConversation().equals("#" + currentGroup)) {
+            return;
+        }
+        String group = page.getConversation().startsWith("#") ? currentGroup : null;
+        StringBuilder sb = new StringBuilder();
+        sb.append(HEADER_COLOR + "\nEARLIER MESSAGES " + (group != null ? "IN " : "WITH ") + page.getConversation()
+                + RESET_COLOR + "\n");
+        sb.append(DIVIDER + "\n");
+        page.getMessages().forEach(message -> appendHistoryLine(sb, message, group));
+        sb.append(DIVIDER + "\n");
+        sb.append(page.hasMore() ? "Type /more for earlier messages" : "Start of the conversation");
+        showingWindow(page.getMessages(), page.hasMore());
+        messageQueue.offer(sb.toString());
+    }
+
+    private void appendHistoryLine(StringBuilder sb, Message message, String groupName) {
+        remember(message);
+        String timestamp = stamp(message, "HH:mm:ss");
+        // Formatting the group messages like system messages, showing sender and group name
+        if (message.getType() == Message.MessageType.SYSTEM) {
+            sb.append(String.format("%s %s%s%s\n", timestamp, SYSTEM_COLOR, message.getContent(), RESET_COLOR));
+            return;
+        }
+        String sender = message.getSender().equals(username) ?
+                "You" :
+                SENDER_COLOR + message.getSender() + RESET_COLOR;
+        if (groupName != null) {
+            sb.append(String.format("%s %s (%s): %s\n", timestamp, sender, GROUP_COLOR + groupName + RESET_COLOR,
+                    body(message)));
+        } else {
+            sb.append(String.format("%s %s: %s\n", timestamp, sender, body(message)));
+        }
+    }
+
+    /**
+     * Time of a message followed by its id, which /edit, /delete and /react refer to.
+     */
+    private static String stamp(Message message, String pattern) {
+        String time = message.getTimestamp().format(DateTimeFormatter.ofPattern(pattern));
+        return TIMESTAMP_COLOR + "[" + time + (message.getId() > 0 ? " #" + message.getId() : "") + "]" + RESET_COLOR;
+    }
+
+    private static String body(Message message) {
+        if (message.isDeleted()) {
+            return SYSTEM_COLOR + "message deleted" + RESET_COLOR;
+        }
+        StringBuilder sb = new StringBuilder(message.getContent());
+        if (message.isEdited()) {
+            sb.append(TIMESTAMP_COLOR + " (edited)" + RESET_COLOR);
+        }
+        if (!message.getReactions().isEmpty()) {
+            // One count per distinct reaction
+            Map<String, Integer> counts = new LinkedHashMap<>();
+            for (String reaction : message.getReactions().values()) {
+                counts.merge(reaction, 1, Integer::sum);
+            }
+            List<String> parts = new ArrayList<>();
+            counts.forEach((reaction, count) -> parts.add(reaction + " " + count));
+            sb.append("  ").append(NEW_MSG_COLOR).append(String.join("  ", parts)).append(RESET_COLOR);
+        }
+        return sb.toString();
+    }
+
+    private synchronized void remember(Message message) {
+        if (message.getId() > 0) {
+            recentMessages.put(message.getId(), message);
+        }
+    }
+
+    /**
+     * Shows an edit, deletion or reaction made in the open conversation. The message
+     * is patched in the local copy, so it is shown as it is now without fetching it.
+     */
+    public void displayMessageDelta(MessageDelta delta) {
+        String conversation = delta.conversationFor(username);
+        if (!conversation.equals(currentChatPartner) && !conversation.equals("#" + currentGroup)) {
+            return;
+        }
+
+        Message patched;
+        synchronized (this) {
+            Message shown = recentMessages.get(delta.getMessageId());
+            patched = shown == null ? null : delta.applyTo(shown);
+            if (patched != null) {
+                recentMessages.put(patched.getId(), patched);
+            }
+        }
+
+        String who = delta.getUser().equals(username) ? "You" : SENDER_COLOR + delta.getUser() + RESET_COLOR;
+        String action;
+        switch (delta.getKind()) {
+            case EDIT:
+                action = "edited";
+                break;
+            case DELETE:
+                action = "deleted";
+                break;
+            default:
+                action = delta.getValue() == null ? "took back a reaction to" : "reacted " + delta.getValue() + " to";
+        }
+        String line = String.format("%s✎%s %s %s message #%d", SYSTEM_COLOR, RESET_COLOR, who, action, delta.getMessageId());
+        if (patched != null && !patched.isDeleted()) {
+            line += ": " + body(patched);
+        }
+        messageQueue.offer(line);
+    }
+
+    private void showingWindow(List<Message> messages, boolean hasMore) {
+        synchronized (this) {
+            typingSince.clear();
+        }
+        if (!messages.isEmpty()) {
+            oldestShownId = messages.get(0).getId();
+        }
+        hasOlderMessages = hasMore;
+    }
+
+    public long getOldestShownId() { return oldestShownId; }
+    public boolean hasOlderMessages() { return hasOlderMessages; }
+
+    public void displayGroupMembers(ServerActor.GroupMembers page) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(HEADER_COLOR + "\nMEMBERS OF " + page.getGroupName() + RESET_COLOR + "\n");
+        sb.append(DIVIDER + "\n");
+        List<String> members = page.getMembers();
+        for (int i = 0; i < members.size(); i++) {
+            sb.append(String.format("%d. 👤 %s\n", page.getOffset() + i + 1, members.get(i)));
+        }
+        sb.append(DIVIDER + "\n");
+        sb.append(String.format("Showing %d-%d of %d",
+                Math.min(page.getTotal(), page.getOffset() + 1),
+                page.getOffset() + members.size(),
+                page.getTotal()));
+        if (page.getOffset() + members.size() < page.getTotal()) {
+            sb.append(" (type /members <page> for more)");
+        }
+        messageQueue.offer(sb.toString());
+    }
+
+    public void displayHistoryRange(ServerActor.HistoryRange range) {
+        DateTimeFormatter bound = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+        StringBuilder sb = new StringBuilder();
+        // A long range arrives page by page, shown as one listing
+        if (range.isFirstPage()) {
+            rangeShown = 0;
+            sb.append(HEADER_COLOR + "\nHISTORY OF " + range.getConversation() + RESET_COLOR + "\n");
+            sb.append(String.format("%s to %s\n", range.getFrom().format(bound), range.getTo().format(bound)));
+            sb.append(DIVIDER + "\n");
+        }
+        for (Message message : range.getMessages()) {
+            remember(message);
+            String sender = message.getSender().equals(username) ? "You" : SENDER_COLOR + message.getSender() + RESET_COLOR;
+            sb.append(String.format("%s %s: %s\n", stamp(message, "MM-dd HH:mm:ss"), sender, body(message)));
+        }
+        rangeShown += range.getMessages().size();
+        if (!range.hasMore()) {
+            sb.append(DIVIDER + "\n");
+            sb.append(String.format("%d message(s)", rangeShown));
+        } else if (sb.length() > 0) {
+            sb.setLength(sb.length() - 1);
+        }
+        if (sb.length() > 0) {
+            messageQueue.offer(sb.toString());
+        }
+    }
+
+    public synchronized void cacheGroupMembers(ServerActor.GroupMembers page) {
+        Map<Integer, ServerActor.GroupMembers> pages = memberCache.computeIfAbsent(page.getGroupName(), k -> new HashMap<>());
+        // Pages fetched at an older version are stale once membership changed
+        pages.values().removeIf(cached -> cached.getVersion() != page.getVersion());
+        pages.put(page.getOffset(), page);
+    }
+
+    public synchronized ServerActor.GroupMembers getCachedGroupMembers(String groupName, int offset) {
+        Map<Integer, ServerActor.GroupMembers> pages = memberCache.get(groupName);
+        return pages == null ? null : pages.get(offset);
+    }
+
+    public long getCachedMembersVersion(String groupName, int offset) {
+        ServerActor.GroupMembers cached = getCachedGroupMembers(groupName, offset);
+        return cached == null ? -1 : cached.getVersion();
     }
 
     public void displayGroupInvitation(String groupName, String inviter) {
@@ -212,6 +407,7 @@ public class ChatUI {
         currentGroup = groupName;
         isInChatMode = false;
         currentChatPartner = null;
+        showingWindow(Collections.<Message>emptyList(), false);
         clearScreen();
         displaySystemMessage("📱 Entering group chat: " + groupName);
     }
@@ -219,6 +415,7 @@ public class ChatUI {
     public void exitGroupChatMode() {
         isInGroupChat = false;
         currentGroup = null;
+        showingWindow(Collections.<Message>emptyList(), false);
         clearScreen();
         displayMainMenu();
     }
@@ -233,8 +430,11 @@ public class ChatUI {
             return;
         }
 
-        String timestamp = TIMESTAMP_COLOR + "[" +
-                message.getTimestamp().format(DateTimeFormatter.ofPattern("HH:mm:ss")) + "]" + RESET_COLOR;
+        String timestamp = stamp(message, "HH:mm:ss");
+        remember(message);
+        synchronized (this) {
+            typingSince.remove(message.getSender());
+        }
 
         if (message.getType() == Message.MessageType.GROUP) {
             // Handle group messages
@@ -246,7 +446,7 @@ public class ChatUI {
                     timestamp,
                     sender,
                     GROUP_COLOR + message.getTargetGroup() + RESET_COLOR,
-                    message.getContent()
+                    body(message)
             );
 
             // Queue the group message
@@ -257,9 +457,8 @@ public class ChatUI {
                 (!isInChatMode || !message.getSender().equals(currentChatPartner)) &&
                 !chatPartners.contains(message.getSender())) {
 
-            // Show new message notification only for direct messages
-            displayNewMessageNotification(message, timestamp);
-
+            // Direct messages outside the open chat are announced by the server's unread updates
+            return;
         } else {
             // Regular message display for direct messages
             String sender = message.getSender().equals(username) ?
@@ -269,7 +468,7 @@ public class ChatUI {
             String formattedMessage = String.format("%s %s: %s",
                     timestamp,
                     sender,
-                    message.getContent()
+                    body(message)
             );
 
             // Queue the direct message
@@ -277,33 +476,55 @@ public class ChatUI {
         }
     }
 
-    private void displayNewMessageNotification(Message message, String timestamp) {
-        String notification = String.format("\n%s %s ┌─────────────────────────────────┐%s",
-                timestamp,
-                NEW_MSG_COLOR,
-                RESET_COLOR);
-
-        String messageLine = String.format("%s %s │ New message from %s%s",
-                createPadding(11),
-                NEW_MSG_COLOR,
-                message.getSender(),
-                RESET_COLOR);
+    /**
+     * Announces that someone started typing in the open chat. Repeats of the same
+     * state are not shown again until it timed out or the user sent their message.
+     */
+    public void displayTyping(TypingEvent event) {
+        String conversation = event.conversationFor(username);
+        if (event.getUser().equals(username)
+                || (!conversation.equals(currentChatPartner) && !conversation.equals("#" + currentGroup))) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (!event.isTyping()) {
+                typingSince.remove(event.getUser());
+                return;
+            }
+            Long last = typingSince.put(event.getUser(), now);
+            if (last != null && now - last < TYPING_TIMEOUT_MILLIS) {
+                return;
+            }
+        }
+        messageQueue.offer(String.format("%s✎ %s is typing...%s", TIMESTAMP_COLOR, event.getUser(), RESET_COLOR));
+    }
 
-        String contentLine = String.format("%s %s │ %s%s",
-                createPadding(11),
-                NEW_MSG_COLOR,
-                message.getContent(),
-                RESET_COLOR);
+    public void displaySeenBy(ServerActor.SeenBy receipt) {
+        if (!receipt.getGroupName().equals(currentGroup)) {
+            return;
+        }
+        messageQueue.offer(String.format("%s✓ #%d seen by %d of %d%s", TIMESTAMP_COLOR, receipt.getMessageId(),
+                receipt.getSeenBy(), receipt.getMembers(), RESET_COLOR));
+    }
 
-        String bottomBorder = String.format("%s %s └─────────────────────────────────┘%s",
-                createPadding(11),
-                NEW_MSG_COLOR,
-                RESET_COLOR);
+    public void displayUnreadSummary(Map<String, Long> counts, boolean initial) {
+        List<String> parts = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            String conversation = entry.getKey();
+            // The conversation on screen is already being read
+            if (conversation.equals(currentChatPartner) || conversation.equals("#" + currentGroup)) {
+                continue;
+            }
+            String where = conversation.startsWith("#") ? "in " + conversation : "from " + conversation;
+            parts.add(String.format("%d new %s", entry.getValue(), where));
+        }
+        if (parts.isEmpty()) {
+            return;
+        }
 
-        messageQueue.offer(notification);
-        messageQueue.offer(messageLine);
-        messageQueue.offer(contentLine);
-        messageQueue.offer(bottomBorder);
+        String prefix = initial ? "While you were away: " : "";
+        messageQueue.offer("\n" + NEW_MSG_COLOR + "📬 " + prefix + String.join(", ", parts) + RESET_COLOR);
     }
 
     public void displaySystemMessage(String message) {
@@ -329,44 +550,46 @@ public class ChatUI {
         }
     }
 
-    public void displayChatHistory(List<Message> messages) {
+    public void displayChatHistory(List<Message> messages, boolean hasMore) {
         if (currentChatPartner != null) {
             chatPartners.add(currentChatPartner);
         }
 
-        clearScreen();
-        System.out.println(HEADER_COLOR + "┌" + DOUBLE_DIVIDER + "┐" + RESET_COLOR);
-        System.out.println(HEADER_COLOR + "│" + SYSTEM_COLOR + " Chat with " + currentChatPartner +
-                createPadding(Math.max(0, 40 - currentChatPartner.length())) + HEADER_COLOR + "│" + RESET_COLOR);
-        System.out.println(HEADER_COLOR + "└" + DOUBLE_DIVIDER + "┘" + RESET_COLOR + "\n");
+        StringBuilder sb = new StringBuilder(CLEAR_CONSOLE);
+        sb.append(HEADER_COLOR + "┌" + DOUBLE_DIVIDER + "┐" + RESET_COLOR + "\n");
+        sb.append(HEADER_COLOR + "│" + SYSTEM_COLOR + " Chat with " + currentChatPartner +
+                createPadding(Math.max(0, 40 - currentChatPartner.length())) + HEADER_COLOR + "│" + RESET_COLOR + "\n");
+        sb.append(HEADER_COLOR + "└" + DOUBLE_DIVIDER + "┘" + RESET_COLOR + "\n\n");
 
         if (messages.isEmpty()) {
-            System.out.println(SYSTEM_COLOR + "No previous messages. Start your conversation!" + RESET_COLOR);
+            sb.append(SYSTEM_COLOR + "No previous messages. Start your conversation!" + RESET_COLOR + "\n");
         } else {
-            System.out.println(HEADER_COLOR + "CHAT HISTORY" + RESET_COLOR);
-            System.out.println(DIVIDER);
-            messages.forEach(message -> {
-                String timestamp = TIMESTAMP_COLOR + "[" + message.getTimestamp().format(DateTimeFormatter.ofPattern("HH:mm:ss")) + "]" + RESET_COLOR;
-                String sender = message.getSender().equals(username) ?
-                        "You" :
-                        SENDER_COLOR + message.getSender() + RESET_COLOR;
-                System.out.printf("%s %s: %s\n", timestamp, sender, message.getContent());
-            });
-            System.out.println(DIVIDER);
-        }
-
-        System.out.println("\n" + SYSTEM_COLOR + "Commands:" + RESET_COLOR);
-        System.out.println("• Type your message and press Enter to send");
-        System.out.println("• Type '/exit' to return to main menu");
-        System.out.println("• Type '/clear' to clear chat history");
-        System.out.println(DIVIDER);
-        System.out.print("\nYou: ");
+            sb.append(HEADER_COLOR + "CHAT HISTORY" + RESET_COLOR + "\n");
+            sb.append(DIVIDER + "\n");
+            if (hasMore) {
+                sb.append(SYSTEM_COLOR + "Earlier messages: /more" + RESET_COLOR + "\n");
+            }
+            messages.forEach(message -> appendHistoryLine(sb, message, null));
+            sb.append(DIVIDER + "\n");
+        }
+        showingWindow(messages, hasMore);
+
+        sb.append("\n" + SYSTEM_COLOR + "Commands:" + RESET_COLOR + "\n");
+        sb.append("• Type your message and press Enter to send\n");
+        sb.append("• Type '/more' to show earlier messages\n");
+        sb.append("• Type '/exit' to return to main menu\n");
+        sb.append("• Type '/clear' to clear chat history\n");
+        sb.append(DIVIDER + "\n");
+        sb.append("\nYou: ");
+        System.out.print(sb);
+        System.out.flush();
     }
 
     public void enterChatMode(String partner) {
         isInChatMode = true;
         currentChatPartner = partner;
         chatPartners.add(partner);
+        showingWindow(Collections.<Message>emptyList(), false);
         clearScreen();
         displaySystemMessage("📱 Starting chat with " + partner);
     }
@@ -374,6 +597,7 @@ public class ChatUI {
     public void exitChatMode() {
         isInChatMode = false;
         currentChatPartner = null;
+        showingWindow(Collections.<Message>emptyList(), false);
         clearScreen();
         displayMainMenu();
     }
@@ -1,47 +1,158 @@
 package org.example;
 
-import akka.actor.AbstractActor;
+import akka.actor.AbstractActorWithTimers;
 import akka.actor.ActorRef;
 import akka.actor.Props;
+import akka.actor.Status;
+import akka.actor.Terminated;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
+import akka.pattern.Patterns;
+import com.typesafe.config.Config;
 
-public class ClientActor extends AbstractActor {
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class ClientActor extends AbstractActorWithTimers {
     private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
-    private final ActorRef serverActor;
+    private ActorRef serverActor;
+    // Paths of all servers, tried in turn after losing the current one
+    private final List<String> servers;
+    private final Duration reconnectInterval;
+    private int serverIndex = -1;
+    private boolean reconnecting = false;
+    // Presented when registering again so the server resumes the session and replays what was missed
+    private String resumeToken;
+    private long lastSeenMessageId = 0;
+    private LocalDateTime lastSeenAt;
+    private static final Object RECONNECT = "reconnect";
+    // Reading the open group is reported once per interval, not per message
+    private static final Object MARK_READ = "mark-read";
+    private final Duration readMarkInterval;
+    private final ActorRef relay;
     private final String name;
     private final ChatUI chatUI;
+    // Sends not yet confirmed by the server, by client message id
+    private final Map<Long, PendingSend> pendingSends = new HashMap<>();
+    private final Duration sendTimeout;
+    private final int sendRetries;
+    // Random start so ids of a restarted client do not collide with the ones the server still remembers
+    private long nextClientMessageId = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE / 2);
+    // Batch entries not yet admitted by the server, sent BATCH_SIZE at a time with one envelope in flight
+    private final Deque<ServerActor.SendMessage> batchQueue = new ArrayDeque<>();
+    private List<ServerActor.SendMessage> batchInFlight;
+    private int batchAttempts = 0;
+    // Rounds in a row in which the server admitted nothing
+    private int batchStalls = 0;
+    private static final Object SEND_BATCH = "send-batch";
+    private static final Object BATCH_TIMEOUT = "batch-timeout";
+    private static final int BATCH_SIZE = 500;
+    private static final long MIN_BATCH_BACKOFF_MILLIS = 100;
 
-    public ClientActor(ActorRef serverActor, String name, ChatUI chatUI) {
+    public ClientActor(ActorRef serverActor, ActorRef relay, String name, ChatUI chatUI) {
         this.serverActor = serverActor;
+        this.relay = relay;
         this.name = name;
         this.chatUI = chatUI;
+        Config config = getContext().getSystem().settings().config().getConfig("chat.client");
+        this.sendTimeout = config.getDuration("send-timeout");
+        this.sendRetries = config.getInt("send-retries");
+        this.servers = config.getStringList("servers");
+        this.reconnectInterval = config.getDuration("reconnect-interval");
+        this.readMarkInterval = config.getDuration("read-mark-interval");
     }
 
-    public static Props props(ActorRef serverActor, String name, ChatUI chatUI) {
-        return Props.create(ClientActor.class, () -> new ClientActor(serverActor, name, chatUI));
+    public static Props props(ActorRef serverActor, ActorRef relay, String name, ChatUI chatUI) {
+        return Props.create(ClientActor.class, () -> new ClientActor(serverActor, relay, name, chatUI));
     }
 
     @Override
     public void preStart() {
-        serverActor.tell(new ServerActor.RegisterClient(name), getSelf());
+        connect(serverActor);
     }
 
     @Override
     public Receive createReceive() {
         return receiveBuilder()
                 .match(ServerActor.RegistrationSuccess.class, msg -> {
-                    log.info("Registered with server as {}", msg.getName());
-                    chatUI.displaySystemMessage("Successfully connected to chat server");
+                    log.info("Registered with server {} as {}", serverActor.path(), msg.getName());
+                    resumeToken = msg.getResumeToken();
+                    chatUI.displaySystemMessage(msg.isResumed() ? "Reconnected, session resumed"
+                            : "Successfully connected to chat server");
+                    if (reconnecting) {
+                        reconnecting = false;
+                        // Same ids as before, the new server drops the ones that already went out
+                        pendingSends.values().forEach(pending -> serverActor.tell(pending.message, getSelf()));
+                        if (batchInFlight != null) {
+                            serverActor.tell(new ServerActor.SendMessageBatch(name, batchInFlight), getSelf());
+                        }
+                    }
+                })
+                .match(ToServer.class, msg -> serverActor.tell(msg.request, getSelf()))
+                .match(Terminated.class, msg -> {
+                    if (msg.getActor().equals(serverActor)) {
+                        chatUI.displayError("Lost connection to the server, reconnecting...");
+                        reconnect();
+                    }
                 })
+                .match(Replication.NotActive.class, msg -> {
+                    // A standby that has not taken over yet
+                    getContext().unwatch(serverActor);
+                    getTimers().startSingleTimer(RECONNECT, RECONNECT, reconnectInterval);
+                })
+                .matchEquals(RECONNECT, msg -> reconnect())
+                .match(Connected.class, msg -> connect(msg.server))
+                .match(Status.Failure.class, msg -> getTimers().startSingleTimer(RECONNECT, RECONNECT, reconnectInterval))
                 .match(ServerActor.ClientList.class, msg -> {
                     chatUI.displayAvailableClients(msg.getClients());
                 })
+                .match(ServerActor.SendMessage.class, this::send)
+                .match(RetrySend.class, this::retry)
+                .match(ServerActor.DuplicateMessage.class, msg -> confirmed(msg.getClientMessageId()))
                 .match(Message.class, msg -> {
+                    seen(msg);
+                    confirmed(msg.getClientMessageId());
                     chatUI.displayMessage(msg);
+                    readInOpenGroup(msg);
+                })
+                .match(MessageBundle.class, bundle -> {
+                    for (Message msg : bundle.getMessages()) {
+                        seen(msg);
+                        confirmed(msg.getClientMessageId());
+                        chatUI.displayMessage(msg);
+                        readInOpenGroup(msg);
+                    }
                 })
+                .matchEquals(MARK_READ, msg -> {
+                    if (chatUI.isInGroupChat()) {
+                        serverActor.tell(new ServerActor.MarkRead(name, null, chatUI.getCurrentGroup()), getSelf());
+                    }
+                })
+                .match(ServerActor.SeenBy.class, chatUI::displaySeenBy)
+                .match(MessageDelta.class, chatUI::displayMessageDelta)
+                .match(TypingEvent.class, chatUI::displayTyping)
+                .match(SendBatch.class, this::sendBatch)
+                .matchEquals(SEND_BATCH, msg -> sendNextBatch())
+                .matchEquals(BATCH_TIMEOUT, msg -> retryBatch())
+                .match(ServerActor.BatchResult.class, this::batchDone)
                 .match(ServerActor.ChatHistory.class, msg -> {
-                    chatUI.displayChatHistory(msg.getMessages());
+                    chatUI.displayChatHistory(msg.getMessages(), msg.hasMore());
+                })
+                .match(ServerActor.OlderMessages.class, msg -> {
+                    chatUI.displayOlderMessages(msg);
+                })
+                .match(ServerActor.HistoryRange.class, msg -> {
+                    chatUI.displayHistoryRange(msg);
+                    if (msg.hasMore()) {
+                        getSender().tell(msg.getNext(), getSelf());
+                    }
                 })
                 .match(ServerActor.GroupCreated.class, msg -> {
                     chatUI.displaySystemMessage("Group created: " + msg.getGroup().getName());
@@ -58,7 +169,17 @@ public class ClientActor extends AbstractActor {
                     chatUI.displayGroupList(msg.getGroups());
                 })
                 .match(ServerActor.GroupChatHistory.class, msg -> {
-                    chatUI.displayGroupChatHistory(msg.getGroup(), msg.getMessages());
+                    chatUI.displayGroupChatHistory(msg.getGroup(), msg.getMessages(), msg.hasMore());
+                })
+                .match(ServerActor.GroupMembers.class, msg -> {
+                    chatUI.cacheGroupMembers(msg);
+                    chatUI.displayGroupMembers(msg);
+                })
+                .match(ServerActor.GroupMembersNotModified.class, msg -> {
+                    ServerActor.GroupMembers cached = chatUI.getCachedGroupMembers(msg.getGroupName(), msg.getOffset());
+                    if (cached != null) {
+                        chatUI.displayGroupMembers(cached);
+                    }
                 })
                 .match(ServerActor.LeftGroup.class, msg -> {
                     chatUI.displaySystemMessage("Left group: " + msg.getGroupName());
@@ -68,12 +189,236 @@ public class ClientActor extends AbstractActor {
                     chatUI.displaySystemMessage("Group disbanded: " + msg.getGroupName());
                     chatUI.exitGroupChatMode();
                 })
+                .match(ServerActor.UnreadSummary.class, msg -> {
+                    chatUI.displayUnreadSummary(msg.getCounts(), msg.isInitial());
+                })
                 .match(ServerActor.SystemMessage.class, msg -> {
                     chatUI.displaySystemMessage(msg.getMessage());
                 })
                 .match(ServerActor.ErrorMessage.class, msg -> {
-                    chatUI.displayError(msg.getError());
+                    confirmed(msg.getClientMessageId());
+                    if (msg.getRetryAfterMillis() > 0) {
+                        chatUI.displayError(String.format("%s (try again in %.1fs)",
+                                msg.getError(), msg.getRetryAfterMillis() / 1000.0));
+                    } else {
+                        chatUI.displayError(msg.getError());
+                    }
                 })
                 .build();
     }
+
+    private void connect(ActorRef server) {
+        serverActor = server;
+        int index = servers.indexOf(server.path().toString());
+        if (index >= 0) {
+            serverIndex = index;
+        }
+        getContext().watch(serverActor);
+        serverActor.tell(new ServerActor.RegisterClient(name, relay, resumeToken, lastSeenMessageId, lastSeenAt),
+                getSelf());
+    }
+
+    private void readInOpenGroup(Message message) {
+        if (message.getType() == Message.MessageType.GROUP && !message.getSender().equals(name)
+                && message.getTargetGroup().equals(chatUI.getCurrentGroup())
+                && !getTimers().isTimerActive(MARK_READ)) {
+            getTimers().startSingleTimer(MARK_READ, MARK_READ, readMarkInterval);
+        }
+    }
+
+    private void seen(Message message) {
+        if (message.getId() > lastSeenMessageId) {
+            lastSeenMessageId = message.getId();
+            lastSeenAt = message.getTimestamp();
+        }
+    }
+
+    /**
+     * Looks up the server after the current one in the configured list. Success
+     * arrives as Connected, failure as Status.Failure, which retries after a pause.
+     */
+    private void reconnect() {
+        reconnecting = true;
+        // Move on even if the lookup fails, so the next attempt tries another server
+        serverIndex = (serverIndex + 1) % servers.size();
+        serverActor = getContext().getSystem().deadLetters();
+        String path = servers.get(serverIndex);
+        log.info("Looking up server {}", path);
+        Patterns.pipe(getContext().actorSelection(path).resolveOne(reconnectInterval).thenApply(Connected::new),
+                getContext().getDispatcher()).to(getSelf());
+    }
+
+    /**
+     * Sends a message typed by the user under a new client message id and resends
+     * it with the same id until the server confirms it, so a retry is never stored twice.
+     */
+    private void send(ServerActor.SendMessage message) {
+        long id = nextClientMessageId++;
+        ServerActor.SendMessage withId = new ServerActor.SendMessage(message.getSender(), message.getRecipient(),
+                message.getContent(), message.getType(), message.getTargetGroup(), id);
+        pendingSends.put(id, new PendingSend(withId));
+        serverActor.tell(withId, getSelf());
+        getTimers().startSingleTimer(id, new RetrySend(id), sendTimeout);
+    }
+
+    private void retry(RetrySend retry) {
+        PendingSend pending = pendingSends.get(retry.clientMessageId);
+        if (pending == null) {
+            return;
+        }
+        if (pending.attempts > sendRetries) {
+            pendingSends.remove(retry.clientMessageId);
+            chatUI.displayError("No confirmation from the server for: " + pending.message.getContent());
+            return;
+        }
+        pending.attempts++;
+        log.info("Resending message {} (attempt {})", retry.clientMessageId, pending.attempts);
+        serverActor.tell(pending.message, getSelf());
+        getTimers().startSingleTimer(retry.clientMessageId, retry, sendTimeout);
+    }
+
+    /**
+     * Queues the messages of a batch under new client message ids, so an envelope
+     * sent again after a timeout or failover does not store any of them twice.
+     */
+    private void sendBatch(SendBatch batch) {
+        for (ServerActor.SendMessage message : batch.messages) {
+            batchQueue.add(new ServerActor.SendMessage(message.getSender(), message.getRecipient(),
+                    message.getContent(), message.getType(), message.getTargetGroup(), nextClientMessageId++));
+        }
+        if (batchInFlight == null) {
+            sendNextBatch();
+        }
+    }
+
+    private void sendNextBatch() {
+        if (batchInFlight != null || batchQueue.isEmpty()) {
+            return;
+        }
+        batchInFlight = new ArrayList<>();
+        while (batchInFlight.size() < BATCH_SIZE && !batchQueue.isEmpty()) {
+            batchInFlight.add(batchQueue.poll());
+        }
+        batchAttempts = 1;
+        serverActor.tell(new ServerActor.SendMessageBatch(name, batchInFlight), getSelf());
+        getTimers().startSingleTimer(BATCH_TIMEOUT, BATCH_TIMEOUT, sendTimeout);
+    }
+
+    private void retryBatch() {
+        if (batchInFlight == null) {
+            return;
+        }
+        if (batchAttempts > sendRetries) {
+            abandonBatch("No confirmation from the server for a batch");
+            return;
+        }
+        batchAttempts++;
+        serverActor.tell(new ServerActor.SendMessageBatch(name, batchInFlight), getSelf());
+        getTimers().startSingleTimer(BATCH_TIMEOUT, BATCH_TIMEOUT, sendTimeout);
+    }
+
+    /**
+     * Entries the server did not admit go back to the front of the queue and are
+     * sent again once the server's backoff hint has passed.
+     */
+    private void batchDone(ServerActor.BatchResult result) {
+        List<ServerActor.SendMessage> sent = batchInFlight;
+        if (sent == null || sent.get(0).getClientMessageId() != result.getFirstClientMessageId()) {
+            // Answers an envelope sent again after a timeout, whose first answer was already handled
+            return;
+        }
+        batchInFlight = null;
+        getTimers().cancel(BATCH_TIMEOUT);
+        List<ServerActor.SendMessage> tail = sent.subList(Math.min(result.getAdmitted(), sent.size()), sent.size());
+
+        List<String> errors = result.getErrors();
+        if (!tail.isEmpty() && !errors.isEmpty()) {
+            // The server adds the reason for not admitting the tail last, the retry below replaces it
+            errors = errors.subList(0, errors.size() - 1);
+        }
+        errors.forEach(chatUI::displayError);
+        if (tail.isEmpty()) {
+            batchStalls = 0;
+            chatUI.displaySystemMessage(String.format("Batch: %d of %d message(s) sent%s", result.getSent(),
+                    result.getRequested(), batchQueue.isEmpty() ? "" : ", " + batchQueue.size() + " to go"));
+            sendNextBatch();
+            return;
+        }
+
+        batchStalls = result.getAdmitted() == 0 ? batchStalls + 1 : 0;
+        for (int i = tail.size() - 1; i >= 0; i--) {
+            batchQueue.addFirst(tail.get(i));
+        }
+        if (batchStalls > sendRetries) {
+            abandonBatch("The server keeps refusing the batch");
+            return;
+        }
+        long backoff = Math.max(MIN_BATCH_BACKOFF_MILLIS, result.getRetryAfterMillis());
+        chatUI.displaySystemMessage(String.format("Batch: %d of %d message(s) sent, sending the other %d in %.1f s",
+                result.getSent(), result.getRequested(), batchQueue.size(), backoff / 1000.0));
+        getTimers().startSingleTimer(SEND_BATCH, SEND_BATCH, Duration.ofMillis(backoff));
+    }
+
+    private void abandonBatch(String reason) {
+        int lost = batchQueue.size() + (batchInFlight == null ? 0 : batchInFlight.size());
+        batchQueue.clear();
+        batchInFlight = null;
+        batchStalls = 0;
+        getTimers().cancel(SEND_BATCH);
+        getTimers().cancel(BATCH_TIMEOUT);
+        chatUI.displayError(String.format("%s, %d message(s) not sent", reason, lost));
+    }
+
+    private void confirmed(long clientMessageId) {
+        if (clientMessageId != 0 && pendingSends.remove(clientMessageId) != null) {
+            getTimers().cancel(clientMessageId);
+        }
+    }
+
+    private static final class PendingSend {
+        final ServerActor.SendMessage message;
+        int attempts = 1;
+
+        PendingSend(ServerActor.SendMessage message) {
+            this.message = message;
+        }
+    }
+
+    /**
+     * A request from ClientApp for whichever server the client is connected to.
+     */
+    public static final class ToServer {
+        final Object request;
+
+        public ToServer(Object request) {
+            this.request = request;
+        }
+    }
+
+    /**
+     * Messages from ClientApp to send in batches, as many envelopes as needed.
+     */
+    public static final class SendBatch {
+        final List<ServerActor.SendMessage> messages;
+
+        public SendBatch(List<ServerActor.SendMessage> messages) {
+            this.messages = messages;
+        }
+    }
+
+    private static final class Connected {
+        final ActorRef server;
+
+        Connected(ActorRef server) {
+            this.server = server;
+        }
+    }
+
+    private static final class RetrySend {
+        final long clientMessageId;
+
+        RetrySend(long clientMessageId) {
+            this.clientMessageId = clientMessageId;
+        }
+    }
 }
@@ -4,27 +4,55 @@ package org.example;
 import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
 
 public class ClientApp {
     private final ActorSystem system;
     private final ActorRef clientActor;
-    private final ActorRef serverActor;
     private final ChatUI chatUI;
     private final String username;
 
+    private static final int MEMBERS_PAGE_SIZE = 50;
+    private final int historyPage;
+
     public ClientApp(String username) {
         this.username = username;
         this.system = ActorSystem.create("ChatClient");
         this.chatUI = new ChatUI(username);
+        this.historyPage = system.settings().config().getInt("chat.client.history-page");
 
-        // Connect to server
-        CompletionStage<ActorRef> serverFuture = system.actorSelection("akka://ChatServer@127.0.0.1:25520/user/serverActor")
-                .resolveOne(java.time.Duration.ofSeconds(5));
+        // Connect to the first server that answers; the client actor fails over to the others later
+        ActorRef serverActor = null;
+        for (String path : system.settings().config().getStringList("chat.client.servers")) {
+            CompletionStage<ActorRef> serverFuture = system.actorSelection(path)
+                    .resolveOne(java.time.Duration.ofSeconds(5));
+            try {
+                serverActor = serverFuture.toCompletableFuture().join();
+                break;
+            } catch (CompletionException e) {
+                System.out.println("Server " + path + " is not reachable");
+            }
+        }
+        if (serverActor == null) {
+            throw new IllegalStateException("No chat server is reachable");
+        }
+        ActorRef relay = system.actorOf(FanoutRelay.props(), "relay");
+        this.clientActor = system.actorOf(ClientActor.props(serverActor, relay, username, chatUI), "clientActor");
+    }
 
-        this.serverActor = serverFuture.toCompletableFuture().join();
-        this.clientActor = system.actorOf(ClientActor.props(serverActor, username, chatUI), "clientActor");
+    private void toServer(Object request) {
+        clientActor.tell(new ClientActor.ToServer(request), ActorRef.noSender());
     }
 
     public void start() {
@@ -43,15 +71,16 @@ public class ClientApp {
             if (input.startsWith("/")) {
                 handleCommand(input);
             } else {
+                // The client actor assigns the message id and resends until the server confirms
                 if (chatUI.isInChatMode()) {
-                    serverActor.tell(
+                    clientActor.tell(
                             new ServerActor.SendMessage(username, chatUI.getCurrentChatPartner(), input, Message.MessageType.DIRECT, null),
-                            clientActor
+                            ActorRef.noSender()
                     );
                 } else if (chatUI.isInGroupChat()) {
-                    serverActor.tell(
+                    clientActor.tell(
                             new ServerActor.SendMessage(username, null, input, Message.MessageType.GROUP, chatUI.getCurrentGroup()),
-                            clientActor
+                            ActorRef.noSender()
                     );
                 } else {
                     handleMainMenuInput(input);
@@ -68,6 +97,8 @@ public class ClientApp {
         switch (command) {
             case "/exit":
                 if (chatUI.isInChatMode() || chatUI.isInGroupChat()) {
+                    toServer(new ServerActor.MarkRead(username, chatUI.getCurrentChatPartner(),
+                            chatUI.getCurrentGroup()));
                     chatUI.exitChatMode();
                     chatUI.exitGroupChatMode();
                 } else {
@@ -78,7 +109,7 @@ public class ClientApp {
 
             case "/create":
                 if (!args.isEmpty()) {
-                    serverActor.tell(new ServerActor.CreateGroup(args, username), clientActor);
+                    toServer(new ServerActor.CreateGroup(args, username));
                 } else {
                     chatUI.displayError("Usage: /create <group_name>");
                 }
@@ -86,7 +117,7 @@ public class ClientApp {
 
             case "/join":
                 if (!args.isEmpty()) {
-                    serverActor.tell(new ServerActor.JoinGroup(args, username), clientActor);
+                    toServer(new ServerActor.JoinGroup(args, username));
                 } else {
                     chatUI.displayError("Usage: /join <group_name>");
                 }
@@ -94,7 +125,7 @@ public class ClientApp {
 
             case "/leave":
                 if (chatUI.isInGroupChat()) {
-                    serverActor.tell(new ServerActor.LeaveGroup(chatUI.getCurrentGroup(), username), clientActor);
+                    toServer(new ServerActor.LeaveGroup(chatUI.getCurrentGroup(), username));
                 } else {
                     chatUI.displayError("You must be in a group chat to use this command");
                 }
@@ -102,7 +133,7 @@ public class ClientApp {
 
             case "/disband":
                 if (chatUI.isInGroupChat()) {
-                    serverActor.tell(new ServerActor.DisbandGroup(chatUI.getCurrentGroup(), username), clientActor);
+                    toServer(new ServerActor.DisbandGroup(chatUI.getCurrentGroup(), username));
                 } else {
                     chatUI.displayError("You must be in a group chat to use this command");
                 }
@@ -110,7 +141,7 @@ public class ClientApp {
 
             case "/invite":
                 if (chatUI.isInGroupChat() && !args.isEmpty()) {
-                    serverActor.tell(new ServerActor.InviteToGroup(chatUI.getCurrentGroup(), username, args), clientActor);
+                    toServer(new ServerActor.InviteToGroup(chatUI.getCurrentGroup(), username, args));
                 } else {
                     chatUI.displayError("Usage: /invite <username> (must be in a group chat)");
                 }
@@ -118,14 +149,67 @@ public class ClientApp {
 
             case "/members":
                 if (chatUI.isInGroupChat()) {
-                    serverActor.tell(new ServerActor.GetGroupInfo(chatUI.getCurrentGroup(), username), clientActor);
+                    requestMembers(args);
                 } else {
                     chatUI.displayError("You must be in a group chat to use this command");
                 }
                 break;
 
+            case "/history":
+                if (chatUI.isInChatMode() || chatUI.isInGroupChat()) {
+                    requestHistoryRange(args);
+                } else {
+                    chatUI.displayError("You must be in a chat to use this command");
+                }
+                break;
+
+            case "/more":
+                if (!chatUI.isInChatMode() && !chatUI.isInGroupChat()) {
+                    chatUI.displayError("You must be in a chat to use this command");
+                } else if (!chatUI.hasOlderMessages()) {
+                    chatUI.displaySystemMessage("No earlier messages");
+                } else {
+                    toServer(new ServerActor.GetOlderMessages(username, chatUI.getCurrentChatPartner(),
+                            chatUI.getCurrentGroup(), chatUI.getOldestShownId(), historyPage));
+                }
+                break;
+
+            case "/edit":
+            case "/delete":
+            case "/react":
+                if (chatUI.isInChatMode() || chatUI.isInGroupChat()) {
+                    changeMessage(command, args);
+                } else {
+                    chatUI.displayError("You must be in a chat to use this command");
+                }
+                break;
+
+            case "/ttl":
+                if (chatUI.isInChatMode() || chatUI.isInGroupChat()) {
+                    setMessageTtl(args);
+                } else {
+                    chatUI.displayError("You must be in a chat to use this command");
+                }
+                break;
+
+            case "/schedule":
+                if (chatUI.isInChatMode() || chatUI.isInGroupChat()) {
+                    scheduleMessage(args);
+                } else {
+                    chatUI.displayError("You must be in a chat to use this command");
+                }
+                break;
+
+            case "/batch":
+                if (!args.isEmpty()) {
+                    sendBatchFile(args.trim());
+                } else {
+                    chatUI.displayError("Usage: /batch <file>");
+                }
+                break;
+
             case "/groups":
-                serverActor.tell(new ServerActor.GetGroupList(username), clientActor);
+                toServer(new ServerActor.GetGroupList(username));
                 break;
 
             case "/help":
@@ -137,18 +221,163 @@ public class ClientApp {
         }
     }
 
+    private void requestMembers(String args) {
+        int page = 1;
+        if (!args.isEmpty()) {
+            try {
+                page = Integer.parseInt(args.trim());
+            } catch (NumberFormatException e) {
+                chatUI.displayError("Usage: /members [page]");
+                return;
+            }
+        }
+        if (page < 1) {
+            chatUI.displayError("Page numbers start at 1");
+            return;
+        }
+
+        String group = chatUI.getCurrentGroup();
+        int offset = (page - 1) * MEMBERS_PAGE_SIZE;
+        long knownVersion = chatUI.getCachedMembersVersion(group, offset);
+        toServer(new ServerActor.GetGroupMembers(group, username, offset, MEMBERS_PAGE_SIZE, knownVersion));
+    }
+
+    private void requestHistoryRange(String args) {
+        String[] bounds = args.trim().split("\\s+");
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime from = args.trim().isEmpty() ? null : ServerActor.GetHistoryRange.parseBound(bounds[0], now);
+        LocalDateTime to = bounds.length > 1 ? ServerActor.GetHistoryRange.parseBound(bounds[1], now) : now;
+        if (from == null || to == null || bounds.length > 2) {
+            chatUI.displayError("Usage: /history <since> [until], e.g. /history 10m or /history 2024-05-01T09:00 2024-05-01T12:00");
+            return;
+        }
+
+        toServer(new ServerActor.GetHistoryRange(username, chatUI.getCurrentChatPartner(),
+                chatUI.getCurrentGroup(), from, to));
+    }
+
+    private void setMessageTtl(String args) {
+        Duration ttl = args.trim().equalsIgnoreCase("off") ? Duration.ZERO : Durations.parse(args);
+        if (ttl == null) {
+            chatUI.displayError("Usage: /ttl <duration>|off, e.g. /ttl 1h");
+            return;
+        }
+        toServer(new ServerActor.SetMessageTtl(username, chatUI.getCurrentChatPartner(),
+                chatUI.getCurrentGroup(), ttl));
+    }
+
+    /**
+     * Edits, deletes or reacts to a message of the current chat, given by the id shown next to it.
+     */
+    private void changeMessage(String command, String args) {
+        String[] parts = args.trim().split("\\s+", 2);
+        long id;
+        try {
+            id = Long.parseLong(parts[0].startsWith("#") ? parts[0].substring(1) : parts[0]);
+        } catch (NumberFormatException e) {
+            id = 0;
+        }
+        String value = parts.length > 1 ? parts[1].trim() : null;
+
+        String partner = chatUI.getCurrentChatPartner();
+        String group = chatUI.getCurrentGroup();
+        switch (command) {
+            case "/edit":
+                if (id <= 0 || value == null) {
+                    chatUI.displayError("Usage: /edit <id> <new text>");
+                    return;
+                }
+                toServer(MessageDelta.edit(username, partner, group, id, value));
+                break;
+            case "/delete":
+                if (id <= 0) {
+                    chatUI.displayError("Usage: /delete <id>");
+                    return;
+                }
+                toServer(MessageDelta.delete(username, partner, group, id));
+                break;
+            default:
+                if (id <= 0) {
+                    chatUI.displayError("Usage: /react <id> [reaction], without a reaction yours is taken back");
+                    return;
+                }
+                toServer(MessageDelta.react(username, partner, group, id, value));
+        }
+    }
+
+    private void scheduleMessage(String args) {
+        String[] parts = args.trim().split("\\s+", 2);
+        Duration delay = Durations.parse(parts[0]);
+        if (delay == null || parts.length < 2) {
+            chatUI.displayError("Usage: /schedule <delay> <message>, e.g. /schedule 10m Meeting starts now");
+            return;
+        }
+
+        ServerActor.SendMessage message = chatUI.isInGroupChat() ?
+                new ServerActor.SendMessage(username, null, parts[1], Message.MessageType.GROUP, chatUI.getCurrentGroup()) :
+                new ServerActor.SendMessage(username, chatUI.getCurrentChatPartner(), parts[1], Message.MessageType.DIRECT, null);
+        toServer(new ServerActor.ScheduleMessage(message, delay.toMillis()));
+    }
+
+    /**
+     * Sends every line of a file as a message. ClientActor sends them in batches
+     * and sends what the server did not admit again once its backoff has passed.
+     * Lines start with @user or #group; other lines go to the current chat.
+     */
+    private void sendBatchFile(String file) {
+        List<ServerActor.SendMessage> batch = new ArrayList<>();
+        int lineNumber = 0;
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                ServerActor.SendMessage message = parseBatchLine(line.trim());
+                if (message == null) {
+                    chatUI.displayError(String.format("Line %d has no recipient, start it with @user or #group", lineNumber));
+                    return;
+                }
+                batch.add(message);
+            }
+        } catch (IOException e) {
+            chatUI.displayError("Cannot read " + file + ": " + e.getMessage());
+            return;
+        }
+
+        clientActor.tell(new ClientActor.SendBatch(batch), ActorRef.noSender());
+    }
+
+    private ServerActor.SendMessage parseBatchLine(String line) {
+        String[] parts = line.split("\\s+", 2);
+        if (parts.length == 2 && parts[0].length() > 1 && parts[0].startsWith("@")) {
+            return new ServerActor.SendMessage(username, parts[0].substring(1), parts[1], Message.MessageType.DIRECT, null);
+        }
+        if (parts.length == 2 && parts[0].length() > 1 && parts[0].startsWith("#")) {
+            return new ServerActor.SendMessage(username, null, parts[1], Message.MessageType.GROUP, parts[0].substring(1));
+        }
+        if (chatUI.isInChatMode()) {
+            return new ServerActor.SendMessage(username, chatUI.getCurrentChatPartner(), line, Message.MessageType.DIRECT, null);
+        }
+        if (chatUI.isInGroupChat()) {
+            return new ServerActor.SendMessage(username, null, line, Message.MessageType.GROUP, chatUI.getCurrentGroup());
+        }
+        return null;
+    }
+
     private void handleMainMenuInput(String input) {
         try {
             int choice = Integer.parseInt(input);
             switch (choice) {
                 case 1:
-                    serverActor.tell(new ServerActor.FindClients(username), clientActor);
+                    toServer(new ServerActor.FindClients(username));
                     break;
 
                 case 2:
                     System.out.print("Enter username to chat with: ");
                     String chatPartner = chatUI.readLine().trim();
-                    serverActor.tell(new ServerActor.GetChatHistory(username, chatPartner), clientActor);
+                    toServer(new ServerActor.GetChatHistory(username, chatPartner, historyPage));
                     chatUI.enterChatMode(chatPartner);
                     break;
 
@@ -156,12 +385,12 @@ public class ClientApp {
                     chatUI.displayGroupCreationMenu();
                     String groupName = chatUI.readLine().trim();
                     if (!groupName.isEmpty()) {
-                        serverActor.tell(new ServerActor.CreateGroup(groupName, username), clientActor);
+                        toServer(new ServerActor.CreateGroup(groupName, username));
                     }
                     break;
 
                 case 4:
-                    serverActor.tell(new ServerActor.GetGroupList(username), clientActor);
+                    toServer(new ServerActor.GetGroupList(username));
                     break;
 
                 case 5:
@@ -187,7 +416,15 @@ public class ClientApp {
         help.append("/leave - Leave current group\n");
         help.append("/disband - Disband group (admin only)\n");
         help.append("/invite <username> - Invite user to current group\n");
-        help.append("/members - List group members\n");
+        help.append("/members [page] - List group members\n");
+        help.append("/more - Show earlier messages of the current chat\n");
+        help.append("/edit <id> <text> - Edit one of your messages, ids are shown next to the time\n");
+        help.append("/delete <id> - Delete one of your messages\n");
+        help.append("/react <id> [reaction] - React to a message, or take your reaction back\n");
+        help.append("/history <since> [until] - Show messages of the current chat in a time range (10m, 2h, 1d or a date-time)\n");
+        help.append("/ttl <duration>|off - Make new messages in the current chat disappear after a while\n");
+        help.append("/schedule <delay> <message> - Send a message to the current chat later\n");
+        help.append("/batch <file> - Send every line of a file, lines start with @user or #group\n");
         help.append("/groups - List available groups\n");
         help.append("/help - Show this help message\n");
         chatUI.displaySystemMessage(help.toString());
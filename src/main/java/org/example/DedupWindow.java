@@ -0,0 +1,62 @@
+// DedupWindow.java
+package org.example;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Recently sent client message ids per sender, so a retried send is recognised
+ * and not stored or delivered twice. Each sender has a fixed ring of ids with the
+ * time they were seen; an id is remembered until it is older than the window or
+ * pushed out of the ring by newer ones, whichever comes first.
+ */
+public class DedupWindow {
+    private final long windowMillis;
+    private final int capacity;
+    private final Map<String, Ring> senders = new HashMap<>();
+    private long duplicates = 0;
+
+    private static final class Ring {
+        final long[] ids;
+        final long[] seenAt;
+        int next = 0;
+
+        Ring(int capacity) {
+            this.ids = new long[capacity];
+            this.seenAt = new long[capacity];
+        }
+    }
+
+    public DedupWindow(long windowMillis, int capacity) {
+        this.windowMillis = windowMillis;
+        this.capacity = capacity;
+    }
+
+    public boolean isDuplicate(String sender, long clientMessageId, long now) {
+        Ring ring = senders.get(sender);
+        if (ring == null) {
+            return false;
+        }
+        for (int i = 0; i < capacity; i++) {
+            if (ring.ids[i] == clientMessageId && now - ring.seenAt[i] <= windowMillis) {
+                duplicates++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void record(String sender, long clientMessageId, long now) {
+        Ring ring = senders.computeIfAbsent(sender, k -> new Ring(capacity));
+        ring.ids[ring.next] = clientMessageId;
+        ring.seenAt[ring.next] = now;
+        ring.next = (ring.next + 1) % capacity;
+    }
+
+    public void forget(String sender) {
+        senders.remove(sender);
+    }
+
+    public int trackedSenders() { return senders.size(); }
+    public long getDuplicates() { return duplicates; }
+}
@@ -0,0 +1,64 @@
+// DeliveryBuffer.java
+package org.example;
+
+import akka.actor.ActorRef;
+
+import java.util.*;
+
+/**
+ * Outbound messages waiting to be delivered, grouped by recipient. The server
+ * drains it at the end of every delivery window so a recipient that is sent
+ * several messages within the window gets them in one MessageBundle instead of
+ * one remote envelope each. Order is kept per recipient.
+ */
+public class DeliveryBuffer {
+    private final int maxMessages;
+    private final Map<ActorRef, List<Message>> pending = new LinkedHashMap<>();
+    private int pendingCount = 0;
+
+    public DeliveryBuffer(int maxMessages) {
+        this.maxMessages = maxMessages;
+    }
+
+    /**
+     * Queues a message for the recipient. Returns the recipient's messages when
+     * they reached the size cap and must be sent right away, otherwise null.
+     */
+    public List<Message> add(ActorRef recipient, Message message) {
+        List<Message> messages = pending.computeIfAbsent(recipient, k -> new ArrayList<>());
+        messages.add(message);
+        pendingCount++;
+        if (messages.size() < maxMessages) {
+            return null;
+        }
+        return take(recipient);
+    }
+
+    /**
+     * Removes and returns the messages queued for one recipient, or null if there are none.
+     */
+    public List<Message> take(ActorRef recipient) {
+        List<Message> messages = pending.remove(recipient);
+        if (messages != null) {
+            pendingCount -= messages.size();
+        }
+        return messages;
+    }
+
+    /**
+     * Removes and returns everything queued, in the order recipients were first added.
+     */
+    public Map<ActorRef, List<Message>> drain() {
+        Map<ActorRef, List<Message>> drained = new LinkedHashMap<>(pending);
+        pending.clear();
+        pendingCount = 0;
+        return drained;
+    }
+
+    public boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    public int getPendingCount() { return pendingCount; }
+    public int getRecipientCount() { return pending.size(); }
+}
@@ -0,0 +1,44 @@
+// Durations.java
+package org.example;
+
+import java.time.Duration;
+
+/**
+ * Parses the short durations typed by users: 30s, 10m, 2h, 1d.
+ */
+public final class Durations {
+
+    private Durations() {
+    }
+
+    /**
+     * Returns the duration, or null if the text is not a number followed by s, m, h or d.
+     */
+    public static Duration parse(String text) {
+        String value = text.trim().toLowerCase();
+        if (!value.matches("\\d{1,9}[smhd]")) {
+            return null;
+        }
+        long amount = Long.parseLong(value.substring(0, value.length() - 1));
+        switch (value.charAt(value.length() - 1)) {
+            case 's': return Duration.ofSeconds(amount);
+            case 'm': return Duration.ofMinutes(amount);
+            case 'h': return Duration.ofHours(amount);
+            default: return Duration.ofDays(amount);
+        }
+    }
+
+    public static String format(Duration duration) {
+        long seconds = duration.getSeconds();
+        if (seconds % 86400 == 0) {
+            return seconds / 86400 + "d";
+        }
+        if (seconds % 3600 == 0) {
+            return seconds / 3600 + "h";
+        }
+        if (seconds % 60 == 0) {
+            return seconds / 60 + "m";
+        }
+        return seconds + "s";
+    }
+}
@@ -0,0 +1,169 @@
+// FanoutPlanner.java
+package org.example;
+
+import akka.actor.ActorRef;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Groups broadcast recipients by the relay of the ActorSystem they live in.
+ * Plans are cached per group and rebuilt only when the group's membership
+ * version changes. A login or disconnect only patches the plans it touches:
+ * a plan catches up with the sessions changed since it was last used and
+ * moves just those members.
+ *
+ * Every plan has its own id. Relays keep the recipients of the plans they were
+ * sent, so a plan remembers which relays already have them. A patch keeps the
+ * id and only the relay whose recipients changed gets them again.
+ */
+public class FanoutPlanner {
+    private static final String EVERYONE = "*";
+    private final Map<String, Plan> groupPlans = new HashMap<>();
+    private Plan everyonePlan;
+    private long nextPlanId = 1;
+
+    public static final class Plan {
+        private final Map<ActorRef, Set<ActorRef>> byRelay = new HashMap<>();
+        private final Set<ActorRef> direct = new LinkedHashSet<>();
+        // A relay with a single recipient only adds a hop, that recipient is sent to directly
+        private final Map<ActorRef, ActorRef> singles = new HashMap<>();
+        // Recipient and relay of every member in the plan, to find them again when their session changes
+        private final Map<String, ActorRef> refs = new HashMap<>();
+        private final Map<String, ActorRef> relays = new HashMap<>();
+        private final Set<ActorRef> informedRelays = new HashSet<>();
+        private final String key;
+        private final long id;
+        private final long groupVersion;
+        private long sessionEpoch;
+
+        Plan(String key, long id, long groupVersion, long sessionEpoch) {
+            this.key = key;
+            this.id = id;
+            this.groupVersion = groupVersion;
+            this.sessionEpoch = sessionEpoch;
+        }
+
+        public Map<ActorRef, Set<ActorRef>> getByRelay() { return byRelay; }
+        public Collection<ActorRef> getDirect() { return direct; }
+        public String getKey() { return key; }
+        public long getId() { return id; }
+
+        /**
+         * Returns true the first time for a relay, i.e. when its recipients must be sent along.
+         */
+        public boolean markInformed(ActorRef relay) {
+            return informedRelays.add(relay);
+        }
+
+        void add(String name, ActorRef ref, ActorRef relay) {
+            refs.put(name, ref);
+            if (relay == null) {
+                direct.add(ref);
+                return;
+            }
+            relays.put(name, relay);
+            Set<ActorRef> local = byRelay.get(relay);
+            if (local == null) {
+                ActorRef single = singles.remove(relay);
+                if (single == null) {
+                    singles.put(relay, ref);
+                    direct.add(ref);
+                    return;
+                }
+                direct.remove(single);
+                local = new LinkedHashSet<>();
+                local.add(single);
+                byRelay.put(relay, local);
+            }
+            local.add(ref);
+            informedRelays.remove(relay);
+        }
+
+        void remove(String name) {
+            ActorRef ref = refs.remove(name);
+            if (ref == null) {
+                return;
+            }
+            ActorRef relay = relays.remove(name);
+            if (relay == null) {
+                direct.remove(ref);
+                return;
+            }
+            if (ref.equals(singles.get(relay))) {
+                singles.remove(relay);
+                direct.remove(ref);
+                return;
+            }
+            Set<ActorRef> local = byRelay.get(relay);
+            local.remove(ref);
+            informedRelays.remove(relay);
+            if (local.size() == 1) {
+                byRelay.remove(relay);
+                ActorRef single = local.iterator().next();
+                singles.put(relay, single);
+                direct.add(single);
+            }
+        }
+    }
+
+    public Plan forGroup(Group group, SessionTracker sessions) {
+        Plan plan = groupPlans.get(group.getName());
+        if (plan == null || plan.groupVersion != group.getVersion() || !catchUp(plan, group::isMember, sessions)) {
+            plan = build(group.getName(), group.getMembers(), sessions, group.getVersion());
+            groupPlans.put(group.getName(), plan);
+        }
+        return plan;
+    }
+
+    public Plan forEveryone(SessionTracker sessions) {
+        if (everyonePlan == null || !catchUp(everyonePlan, name -> true, sessions)) {
+            everyonePlan = build(EVERYONE, sessions.names(), sessions, 0);
+        }
+        return everyonePlan;
+    }
+
+    /**
+     * The newest plan built under the key, or null.
+     */
+    public Plan current(String key) {
+        return key.equals(EVERYONE) ? everyonePlan : groupPlans.get(key);
+    }
+
+    public void forget(String groupName) {
+        groupPlans.remove(groupName);
+    }
+
+    /**
+     * Moves the members whose sessions changed since the plan was last used.
+     * Returns false if the sessions no longer remember that far back.
+     */
+    private static boolean catchUp(Plan plan, Predicate<String> member, SessionTracker sessions) {
+        List<String> changed = sessions.changedSince(plan.sessionEpoch);
+        if (changed == null) {
+            return false;
+        }
+        for (String name : changed) {
+            if (member.test(name)) {
+                plan.remove(name);
+                ActorRef ref = sessions.getRef(name);
+                if (ref != null) {
+                    plan.add(name, ref, sessions.getRelay(name));
+                }
+            }
+        }
+        plan.sessionEpoch = sessions.getEpoch();
+        return true;
+    }
+
+    private Plan build(String key, Collection<String> names, SessionTracker sessions, long groupVersion) {
+        Plan plan = new Plan(key, nextPlanId++, groupVersion, sessions.getEpoch());
+        for (String name : names) {
+            ActorRef ref = sessions.getRef(name);
+            if (ref != null) {
+                plan.add(name, ref, sessions.getRelay(name));
+            }
+        }
+        return plan;
+    }
+}
@@ -0,0 +1,120 @@
+// FanoutRelay.java
+package org.example;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Props;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Local delivery point for large broadcasts. The server sends one envelope per
+ * ActorSystem and the relay running in that system fans it out to the local
+ * recipients, keeping the original sender.
+ *
+ * The relay keeps the local recipients of every group it serves. The server
+ * sends the list along only with the first envelope of a fanout plan, later
+ * envelopes carry just the payload and the plan id. A relay that does not know
+ * a plan (it was restarted, or forgot it) hands the envelope back in PlanUnknown
+ * and the server sends it again with the list.
+ */
+public class FanoutRelay extends AbstractActor {
+    private static final int MAX_PLANS = 1024;
+    // Plan key -> the local recipients of its newest plan, least recently used first
+    private final Map<String, KnownPlan> plans = new LinkedHashMap<String, KnownPlan>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, KnownPlan> eldest) {
+            return size() > MAX_PLANS;
+        }
+    };
+
+    private static final class KnownPlan {
+        final long id;
+        final List<ActorRef> recipients;
+
+        KnownPlan(long id, List<ActorRef> recipients) {
+            this.id = id;
+            this.recipients = recipients;
+        }
+    }
+
+    public static Props props() {
+        return Props.create(FanoutRelay.class, FanoutRelay::new);
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(RelayEnvelope.class, this::relay)
+                .build();
+    }
+
+    private void relay(RelayEnvelope envelope) {
+        List<ActorRef> recipients = envelope.getRecipients();
+        if (recipients != null) {
+            plans.put(envelope.getPlanKey(), new KnownPlan(envelope.getPlanId(), recipients));
+        } else {
+            KnownPlan known = plans.get(envelope.getPlanKey());
+            if (known == null || known.id != envelope.getPlanId()) {
+                getSender().tell(new PlanUnknown(envelope), getSelf());
+                return;
+            }
+            recipients = known.recipients;
+        }
+
+        // Deserialize once per node, local recipients share the resulting object
+        Object payload = envelope.getPayload();
+        if (payload instanceof SerializedPayload) {
+            payload = ((SerializedPayload) payload).deserialize(getContext().getSystem());
+        }
+
+        for (ActorRef recipient : recipients) {
+            if (!recipient.equals(envelope.getExclude())) {
+                recipient.tell(payload, getSender());
+            }
+        }
+    }
+
+    public static class RelayEnvelope implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final Object payload;
+        private final String planKey;
+        private final long planId;
+        private final List<ActorRef> recipients;  // null when the relay already got them for this plan
+        private final ActorRef exclude;  // usually the author of the message, may be null
+
+        public RelayEnvelope(Object payload, String planKey, long planId, Collection<ActorRef> recipients,
+                             ActorRef exclude) {
+            this.payload = payload;
+            this.planKey = planKey;
+            this.planId = planId;
+            this.recipients = recipients == null ? null : new ArrayList<>(recipients);
+            this.exclude = exclude;
+        }
+
+        public Object getPayload() { return payload; }
+        public String getPlanKey() { return planKey; }
+        public long getPlanId() { return planId; }
+        public List<ActorRef> getRecipients() { return recipients; }
+        public ActorRef getExclude() { return exclude; }
+    }
+
+    /**
+     * Returned by a relay for an envelope whose recipients it does not know.
+     */
+    public static class PlanUnknown implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final RelayEnvelope envelope;
+
+        public PlanUnknown(RelayEnvelope envelope) {
+            this.envelope = envelope;
+        }
+
+        public RelayEnvelope getEnvelope() { return envelope; }
+    }
+}
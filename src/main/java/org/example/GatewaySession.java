@@ -0,0 +1,362 @@
+// GatewaySession.java
+package org.example;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Props;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Server-side session for one TextGateway connection. Translates protocol lines
+ * into ServerActor commands and server replies back into lines.
+ *
+ * Commands: LOGIN name, USERS, MSG user text, GROUP group text, CREATE group,
+ * JOIN group, INVITE group user, LEAVE group, MEMBERS group, GROUPS,
+ * HISTORY user, GHISTORY group, RANGE user|#group since [until],
+ * TTL user|#group duration|off, SCHEDULE user|#group delay text, QUIT,
+ * TYPING user|#group [on|off], BATCH n followed by n lines of "user text" or "#group text"
+ *
+ * Changes to messages arrive as "EDIT user conversation id text", "DELETE user
+ * conversation id" and "REACT user conversation id reaction|off" lines.
+ *
+ * A client that shows typing indicators repeats "TYPING ... on" every few seconds
+ * while its user types and receives "TYPING user conversation on|off" lines.
+ */
+public class GatewaySession extends AbstractActor {
+    private final ActorRef serverActor;
+    private final ActorRef relay;
+    private final TextGateway.Connection connection;
+    private String username;
+    // Lines still expected for the BATCH being collected, and the entries so far
+    private int batchRemaining = 0;
+    private final List<ServerActor.SendMessage> batch = new ArrayList<>();
+    private final int maxBatchSize;
+    // Messages sent so far of the RANGE being paged through
+    private int rangeSent = 0;
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+    private static final int MEMBERS_PAGE_SIZE = 200;
+
+    public GatewaySession(ActorRef serverActor, ActorRef relay, TextGateway.Connection connection) {
+        this.serverActor = serverActor;
+        this.relay = relay;
+        this.connection = connection;
+        this.maxBatchSize = getContext().getSystem().settings().config().getInt("chat.server.admission.max-batch-size");
+    }
+
+    public static Props props(ActorRef serverActor, ActorRef relay, TextGateway.Connection connection) {
+        return Props.create(GatewaySession.class, () -> new GatewaySession(serverActor, relay, connection));
+    }
+
+    public static class Line {
+        private final String text;
+
+        public Line(String text) {
+            this.text = text;
+        }
+
+        public String getText() { return text; }
+    }
+
+    @Override
+    public void preStart() {
+        connection.send("HELLO send LOGIN <name> to start");
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(Line.class, this::handleLine)
+                .match(ServerActor.RegistrationSuccess.class, msg -> {
+                    username = msg.getName();
+                    connection.send("OK LOGIN " + msg.getName());
+                })
+                .match(Message.class, this::sendMessageLine)
+                .match(MessageBundle.class, bundle -> bundle.getMessages().forEach(this::sendMessageLine))
+                .match(MessageDelta.class, this::sendDeltaLine)
+                .match(ServerActor.BatchResult.class, msg -> {
+                    msg.getErrors().forEach(error -> connection.send("ERR " + error));
+                    connection.send(String.format("OK BATCH %d %d", msg.getSent(), msg.getRequested()) +
+                            (msg.getRetryAfterMillis() > 0 ? " RETRY " + msg.getRetryAfterMillis() : ""));
+                })
+                .match(ServerActor.ClientList.class, msg -> connection.send("USERS " + String.join(",", msg.getClients())))
+                .match(ServerActor.ChatHistory.class, msg -> sendHistory(msg.getMessages()))
+                .match(ServerActor.GroupChatHistory.class, msg -> sendHistory(msg.getMessages()))
+                .match(ServerActor.HistoryRange.class, this::sendRange)
+                .match(ServerActor.GroupCreated.class, msg -> connection.send("OK CREATE " + msg.getGroup().getName()))
+                .match(ServerActor.JoinedGroup.class, msg -> connection.send("OK JOIN " + msg.getGroup().getName()))
+                .match(ServerActor.GroupInvitation.class, msg ->
+                        connection.send("INVITE " + msg.getGroupName() + " " + msg.getInviter()))
+                .match(ServerActor.GroupList.class, msg -> {
+                    for (ServerActor.GroupInfo info : msg.getGroups()) {
+                        connection.send(String.format("GROUPINFO %s %s %d %s", info.getName(), info.getAdmin(),
+                                info.getMemberCount(), info.isMember() ? "member" : "invited"));
+                    }
+                    connection.send("OK GROUPS " + msg.getGroups().size());
+                })
+                .match(ServerActor.GroupMembers.class, msg ->
+                        connection.send(String.format("MEMBERS %s %d %s", msg.getGroupName(), msg.getTotal(),
+                                String.join(",", msg.getMembers()))))
+                .match(ServerActor.LeftGroup.class, msg -> connection.send("OK LEAVE " + msg.getGroupName()))
+                .match(ServerActor.GroupDisbanded.class, msg -> connection.send("DISBANDED " + msg.getGroupName()))
+                .match(ServerActor.UnreadSummary.class, msg -> {
+                    StringBuilder line = new StringBuilder("UNREAD");
+                    msg.getCounts().forEach((conversation, count) -> line.append(' ').append(conversation).append('=').append(count));
+                    connection.send(line.toString());
+                })
+                .match(TypingEvent.class, event -> connection.send(String.format("TYPING %s %s %s",
+                        event.getUser(), event.conversationFor(username), event.isTyping() ? "on" : "off")))
+                .match(ServerActor.SeenBy.class, msg -> connection.send(String.format("SEEN %s %d %d",
+                        msg.getGroupName(), msg.getSeenBy(), msg.getMembers())))
+                .match(ServerActor.SystemMessage.class, msg -> connection.send("SYSTEM " + msg.getMessage()))
+                .match(ServerActor.ErrorMessage.class, msg -> connection.send(msg.getRetryAfterMillis() > 0 ?
+                        "ERR " + msg.getError() + " RETRY " + msg.getRetryAfterMillis() :
+                        "ERR " + msg.getError()))
+                .build();
+    }
+
+    private void handleLine(Line line) {
+        if (batchRemaining > 0) {
+            collectBatchLine(line.getText());
+            return;
+        }
+
+        String[] parts = line.getText().split("\\s+", 3);
+        String command = parts[0].toUpperCase();
+
+        if (command.equals("QUIT")) {
+            connection.send("BYE");
+            connection.close();
+            return;
+        }
+
+        if (username == null) {
+            if (command.equals("LOGIN") && parts.length >= 2) {
+                serverActor.tell(new ServerActor.RegisterClient(parts[1], relay), getSelf());
+            } else {
+                connection.send("ERR LOGIN <name> required");
+            }
+            return;
+        }
+
+        switch (command) {
+            case "USERS":
+                serverActor.tell(new ServerActor.FindClients(username), getSelf());
+                break;
+            case "MSG":
+                if (parts.length < 3) {
+                    connection.send("ERR usage: MSG <user> <text>");
+                } else {
+                    serverActor.tell(new ServerActor.SendMessage(username, parts[1], parts[2],
+                            Message.MessageType.DIRECT, null), getSelf());
+                }
+                break;
+            case "GROUP":
+                if (parts.length < 3) {
+                    connection.send("ERR usage: GROUP <group> <text>");
+                } else {
+                    serverActor.tell(new ServerActor.SendMessage(username, null, parts[2],
+                            Message.MessageType.GROUP, parts[1]), getSelf());
+                }
+                break;
+            case "CREATE":
+                if (requireArgs(parts, 2, "CREATE <group>")) {
+                    serverActor.tell(new ServerActor.CreateGroup(parts[1], username), getSelf());
+                }
+                break;
+            case "JOIN":
+                if (requireArgs(parts, 2, "JOIN <group>")) {
+                    serverActor.tell(new ServerActor.JoinGroup(parts[1], username), getSelf());
+                }
+                break;
+            case "INVITE":
+                if (requireArgs(parts, 3, "INVITE <group> <user>")) {
+                    serverActor.tell(new ServerActor.InviteToGroup(parts[1], username, parts[2]), getSelf());
+                }
+                break;
+            case "LEAVE":
+                if (requireArgs(parts, 2, "LEAVE <group>")) {
+                    serverActor.tell(new ServerActor.LeaveGroup(parts[1], username), getSelf());
+                }
+                break;
+            case "MEMBERS":
+                if (requireArgs(parts, 2, "MEMBERS <group>")) {
+                    serverActor.tell(new ServerActor.GetGroupMembers(parts[1], username, 0, MEMBERS_PAGE_SIZE, -1), getSelf());
+                }
+                break;
+            case "GROUPS":
+                serverActor.tell(new ServerActor.GetGroupList(username), getSelf());
+                break;
+            case "HISTORY":
+                if (requireArgs(parts, 2, "HISTORY <user>")) {
+                    serverActor.tell(new ServerActor.GetChatHistory(username, parts[1]), getSelf());
+                }
+                break;
+            case "GHISTORY":
+                if (requireArgs(parts, 2, "GHISTORY <group>")) {
+                    serverActor.tell(new ServerActor.GetGroupInfo(parts[1], username), getSelf());
+                }
+                break;
+            case "RANGE":
+                if (requireArgs(parts, 3, "RANGE <user|#group> <since> [until]")) {
+                    requestRange(parts[1], parts[2]);
+                }
+                break;
+            case "BATCH":
+                if (requireArgs(parts, 2, "BATCH <count>")) {
+                    startBatch(parts[1]);
+                }
+                break;
+            case "TTL":
+                if (requireArgs(parts, 3, "TTL <user|#group> <duration|off>")) {
+                    Duration ttl = parts[2].trim().equalsIgnoreCase("off") ? Duration.ZERO : Durations.parse(parts[2]);
+                    if (ttl == null) {
+                        connection.send("ERR bad duration, use 30s, 10m, 2h, 1d or off");
+                    } else {
+                        boolean group = parts[1].startsWith("#");
+                        serverActor.tell(new ServerActor.SetMessageTtl(username, group ? null : parts[1],
+                                group ? parts[1].substring(1) : null, ttl), getSelf());
+                    }
+                }
+                break;
+            case "SCHEDULE":
+                if (requireArgs(parts, 3, "SCHEDULE <user|#group> <delay> <text>")) {
+                    scheduleMessage(parts[1], parts[2]);
+                }
+                break;
+            case "TYPING":
+                if (requireArgs(parts, 2, "TYPING <user|#group> [on|off]")) {
+                    boolean group = parts[1].startsWith("#");
+                    boolean typing = parts.length < 3 || !parts[2].trim().equalsIgnoreCase("off");
+                    serverActor.tell(new TypingEvent(username, group ? null : parts[1],
+                            group ? parts[1].substring(1) : null, typing), getSelf());
+                }
+                break;
+            default:
+                connection.send("ERR unknown command " + command);
+        }
+    }
+
+    private void requestRange(String conversation, String args) {
+        String[] bounds = args.trim().split("\\s+");
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime from = ServerActor.GetHistoryRange.parseBound(bounds[0], now);
+        LocalDateTime to = bounds.length > 1 ? ServerActor.GetHistoryRange.parseBound(bounds[1], now) : now;
+        if (from == null || to == null) {
+            connection.send("ERR bad time, use 30s, 10m, 2h, 1d, now or an ISO date-time");
+            return;
+        }
+
+        boolean group = conversation.startsWith("#");
+        serverActor.tell(new ServerActor.GetHistoryRange(username, group ? null : conversation,
+                group ? conversation.substring(1) : null, from, to), getSelf());
+    }
+
+    private void startBatch(String count) {
+        try {
+            batchRemaining = Integer.parseInt(count);
+        } catch (NumberFormatException e) {
+            batchRemaining = 0;
+        }
+        if (batchRemaining <= 0) {
+            batchRemaining = 0;
+            connection.send("ERR usage: BATCH <count>");
+        } else if (batchRemaining > maxBatchSize) {
+            // Refused before collecting, the lines would otherwise pile up in memory
+            batchRemaining = 0;
+            connection.send("ERR a batch holds at most " + maxBatchSize + " messages");
+        }
+    }
+
+    private void collectBatchLine(String text) {
+        String[] parts = text.split("\\s+", 2);
+        String content = parts.length > 1 ? parts[1] : "";
+        batch.add(parts[0].startsWith("#") ?
+                new ServerActor.SendMessage(username, null, content, Message.MessageType.GROUP, parts[0].substring(1)) :
+                new ServerActor.SendMessage(username, parts[0], content, Message.MessageType.DIRECT, null));
+        if (--batchRemaining == 0) {
+            serverActor.tell(new ServerActor.SendMessageBatch(username, batch), getSelf());
+            batch.clear();
+        }
+    }
+
+    private void scheduleMessage(String conversation, String args) {
+        String[] rest = args.trim().split("\\s+", 2);
+        Duration delay = Durations.parse(rest[0]);
+        if (delay == null || rest.length < 2) {
+            connection.send("ERR usage: SCHEDULE <user|#group> <delay> <text>");
+            return;
+        }
+
+        ServerActor.SendMessage message = conversation.startsWith("#") ?
+                new ServerActor.SendMessage(username, null, rest[1], Message.MessageType.GROUP, conversation.substring(1)) :
+                new ServerActor.SendMessage(username, conversation, rest[1], Message.MessageType.DIRECT, null);
+        serverActor.tell(new ServerActor.ScheduleMessage(message, delay.toMillis()), getSelf());
+    }
+
+    private boolean requireArgs(String[] parts, int count, String usage) {
+        if (parts.length < count) {
+            connection.send("ERR usage: " + usage);
+            return false;
+        }
+        return true;
+    }
+
+    private void sendMessageLine(Message message) {
+        String time = message.getTimestamp().format(TIME_FORMAT);
+        switch (message.getType()) {
+            case GROUP:
+                connection.send(String.format("GROUP %s %s %s %s", time, message.getTargetGroup(),
+                        message.getSender(), message.getContent()));
+                break;
+            case SYSTEM:
+                connection.send(String.format("SYSTEM %s %s", time, message.getContent()));
+                break;
+            default:
+                connection.send(String.format("MSG %s %s %s", time, message.getSender(), message.getContent()));
+        }
+    }
+
+    private void sendDeltaLine(MessageDelta delta) {
+        String prefix = String.format("%s %s %s %d", delta.getKind(), delta.getUser(),
+                delta.conversationFor(username), delta.getMessageId());
+        switch (delta.getKind()) {
+            case EDIT:
+                connection.send(prefix + " " + delta.getValue());
+                break;
+            case REACT:
+                connection.send(prefix + " " + (delta.getValue() == null ? "off" : delta.getValue()));
+                break;
+            default:
+                connection.send(prefix);
+        }
+    }
+
+    /**
+     * Sends a range page by page, asking for the next one after each, with one OK at the end.
+     */
+    private void sendRange(ServerActor.HistoryRange range) {
+        if (range.isFirstPage()) {
+            rangeSent = 0;
+        }
+        range.getMessages().forEach(this::sendMessageLine);
+        rangeSent += range.getMessages().size();
+        if (range.hasMore()) {
+            serverActor.tell(range.getNext(), getSelf());
+        } else {
+            connection.send("OK HISTORY " + rangeSent);
+        }
+    }
+
+    private void sendHistory(List<Message> messages) {
+        for (Message message : messages) {
+            sendMessageLine(message);
+        }
+        connection.send("OK HISTORY " + messages.size());
+    }
+}
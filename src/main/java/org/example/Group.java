@@ -2,10 +2,7 @@
 package org.example;
 
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
 
 public class Group implements Serializable {
     private static final long serialVersionUID = 1L;
@@ -13,6 +10,11 @@ public class Group implements Serializable {
     private final String admin;
     private final Set<String> members;
     private final Set<String> pendingInvites;
+    // Bumped on every membership change so clients can tell when their view is stale
+    private long version = 0;
+    // Sorted member snapshot used for paging, rebuilt lazily after membership changes
+    private transient List<String> sortedMembers;
+    private transient long sortedVersion = -1;
 
     public Group(String name, String admin) {
         this.name = name;
@@ -26,9 +28,12 @@ public class Group implements Serializable {
     public String getAdmin() { return admin; }
     public Set<String> getMembers() { return new HashSet<>(members); }
     public Set<String> getPendingInvites() { return new HashSet<>(pendingInvites); }
+    public long getVersion() { return version; }
 
     public void addMember(String username) {
-        members.add(username);
+        if (members.add(username)) {
+            version++;
+        }
         pendingInvites.remove(username);
     }
 
@@ -48,7 +53,9 @@ public class Group implements Serializable {
 
     // Add missing method
     public void removeMember(String username) {
-        members.remove(username);
+        if (members.remove(username)) {
+            version++;
+        }
     }
 
     // Add member count method
@@ -56,14 +63,28 @@ public class Group implements Serializable {
         return members.size();
     }
 
-    // Add message persistence
-    private List<Message> messageHistory = new ArrayList<>();
-
-    public void addMessage(Message message) {
-        messageHistory.add(message);
+    /**
+     * Rough heap taken by the member and invite sets.
+     */
+    public long estimateBytes() {
+        long bytes = 128;
+        for (String member : members) {
+            bytes += 48 + 2L * member.length();
+        }
+        for (String invite : pendingInvites) {
+            bytes += 48 + 2L * invite.length();
+        }
+        return bytes;
     }
 
-    public List<Message> getMessageHistory() {
-        return new ArrayList<>(messageHistory);
+    public List<String> getMembersPage(int offset, int limit) {
+        if (sortedMembers == null || sortedVersion != version) {
+            sortedMembers = new ArrayList<>(members);
+            Collections.sort(sortedMembers);
+            sortedVersion = version;
+        }
+        int from = Math.max(0, Math.min(offset, sortedMembers.size()));
+        int to = Math.min(sortedMembers.size(), from + Math.max(0, limit));
+        return new ArrayList<>(sortedMembers.subList(from, to));
     }
 }
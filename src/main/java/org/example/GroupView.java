@@ -0,0 +1,33 @@
+// GroupView.java
+package org.example;
+
+import java.io.Serializable;
+
+/**
+ * Immutable summary of a group sent to clients in place of the full Group.
+ * Its size does not depend on the number of members; the member list itself
+ * is only sent when a client asks for it.
+ */
+public final class GroupView implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final String name;
+    private final String admin;
+    private final int memberCount;
+    private final long version;
+
+    public GroupView(String name, String admin, int memberCount, long version) {
+        this.name = name;
+        this.admin = admin;
+        this.memberCount = memberCount;
+        this.version = version;
+    }
+
+    public static GroupView of(Group group) {
+        return new GroupView(group.getName(), group.getAdmin(), group.getMemberCount(), group.getVersion());
+    }
+
+    public String getName() { return name; }
+    public String getAdmin() { return admin; }
+    public int getMemberCount() { return memberCount; }
+    public long getVersion() { return version; }
+}
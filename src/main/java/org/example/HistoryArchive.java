@@ -0,0 +1,280 @@
+// HistoryArchive.java
+package org.example;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+
+/**
+ * Streaming backup format for groups and message history.
+ *
+ * The file starts with the magic bytes CHATARCH and a format version, followed
+ * by chunks that each start with a type byte:
+ * GROUP and CONVERSATION chunks carry a length-prefixed header, BLOCK chunks
+ * carry the block metadata and the raw bytes of one history block, END closes
+ * the file. Blocks use the same encoding as the cold tier, so exporting copies
+ * cold block files channel to channel and importing writes them straight back
+ * into the cold directory, without decoding any message on either side. Memory
+ * use stays at one hot window or one header at a time, whatever the archive size.
+ */
+public final class HistoryArchive {
+    private static final byte[] MAGIC = "CHATARCH".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final byte END = 0;
+    private static final byte GROUP = 1;
+    private static final byte CONVERSATION = 2;
+    private static final byte BLOCK = 3;
+    // type + first (seconds, nanos) + last (seconds, nanos) + count + max id + length
+    private static final int BLOCK_HEADER_BYTES = 1 + 12 + 12 + 4 + 8 + 4;
+
+    private HistoryArchive() {
+    }
+
+    /**
+     * Receives the contents of an archive while it is being read.
+     */
+    interface Visitor {
+        void onGroup(String name, String admin, List<String> members, List<String> invites);
+        void onConversation(String key, Duration ttl, List<HistoryStore.ColdBlock> blocks);
+    }
+
+    public static final class Summary {
+        private final int groups;
+        private final int conversations;
+        private final long blocks;
+        private final long messages;
+        private final long bytes;
+
+        Summary(int groups, int conversations, long blocks, long messages, long bytes) {
+            this.groups = groups;
+            this.conversations = conversations;
+            this.blocks = blocks;
+            this.messages = messages;
+            this.bytes = bytes;
+        }
+
+        public int getGroups() { return groups; }
+        public int getConversations() { return conversations; }
+        public long getBlocks() { return blocks; }
+        public long getMessages() { return messages; }
+        public long getBytes() { return bytes; }
+    }
+
+    static Summary export(Path target, HistoryStore history, Collection<Group> groups,
+                          Map<String, Duration> ttls, int hotChunkSize) throws IOException {
+        int conversationCount = 0;
+        long blockCount = 0;
+        long messageCount = 0;
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer start = ByteBuffer.allocate(MAGIC.length + 4);
+            start.put(MAGIC).putInt(VERSION).flip();
+            writeFully(out, start);
+
+            for (Group group : groups) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream data = new DataOutputStream(bytes);
+                data.writeUTF(group.getName());
+                data.writeUTF(group.getAdmin());
+                writeNames(data, group.getMembers());
+                writeNames(data, group.getPendingInvites());
+                writeChunk(out, GROUP, bytes.toByteArray());
+            }
+
+            for (String key : history.keys()) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream data = new DataOutputStream(bytes);
+                data.writeUTF(key);
+                Duration ttl = ttls.get(key);
+                data.writeLong(ttl == null ? 0 : ttl.toMillis());
+                writeChunk(out, CONVERSATION, bytes.toByteArray());
+                conversationCount++;
+
+                for (HistoryStore.ColdBlock block : history.coldBlocks(key)) {
+                    if (history.isChanged(key, block)) {
+                        // Edited or reacted to since it was written: store the current versions instead of the file
+                        List<Message> messages = history.readMessages(key, block);
+                        if (!messages.isEmpty()) {
+                            writeMessages(out, messages);
+                            blockCount++;
+                            messageCount += messages.size();
+                        }
+                        continue;
+                    }
+                    try (FileChannel in = FileChannel.open(block.getFile(), StandardOpenOption.READ)) {
+                        long size = in.size();
+                        writeBlockHeader(out, block.getFirst(), block.getLast(), block.getCount(), block.getMaxId(), size);
+                        long copied = 0;
+                        while (copied < size) {
+                            copied += in.transferTo(copied, size - copied, out);
+                        }
+                    }
+                    blockCount++;
+                    messageCount += block.getCount();
+                }
+
+                List<Message> hot = history.hotMessages(key);
+                for (int from = 0; from < hot.size(); from += hotChunkSize) {
+                    List<Message> chunk = hot.subList(from, Math.min(hot.size(), from + hotChunkSize));
+                    writeMessages(out, chunk);
+                    blockCount++;
+                    messageCount += chunk.size();
+                }
+            }
+
+            writeFully(out, ByteBuffer.wrap(new byte[]{END}));
+            return new Summary(groups.size(), conversationCount, blockCount, messageCount, out.size());
+        }
+    }
+
+    /**
+     * Reads an archive, copying every block into a new file of the history's cold
+     * directory. Each conversation is handed to the visitor once all its blocks
+     * are on disk.
+     */
+    static Summary read(Path source, HistoryStore history, Visitor visitor) throws IOException {
+        int groupCount = 0;
+        int conversationCount = 0;
+        long blockCount = 0;
+        long messageCount = 0;
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            ByteBuffer start = readFully(in, MAGIC.length + 4);
+            byte[] magic = new byte[MAGIC.length];
+            start.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a chat archive: " + source);
+            }
+            int version = start.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported archive version " + version);
+            }
+
+            String key = null;
+            Duration ttl = null;
+            List<HistoryStore.ColdBlock> blocks = new ArrayList<>();
+            while (true) {
+                byte type = readFully(in, 1).get();
+                if (type == BLOCK) {
+                    if (key == null) {
+                        throw new IOException("Block outside of a conversation at offset " + in.position());
+                    }
+                    ByteBuffer header = readFully(in, BLOCK_HEADER_BYTES - 1);
+                    LocalDateTime first = LocalDateTime.ofEpochSecond(header.getLong(), header.getInt(), ZoneOffset.UTC);
+                    LocalDateTime last = LocalDateTime.ofEpochSecond(header.getLong(), header.getInt(), ZoneOffset.UTC);
+                    int count = header.getInt();
+                    long maxId = header.getLong();
+                    int length = header.getInt();
+                    Path file = history.newBlockFile();
+                    try (FileChannel blockOut = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                            StandardOpenOption.WRITE)) {
+                        // Reads from the archive's current position and advances it
+                        long copied = 0;
+                        while (copied < length) {
+                            long transferred = blockOut.transferFrom(in, copied, length - copied);
+                            if (transferred <= 0) {
+                                throw new EOFException("Archive ends inside a block");
+                            }
+                            copied += transferred;
+                        }
+                    }
+                    blocks.add(new HistoryStore.ColdBlock(file, first, last, count, maxId));
+                    blockCount++;
+                    messageCount += count;
+                    continue;
+                }
+
+                if (key != null) {
+                    visitor.onConversation(key, ttl, blocks);
+                    conversationCount++;
+                    key = null;
+                    blocks = new ArrayList<>();
+                }
+                if (type == END) {
+                    return new Summary(groupCount, conversationCount, blockCount, messageCount, in.position());
+                }
+
+                DataInputStream data = new DataInputStream(new ByteArrayInputStream(
+                        readFully(in, readFully(in, 4).getInt()).array()));
+                if (type == GROUP) {
+                    String name = data.readUTF();
+                    String admin = data.readUTF();
+                    visitor.onGroup(name, admin, readNames(data), readNames(data));
+                    groupCount++;
+                } else if (type == CONVERSATION) {
+                    key = data.readUTF();
+                    long ttlMillis = data.readLong();
+                    ttl = ttlMillis > 0 ? Duration.ofMillis(ttlMillis) : null;
+                } else {
+                    throw new IOException("Unknown chunk type " + type + " at offset " + in.position());
+                }
+            }
+        }
+    }
+
+    private static void writeChunk(FileChannel out, byte type, byte[] payload) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(5 + payload.length);
+        buffer.put(type).putInt(payload.length).put(payload).flip();
+        writeFully(out, buffer);
+    }
+
+    private static void writeBlockHeader(FileChannel out, LocalDateTime first, LocalDateTime last,
+                                         int count, long maxId, long length) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_BYTES);
+        header.put(BLOCK)
+                .putLong(first.toEpochSecond(ZoneOffset.UTC)).putInt(first.getNano())
+                .putLong(last.toEpochSecond(ZoneOffset.UTC)).putInt(last.getNano())
+                .putInt(count)
+                .putLong(maxId)
+                .putInt(Math.toIntExact(length))
+                .flip();
+        writeFully(out, header);
+    }
+
+    private static void writeMessages(FileChannel out, List<Message> messages) throws IOException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        HistoryStore.encodeBlock(messages, encoded);
+        writeBlockHeader(out, messages.get(0).getTimestamp(), messages.get(messages.size() - 1).getTimestamp(),
+                messages.size(), HistoryStore.maxId(messages), encoded.size());
+        writeFully(out, ByteBuffer.wrap(encoded.toByteArray()));
+    }
+
+    private static void writeNames(DataOutputStream data, Set<String> names) throws IOException {
+        data.writeInt(names.size());
+        for (String name : new TreeSet<>(names)) {
+            data.writeUTF(name);
+        }
+    }
+
+    private static List<String> readNames(DataInputStream data) throws IOException {
+        int count = data.readInt();
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(data.readUTF());
+        }
+        return names;
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel in, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) {
+                throw new EOFException("Archive ends unexpectedly");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,965 @@
+// HistoryStore.java
+package org.example;
+
+import akka.event.LoggingAdapter;
+import com.typesafe.config.Config;
+
+import java.io.*;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Message history with tiered retention. The newest messages of every conversation
+ * stay in memory, older ones are written to disk as compressed blocks and read back
+ * only when a history request needs them. Blocks older than the TTL are deleted.
+ *
+ * Edits, deletions and reactions never rewrite a block or a hot message. The
+ * changed version of a message is kept next to the conversation as an overlay
+ * and replaces the stored one whenever messages are read.
+ *
+ * Every conversation keeps an estimate of the memory its hot messages take. A
+ * conversation over its quota, or all of them together over the total quota,
+ * moves its oldest messages to disk early rather than waiting for the hot window.
+ *
+ * A mirror store never writes or deletes blocks itself. It follows a primary
+ * store through the events reported to the primary's Listener and shares its
+ * block files read-only. Mirrors apply those events later than the primary, so
+ * while a listener is set the primary only retires blocks it no longer needs;
+ * the owner deletes them with deleteBlocks once every mirror has caught up.
+ * A block that cannot be read is an error, never an empty result.
+ */
+public class HistoryStore {
+    private final LoggingAdapter log;
+    private final boolean primary;
+    private Listener listener = NO_LISTENER;
+    private final Map<String, Conversation> conversations = new HashMap<>();
+    private final int hotMaxMessages;
+    private final long hotMaxAgeMillis;
+    private final int blockSize;
+    private final long ttlMillis;
+    private final Path coldDir;
+    private long nextBlockId = 0;
+    // Files of replaced blocks that mirrors may still read, see takeRetired
+    private final List<Path> retired = new ArrayList<>();
+    // Estimated memory quotas for hot messages, 0 when off
+    private final long conversationQuota;
+    private final long totalQuota;
+    private long hotBytes = 0;
+    private long quotaSpills = 0;
+    // Holds hot messages outside the Java heap when hot-storage = off-heap, null otherwise
+    private final MessageArena arena;
+
+    private static final String BLOCK_SUFFIX = ".blk";
+    // Estimated cost of a hot message besides its characters: the Message with its
+    // timestamp and string headers on the heap, or the arena record header and handle
+    private static final int HEAP_MESSAGE_BYTES = 240;
+    private static final int ARENA_MESSAGE_BYTES = 41;
+    private static final Listener NO_LISTENER = new Listener() {
+        @Override
+        public void onSpilled(String key, ColdBlock block, int count) { }
+
+        @Override
+        public void onCompacted(String key, List<ColdBlock> cold, int hotDropped) { }
+
+        @Override
+        public void onRemoved(String key, Set<Long> ids, List<ColdBlock> cold) { }
+
+        @Override
+        public void onRestored(String key, List<ColdBlock> cold) { }
+    };
+
+    /**
+     * Notified when the primary moves messages between tiers, so mirrors can follow.
+     */
+    interface Listener {
+        void onSpilled(String key, ColdBlock block, int count);
+        void onCompacted(String key, List<ColdBlock> cold, int hotDropped);
+        void onRemoved(String key, Set<Long> ids, List<ColdBlock> cold);
+        void onRestored(String key, List<ColdBlock> cold);
+    }
+
+    static class ColdBlock {
+        private final Path file;
+        private final LocalDateTime first;
+        private final LocalDateTime last;
+        private final int count;
+        private final long maxId;
+
+        ColdBlock(Path file, LocalDateTime first, LocalDateTime last, int count, long maxId) {
+            this.file = file;
+            this.first = first;
+            this.last = last;
+            this.count = count;
+            this.maxId = maxId;
+        }
+
+        Path getFile() { return file; }
+        LocalDateTime getFirst() { return first; }
+        LocalDateTime getLast() { return last; }
+        int getCount() { return count; }
+        long getMaxId() { return maxId; }
+    }
+
+    /**
+     * Memory taken by one conversation. Bytes are estimates; cold messages are on disk.
+     */
+    static class Usage {
+        private final String key;
+        private final int hotMessages;
+        private final int coldMessages;
+        private final long hotBytes;
+        private final int changedMessages;
+        private final long changeBytes;
+
+        Usage(String key, int hotMessages, int coldMessages, long hotBytes, int changedMessages, long changeBytes) {
+            this.key = key;
+            this.hotMessages = hotMessages;
+            this.coldMessages = coldMessages;
+            this.hotBytes = hotBytes;
+            this.changedMessages = changedMessages;
+            this.changeBytes = changeBytes;
+        }
+
+        String getKey() { return key; }
+        int getHotMessages() { return hotMessages; }
+        int getColdMessages() { return coldMessages; }
+        long getHotBytes() { return hotBytes; }
+        int getChangedMessages() { return changedMessages; }
+        long getChangeBytes() { return changeBytes; }
+    }
+
+    static class Conversation {
+        private final List<ColdBlock> cold = new ArrayList<>();
+        private final List<Message> hot;
+        // Message id -> current version, for messages changed after they were stored
+        private final TreeMap<Long, Message> changes = new TreeMap<>();
+        private long hotBytes = 0;
+
+        Conversation(List<Message> hot) {
+            this.hot = hot;
+        }
+    }
+
+    public HistoryStore(Config config, LoggingAdapter log) {
+        this(config, log, true);
+    }
+
+    public static HistoryStore mirror(Config config, LoggingAdapter log) {
+        return new HistoryStore(config, log, false);
+    }
+
+    private HistoryStore(Config config, LoggingAdapter log, boolean primary) {
+        this.log = log;
+        this.primary = primary;
+        this.hotMaxMessages = config.getInt("hot-max-messages");
+        this.hotMaxAgeMillis = config.getDuration("hot-max-age").toMillis();
+        this.blockSize = config.getInt("block-size");
+        this.ttlMillis = config.getDuration("ttl").toMillis();
+        this.coldDir = Paths.get(config.getString("cold-dir"));
+        this.arena = config.getString("hot-storage").equals("off-heap") ?
+                new MessageArena((int) config.getBytes("arena-chunk-size").longValue()) : null;
+        this.conversationQuota = config.getBytes("conversation-quota");
+        this.totalQuota = config.getBytes("total-quota");
+        if (primary) {
+            prepareColdDir();
+        }
+    }
+
+    private Conversation newConversation() {
+        return new Conversation(arena == null ? new ArrayList<>() : new ArenaMessageList(arena));
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void append(String key, Message message) {
+        appendAll(key, Collections.singletonList(message));
+    }
+
+    /**
+     * Appends several messages to one conversation, spilling at most once per call.
+     */
+    public void appendAll(String key, List<Message> messages) {
+        Conversation conversation = conversations.computeIfAbsent(key, k -> newConversation());
+        addHot(conversation, messages);
+        for (Message message : messages) {
+            // Copied history may already carry changes, which off-heap storage does not keep
+            if (message.isChanged()) {
+                conversation.changes.put(message.getId(), message);
+            }
+        }
+        if (!primary) {
+            return;
+        }
+        // Spill whole blocks so the hot window stays between max and max + blockSize
+        while (conversation.hot.size() >= hotMaxMessages + blockSize) {
+            if (!spill(key, conversation, blockSize)) {
+                break;
+            }
+        }
+        // A conversation over its quota moves its oldest messages to disk early
+        while (conversationQuota > 0 && conversation.hotBytes > conversationQuota && !conversation.hot.isEmpty()) {
+            if (!spill(key, conversation, Math.min(blockSize, conversation.hot.size()))) {
+                break;
+            }
+            quotaSpills++;
+        }
+        if (totalQuota > 0 && hotBytes > totalQuota) {
+            enforceTotalQuota();
+        }
+    }
+
+    /**
+     * Moves the oldest messages of the largest conversations to disk until hot messages
+     * take less than 90% of the total quota, so the next appends do not land here again.
+     */
+    private void enforceTotalQuota() {
+        long target = totalQuota / 10 * 9;
+        PriorityQueue<Map.Entry<String, Conversation>> largest = new PriorityQueue<>(
+                (a, b) -> Long.compare(b.getValue().hotBytes, a.getValue().hotBytes));
+        largest.addAll(conversations.entrySet());
+        int moved = 0;
+        while (hotBytes > target && !largest.isEmpty()) {
+            Map.Entry<String, Conversation> entry = largest.poll();
+            int count = Math.min(blockSize, entry.getValue().hot.size());
+            if (count == 0 || !spill(entry.getKey(), entry.getValue(), count)) {
+                continue;
+            }
+            moved += count;
+            quotaSpills++;
+            largest.add(entry);
+        }
+        log.warning("Hot history passed its quota of {} bytes, moved {} message(s) to disk", totalQuota, moved);
+    }
+
+    /**
+     * Mirror side of a spill: the oldest hot messages now live in the given block.
+     */
+    public void applySpill(String key, ColdBlock block, int count) {
+        Conversation conversation = conversations.computeIfAbsent(key, k -> newConversation());
+        dropOldestHot(conversation, count);
+        conversation.cold.add(block);
+    }
+
+    /**
+     * Mirror side of a compaction: replaces the cold blocks and drops expired hot messages.
+     */
+    public void applyCompaction(String key, List<ColdBlock> cold, int hotDropped) {
+        Conversation conversation = conversations.get(key);
+        if (conversation == null) {
+            return;
+        }
+        conversation.cold.clear();
+        conversation.cold.addAll(cold);
+        dropOldestHot(conversation, hotDropped);
+        pruneChanges(conversation);
+        if (conversation.cold.isEmpty() && conversation.hot.isEmpty()) {
+            conversations.remove(key);
+        }
+    }
+
+    /**
+     * Mirror side of removeMessages: replaces the cold blocks and drops the messages from the hot window.
+     */
+    public void applyRemoval(String key, Set<Long> ids, List<ColdBlock> cold) {
+        Conversation conversation = conversations.get(key);
+        if (conversation == null) {
+            return;
+        }
+        conversation.cold.clear();
+        conversation.cold.addAll(cold);
+        removeHot(conversation, ids);
+        conversation.changes.keySet().removeAll(ids);
+        if (conversation.cold.isEmpty() && conversation.hot.isEmpty()) {
+            conversations.remove(key);
+        }
+    }
+
+    /**
+     * Deletes individual messages, given as id -> timestamp: found by id and located
+     * by timestamp. Every cold block that holds one of them is rewritten once per
+     * call, so callers should remove messages in batches rather than one at a time.
+     */
+    public void removeMessages(String key, Map<Long, LocalDateTime> messages) {
+        Conversation conversation = conversations.get(key);
+        if (conversation == null || messages.isEmpty()) {
+            return;
+        }
+
+        Set<Long> ids = new HashSet<>(messages.keySet());
+        Set<Integer> affected = new TreeSet<>();
+        for (LocalDateTime timestamp : messages.values()) {
+            int index = firstBlockEndingAfter(conversation.cold, timestamp);
+            if (index < conversation.cold.size() && !conversation.cold.get(index).first.isAfter(timestamp)) {
+                affected.add(index);
+            }
+        }
+
+        boolean coldChanged = false;
+        if (!affected.isEmpty()) {
+            List<ColdBlock> kept = new ArrayList<>();
+            for (int i = 0; i < conversation.cold.size(); i++) {
+                ColdBlock block = conversation.cold.get(i);
+                if (!affected.contains(i)) {
+                    kept.add(block);
+                    continue;
+                }
+                List<Message> survivors = readBlockForRewrite(block);
+                if (survivors == null || !survivors.removeIf(message -> ids.contains(message.getId()))) {
+                    kept.add(block);
+                    continue;
+                }
+                retire(block);
+                ColdBlock rewritten = writeBlock(survivors);
+                if (rewritten != null) {
+                    kept.add(rewritten);
+                }
+                coldChanged = true;
+            }
+            conversation.cold.clear();
+            conversation.cold.addAll(kept);
+        }
+
+        boolean hotChanged = removeHot(conversation, ids);
+        conversation.changes.keySet().removeAll(ids);
+        if (coldChanged || hotChanged) {
+            listener.onRemoved(key, ids, new ArrayList<>(conversation.cold));
+        }
+        if (conversation.cold.isEmpty() && conversation.hot.isEmpty()) {
+            conversations.remove(key);
+        }
+    }
+
+    /**
+     * Mirror side of restore: the conversation now consists of exactly these blocks.
+     */
+    public void applyRestore(String key, List<ColdBlock> cold) {
+        Conversation conversation = newConversation();
+        conversation.cold.addAll(cold);
+        Conversation replaced = conversations.put(key, conversation);
+        if (replaced != null) {
+            clearHot(replaced);
+        }
+    }
+
+    // Bulk access for HistoryArchive. Callers must not hold on to the lists across messages.
+
+    Set<String> keys() {
+        return new TreeSet<>(conversations.keySet());
+    }
+
+    List<ColdBlock> coldBlocks(String key) {
+        Conversation conversation = conversations.get(key);
+        return conversation == null ? Collections.emptyList() : new ArrayList<>(conversation.cold);
+    }
+
+    List<Message> hotMessages(String key) {
+        Conversation conversation = conversations.get(key);
+        return conversation == null ? Collections.emptyList() : withChanges(conversation, conversation.hot);
+    }
+
+    /**
+     * Reads a cold block of the conversation with changes applied.
+     */
+    List<Message> readMessages(String key, ColdBlock block) {
+        Conversation conversation = conversations.get(key);
+        List<Message> messages = readBlock(block);
+        return conversation == null ? messages : withChanges(conversation, messages);
+    }
+
+    /**
+     * True if a message in the block was changed, so the block file alone is out of date.
+     */
+    boolean isChanged(String key, ColdBlock block) {
+        Conversation conversation = conversations.get(key);
+        if (conversation == null || conversation.changes.isEmpty()) {
+            return false;
+        }
+        int index = conversation.cold.indexOf(block);
+        // A block holds the ids after the previous block's maxId
+        long after = index > 0 ? conversation.cold.get(index - 1).maxId : Long.MIN_VALUE;
+        return !conversation.changes.subMap(after, false, block.maxId, true).isEmpty();
+    }
+
+    Path newBlockFile() {
+        return coldDir.resolve("block-" + (nextBlockId++) + BLOCK_SUFFIX);
+    }
+
+    /**
+     * Replaces a conversation with the given blocks, which must already be in the
+     * cold directory. Blocks of the replaced conversation are deleted.
+     */
+    void restore(String key, List<ColdBlock> cold) {
+        remove(key);
+        Conversation conversation = newConversation();
+        conversation.cold.addAll(cold);
+        conversations.put(key, conversation);
+        listener.onRestored(key, new ArrayList<>(cold));
+    }
+
+    /**
+     * Returns the messages with from <= timestamp < to, oldest first. Messages are
+     * appended in timestamp order, so both tiers are searched with binary search
+     * and only the cold blocks overlapping the range are read from disk.
+     */
+    public List<Message> getRange(String key, LocalDateTime from, LocalDateTime to) {
+        return getRange(key, from, 0, to, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Like getRange, but returns at most limit messages and skips those stamped
+     * exactly from with an id up to afterId, so a page can continue after the
+     * last message of the previous one.
+     */
+    public List<Message> getRange(String key, LocalDateTime from, long afterId, LocalDateTime to, int limit) {
+        Conversation conversation = conversations.get(key);
+        List<Message> result = new ArrayList<>();
+        if (conversation == null || !from.isBefore(to) || limit <= 0) {
+            return result;
+        }
+
+        for (int i = firstBlockEndingAfter(conversation.cold, from); i < conversation.cold.size(); i++) {
+            ColdBlock block = conversation.cold.get(i);
+            if (!block.first.isBefore(to) || result.size() >= limit) {
+                return withChanges(conversation, result);
+            }
+            collectRange(readBlock(block), from, afterId, to, limit, result);
+        }
+        collectRange(conversation.hot, from, afterId, to, limit, result);
+        return withChanges(conversation, result);
+    }
+
+    private static void collectRange(List<Message> messages, LocalDateTime from, long afterId, LocalDateTime to,
+                                     int limit, List<Message> result) {
+        int end = countOlderThan(messages, to);
+        for (int i = countOlderThan(messages, from); i < end && result.size() < limit; i++) {
+            Message message = messages.get(i);
+            if (message.getId() > afterId || message.getTimestamp().isAfter(from)) {
+                result.add(message);
+            }
+        }
+    }
+
+    /**
+     * Returns the newest messages with an id below beforeId, at most limit of them,
+     * oldest first. Cold blocks are read newest first and only until the page is
+     * full, so a page costs the same however long the conversation is.
+     */
+    public List<Message> getLatest(String key, long beforeId, int limit) {
+        Conversation conversation = conversations.get(key);
+        Deque<Message> page = new ArrayDeque<>();
+        if (conversation == null || limit <= 0) {
+            return new ArrayList<>(page);
+        }
+
+        collectNewest(conversation.hot, beforeId, limit, page);
+        for (int i = conversation.cold.size() - 1; i >= 0 && page.size() < limit; i--) {
+            // A block holds the ids after the previous block's maxId, skip it while they are all too new
+            if (i > 0 && conversation.cold.get(i - 1).maxId >= beforeId - 1) {
+                continue;
+            }
+            collectNewest(readBlock(conversation.cold.get(i)), beforeId, limit, page);
+        }
+        return withChanges(conversation, new ArrayList<>(page));
+    }
+
+    /**
+     * Returns the current version of a message, or null if the conversation has no such message.
+     */
+    public Message find(String key, long id) {
+        Conversation conversation = conversations.get(key);
+        if (conversation == null) {
+            return null;
+        }
+        Message changed = conversation.changes.get(id);
+        if (changed != null) {
+            return changed;
+        }
+
+        Message message = findById(conversation.hot, id);
+        if (message != null) {
+            return message;
+        }
+        int index = firstBlockWithIdFrom(conversation.cold, id);
+        return index < conversation.cold.size() ? findById(readBlock(conversation.cold.get(index)), id) : null;
+    }
+
+    /**
+     * Records the changed version of a stored message. Mirrors apply the same call.
+     */
+    public void change(String key, Message changed) {
+        Conversation conversation = conversations.get(key);
+        if (conversation != null) {
+            conversation.changes.put(changed.getId(), changed);
+        }
+    }
+
+    private static List<Message> withChanges(Conversation conversation, List<Message> messages) {
+        List<Message> result = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            Message changed = conversation.changes.isEmpty() ? null : conversation.changes.get(message.getId());
+            result.add(changed != null ? changed : message);
+        }
+        return result;
+    }
+
+    /**
+     * Compaction drops the oldest messages, the changes made to them go as well.
+     */
+    private static void pruneChanges(Conversation conversation) {
+        if (conversation.changes.isEmpty()) {
+            return;
+        }
+        LocalDateTime oldest = !conversation.cold.isEmpty() ? conversation.cold.get(0).first :
+                !conversation.hot.isEmpty() ? timestampAt(conversation.hot, 0) : null;
+        conversation.changes.values().removeIf(message -> oldest == null || message.getTimestamp().isBefore(oldest));
+    }
+
+    private static void collectNewest(List<Message> messages, long beforeId, int limit, Deque<Message> page) {
+        for (int i = messages.size() - 1; i >= 0 && page.size() < limit; i--) {
+            Message message = messages.get(i);
+            if (message.getId() < beforeId) {
+                page.addFirst(message);
+            }
+        }
+    }
+
+    public void remove(String key) {
+        Conversation conversation = conversations.remove(key);
+        if (conversation != null) {
+            // Releases the arena records of off-heap conversations
+            clearHot(conversation);
+        }
+        if (conversation != null && primary) {
+            conversation.cold.forEach(this::retire);
+        }
+    }
+
+    /**
+     * Moves messages older than the hot window to disk and compacts away
+     * everything past the TTL. Called periodically by the server.
+     */
+    public void enforceRetention(LocalDateTime now) {
+        LocalDateTime hotCutoff = now.minusNanos(hotMaxAgeMillis * 1_000_000L);
+        LocalDateTime ttlCutoff = ttlMillis > 0 ? now.minusNanos(ttlMillis * 1_000_000L) : null;
+
+        Iterator<Map.Entry<String, Conversation>> it = conversations.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Conversation> entry = it.next();
+            Conversation conversation = entry.getValue();
+            if (ttlCutoff != null) {
+                compact(entry.getKey(), conversation, ttlCutoff);
+            }
+
+            int expiredHot = countOlderThan(conversation.hot, hotCutoff);
+            while (expiredHot > 0) {
+                int size = Math.min(expiredHot, blockSize);
+                boolean spilled = size < blockSize ?
+                        spillPartial(entry.getKey(), conversation, size) :
+                        spill(entry.getKey(), conversation, size);
+                if (!spilled) {
+                    break;
+                }
+                expiredHot -= size;
+            }
+
+            if (conversation.cold.isEmpty() && conversation.hot.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    public int hotMessageCount() {
+        int total = 0;
+        for (Conversation conversation : conversations.values()) {
+            total += conversation.hot.size();
+        }
+        return total;
+    }
+
+    public int coldMessageCount() {
+        int total = 0;
+        for (Conversation conversation : conversations.values()) {
+            for (ColdBlock block : conversation.cold) {
+                total += block.count;
+            }
+        }
+        return total;
+    }
+
+    public int coldBlockCount() {
+        int total = 0;
+        for (Conversation conversation : conversations.values()) {
+            total += conversation.cold.size();
+        }
+        return total;
+    }
+
+    /**
+     * Direct memory held for hot messages, 0 when they are kept on the heap.
+     */
+    public long offHeapBytes() {
+        return arena == null ? 0 : arena.getReservedBytes();
+    }
+
+    /**
+     * Estimated memory taken by hot messages, across all conversations.
+     */
+    public long hotBytes() {
+        return hotBytes;
+    }
+
+    public long getQuotaSpills() { return quotaSpills; }
+
+    List<Usage> usage() {
+        List<Usage> result = new ArrayList<>(conversations.size());
+        for (Map.Entry<String, Conversation> entry : conversations.entrySet()) {
+            Conversation conversation = entry.getValue();
+            int cold = 0;
+            for (ColdBlock block : conversation.cold) {
+                cold += block.count;
+            }
+            // Changed messages always stay on the heap
+            long changeBytes = 0;
+            for (Message message : conversation.changes.values()) {
+                changeBytes += HEAP_MESSAGE_BYTES + 2L * characters(message);
+            }
+            result.add(new Usage(entry.getKey(), conversation.hot.size(), cold, conversation.hotBytes,
+                    conversation.changes.size(), changeBytes));
+        }
+        return result;
+    }
+
+    private void addHot(Conversation conversation, List<Message> messages) {
+        conversation.hot.addAll(messages);
+        long bytes = estimateBytes(messages);
+        conversation.hotBytes += bytes;
+        hotBytes += bytes;
+    }
+
+    private void dropOldestHot(Conversation conversation, int count) {
+        List<Message> oldest = conversation.hot.subList(0, Math.min(count, conversation.hot.size()));
+        long bytes = estimateBytes(oldest);
+        oldest.clear();
+        releaseHot(conversation, bytes);
+    }
+
+    private boolean removeHot(Conversation conversation, Set<Long> ids) {
+        long[] bytes = {0};
+        boolean removed = conversation.hot.removeIf(message -> {
+            if (!ids.contains(message.getId())) {
+                return false;
+            }
+            bytes[0] += estimateBytes(message);
+            return true;
+        });
+        releaseHot(conversation, bytes[0]);
+        return removed;
+    }
+
+    private void clearHot(Conversation conversation) {
+        conversation.hot.clear();
+        releaseHot(conversation, conversation.hotBytes);
+    }
+
+    private void releaseHot(Conversation conversation, long bytes) {
+        conversation.hotBytes -= bytes;
+        hotBytes -= bytes;
+    }
+
+    private long estimateBytes(List<Message> messages) {
+        long bytes = 0;
+        for (Message message : messages) {
+            bytes += estimateBytes(message);
+        }
+        return bytes;
+    }
+
+    // Strings count two bytes per character on the heap and about one in the arena's UTF-8
+    private long estimateBytes(Message message) {
+        return arena == null ? HEAP_MESSAGE_BYTES + 2L * characters(message) : ARENA_MESSAGE_BYTES + characters(message);
+    }
+
+    private static int characters(Message message) {
+        return length(message.getSender()) + length(message.getContent()) + length(message.getTargetGroup());
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    private void compact(String key, Conversation conversation, LocalDateTime cutoff) {
+        List<ColdBlock> kept = new ArrayList<>();
+        boolean changed = false;
+        for (ColdBlock block : conversation.cold) {
+            if (block.last.isBefore(cutoff)) {
+                retire(block);
+                changed = true;
+            } else if (block.first.isBefore(cutoff)) {
+                // Partially expired: rewrite the block with the surviving messages
+                List<Message> messages = readBlockForRewrite(block);
+                if (messages == null) {
+                    kept.add(block);
+                    continue;
+                }
+                List<Message> survivors = new ArrayList<>();
+                for (Message message : messages) {
+                    if (!message.getTimestamp().isBefore(cutoff)) {
+                        survivors.add(message);
+                    }
+                }
+                retire(block);
+                ColdBlock rewritten = writeBlock(survivors);
+                if (rewritten != null) {
+                    kept.add(rewritten);
+                }
+                changed = true;
+            } else {
+                kept.add(block);
+            }
+        }
+        conversation.cold.clear();
+        conversation.cold.addAll(kept);
+
+        int expired = countOlderThan(conversation.hot, cutoff);
+        if (expired > 0) {
+            dropOldestHot(conversation, expired);
+        }
+        pruneChanges(conversation);
+        if (changed || expired > 0) {
+            listener.onCompacted(key, new ArrayList<>(kept), expired);
+        }
+    }
+
+    private boolean spill(String key, Conversation conversation, int count) {
+        List<Message> oldest = new ArrayList<>(conversation.hot.subList(0, count));
+        ColdBlock block = writeBlock(oldest);
+        if (block == null) {
+            // Keep the messages hot rather than lose them if the disk write failed
+            return false;
+        }
+        conversation.cold.add(block);
+        conversation.hot.subList(0, count).clear();
+        releaseHot(conversation, estimateBytes(oldest));
+        listener.onSpilled(key, block, count);
+        return true;
+    }
+
+    /**
+     * Spills fewer than blockSize messages. While the conversation's last block has
+     * room they are merged into it, so a quiet conversation does not leave a small
+     * file behind every maintenance run.
+     */
+    private boolean spillPartial(String key, Conversation conversation, int count) {
+        int lastIndex = conversation.cold.size() - 1;
+        ColdBlock last = lastIndex < 0 ? null : conversation.cold.get(lastIndex);
+        if (last == null || last.count + count > blockSize) {
+            return spill(key, conversation, count);
+        }
+
+        List<Message> merged = readBlockForRewrite(last);
+        if (merged == null) {
+            return spill(key, conversation, count);
+        }
+        List<Message> oldest = new ArrayList<>(conversation.hot.subList(0, count));
+        merged.addAll(oldest);
+        ColdBlock block = writeBlock(merged);
+        if (block == null) {
+            return false;
+        }
+        conversation.cold.set(lastIndex, block);
+        conversation.hot.subList(0, count).clear();
+        releaseHot(conversation, estimateBytes(oldest));
+        retire(last);
+        // Mirrors replace their blocks and drop the spilled messages, as after a compaction
+        listener.onCompacted(key, new ArrayList<>(conversation.cold), count);
+        return true;
+    }
+
+    // Both searches rely on messages being stored in timestamp order
+    private static int countOlderThan(List<Message> messages, LocalDateTime cutoff) {
+        int low = 0;
+        int high = messages.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestampAt(messages, mid).isBefore(cutoff)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static LocalDateTime timestampAt(List<Message> messages, int index) {
+        // Off-heap lists can read the timestamp without decoding the whole message
+        return messages instanceof ArenaMessageList ?
+                ((ArenaMessageList) messages).timestampAt(index) :
+                messages.get(index).getTimestamp();
+    }
+
+    // Ids grow with timestamps, so the same holds for ids
+    private static Message findById(List<Message> messages, long id) {
+        int low = 0;
+        int high = messages.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (idAt(messages, mid) < id) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low < messages.size() && idAt(messages, low) == id ? messages.get(low) : null;
+    }
+
+    private static long idAt(List<Message> messages, int index) {
+        return messages instanceof ArenaMessageList ?
+                ((ArenaMessageList) messages).idAt(index) :
+                messages.get(index).getId();
+    }
+
+    private static int firstBlockWithIdFrom(List<ColdBlock> blocks, long id) {
+        int low = 0;
+        int high = blocks.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (blocks.get(mid).maxId < id) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int firstBlockEndingAfter(List<ColdBlock> blocks, LocalDateTime from) {
+        int low = 0;
+        int high = blocks.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (blocks.get(mid).last.isBefore(from)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private ColdBlock writeBlock(List<Message> messages) {
+        if (messages.isEmpty()) {
+            return null;
+        }
+
+        Path file = newBlockFile();
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            encodeBlock(messages, out);
+        } catch (IOException e) {
+            log.error(e, "Failed to write history block {}", file);
+            return null;
+        }
+        return new ColdBlock(file, messages.get(0).getTimestamp(),
+                messages.get(messages.size() - 1).getTimestamp(), messages.size(), maxId(messages));
+    }
+
+    /**
+     * Writes messages in the on-disk block format: a gzip-compressed serialized list.
+     */
+    static void encodeBlock(List<Message> messages, OutputStream target) throws IOException {
+        ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(target));
+        out.writeObject(new ArrayList<>(messages));
+        out.close();
+    }
+
+    static long maxId(List<Message> messages) {
+        long max = 0;
+        for (Message message : messages) {
+            max = Math.max(max, message.getId());
+        }
+        return max;
+    }
+
+    /**
+     * Reads a block from disk. A missing or damaged block throws UncheckedIOException,
+     * so a history request fails instead of silently leaving out its messages.
+     */
+    @SuppressWarnings("unchecked")
+    List<Message> readBlock(ColdBlock block) {
+        try (ObjectInputStream in = new ObjectInputStream(
+                new GZIPInputStream(new BufferedInputStream(Files.newInputStream(block.file))))) {
+            return (List<Message>) in.readObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read history block " + block.file, e);
+        } catch (ClassNotFoundException e) {
+            throw new UncheckedIOException("Cannot read history block " + block.file, new IOException(e));
+        }
+    }
+
+    /**
+     * Reads a block that maintenance is about to replace, or returns null to keep it as it is.
+     */
+    private List<Message> readBlockForRewrite(ColdBlock block) {
+        try {
+            return new ArrayList<>(readBlock(block));
+        } catch (UncheckedIOException e) {
+            log.error(e, "Keeping history block {} as it is", block.file);
+            return null;
+        }
+    }
+
+    /**
+     * The block is no longer part of this store. Its file is deleted right away
+     * unless mirrors follow this store, which may still read it.
+     */
+    private void retire(ColdBlock block) {
+        if (listener == NO_LISTENER) {
+            deleteFile(block.file);
+        } else {
+            retired.add(block.file);
+        }
+    }
+
+    /**
+     * Hands over the files retired since the last call. The caller deletes them
+     * with deleteBlocks once every mirror has applied the events sent before.
+     */
+    List<Path> takeRetired() {
+        List<Path> files = new ArrayList<>(retired);
+        retired.clear();
+        return files;
+    }
+
+    void deleteBlocks(List<Path> files) {
+        files.forEach(this::deleteFile);
+    }
+
+    private void deleteFile(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warning("Failed to delete history block {}: {}", file, e.getMessage());
+        }
+    }
+
+    private void prepareColdDir() {
+        try {
+            Files.createDirectories(coldDir);
+            // Blocks left behind by a previous run are unreachable, history is rebuilt from scratch
+            try (DirectoryStream<Path> stale = Files.newDirectoryStream(coldDir, "*" + BLOCK_SUFFIX)) {
+                for (Path file : stale) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot prepare history directory " + coldDir, e);
+        }
+    }
+}
@@ -4,14 +4,24 @@ package org.example;
 import java.io.Serializable;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
 
 public class Message implements Serializable {
     private static final long serialVersionUID = 1L;
+    private final long id;  // assigned by the server when the message is stored, 0 otherwise
     private final String sender;
     private final String content;
     private final LocalDateTime timestamp;
     private final MessageType type;
     private final String targetGroup;  // null for direct messages
+    // Id the sending client gave the message, only set on the copy sent back to that client
+    private final long clientMessageId;
+    // Changes made after sending, see MessageDelta
+    private final boolean edited;
+    private final boolean deleted;
+    private final Map<String, String> reactions;  // user -> reaction, null when there are none
 
     public enum MessageType {
         DIRECT,
@@ -20,22 +30,84 @@ public class Message implements Serializable {
     }
 
     public Message(String sender, String content, MessageType type, String targetGroup) {
+        this(0, sender, content, type, targetGroup);
+    }
+
+    public Message(long id, String sender, String content, MessageType type, String targetGroup) {
+        this(id, sender, content, LocalDateTime.now(), type, targetGroup);
+    }
+
+    // Rebuilds a stored message, keeping its original timestamp
+    public Message(long id, String sender, String content, LocalDateTime timestamp, MessageType type, String targetGroup) {
+        this(id, sender, content, timestamp, type, targetGroup, 0, false, false, null);
+    }
+
+    private Message(long id, String sender, String content, LocalDateTime timestamp, MessageType type,
+                    String targetGroup, long clientMessageId, boolean edited, boolean deleted,
+                    Map<String, String> reactions) {
+        this.id = id;
         this.sender = sender;
         this.content = content;
-        this.timestamp = LocalDateTime.now();
+        this.timestamp = timestamp;
         this.type = type;
         this.targetGroup = targetGroup;
+        this.clientMessageId = clientMessageId;
+        this.edited = edited;
+        this.deleted = deleted;
+        this.reactions = reactions;
     }
 
     public Message(String sender, String content) {
         this(sender, content, MessageType.DIRECT, null);
     }
 
+    public long getId() { return id; }
     public String getSender() { return sender; }
     public String getContent() { return content; }
     public LocalDateTime getTimestamp() { return timestamp; }
     public MessageType getType() { return type; }
     public String getTargetGroup() { return targetGroup; }
+    public long getClientMessageId() { return clientMessageId; }
+    public boolean isEdited() { return edited; }
+    public boolean isDeleted() { return deleted; }
+
+    public Map<String, String> getReactions() {
+        return reactions == null ? Collections.<String, String>emptyMap() : Collections.unmodifiableMap(reactions);
+    }
+
+    /**
+     * True once the message was edited, deleted or reacted to.
+     */
+    public boolean isChanged() {
+        return edited || deleted || reactions != null;
+    }
+
+    /**
+     * Returns a copy that carries the sending client's id, used to acknowledge the send.
+     */
+    public Message withClientMessageId(long clientMessageId) {
+        return new Message(id, sender, content, timestamp, type, targetGroup, clientMessageId, edited, deleted, reactions);
+    }
+
+    Message withContent(String newContent) {
+        return new Message(id, sender, newContent, timestamp, type, targetGroup, 0, true, deleted, reactions);
+    }
+
+    // A deleted message keeps its place in the conversation but loses its content and reactions
+    Message asDeleted() {
+        return new Message(id, sender, "", timestamp, type, targetGroup, 0, edited, true, null);
+    }
+
+    Message withReaction(String user, String reaction) {
+        Map<String, String> changed = reactions == null ? new TreeMap<>() : new TreeMap<>(reactions);
+        if (reaction == null) {
+            changed.remove(user);
+        } else {
+            changed.put(user, reaction);
+        }
+        return new Message(id, sender, content, timestamp, type, targetGroup, 0, edited, deleted,
+                changed.isEmpty() ? null : changed);
+    }
 
     public String getFormattedMessage() {
         return String.format("[%s] %s: %s",
@@ -0,0 +1,175 @@
+// MessageArena.java
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * Off-heap storage for messages. Records are appended to fixed-size direct
+ * buffers (chunks) and addressed by a long handle, so the heap only holds
+ * handles instead of a Message, its strings and its timestamp per message.
+ *
+ * Space is reclaimed a whole chunk at a time: every chunk counts its live
+ * records and is recycled once the last of them is released. Not thread-safe,
+ * each HistoryStore owns its own arena.
+ */
+public class MessageArena {
+    // Record layout: id, epoch second, nano, type, sender, target group, content
+    private static final int ID = 0;
+    private static final int SECONDS = 8;
+    private static final int NANOS = 16;
+    private static final int TYPE = 20;
+    private static final int STRINGS = 21;
+    private static final Message.MessageType[] TYPES = Message.MessageType.values();
+    private static final int MAX_SPARE_CHUNKS = 4;
+
+    private final int chunkSize;
+    private ByteBuffer[] chunks = new ByteBuffer[16];
+    private int[] liveRecords = new int[16];
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    private final Deque<ByteBuffer> spareChunks = new ArrayDeque<>();
+    private int current = -1;
+    private int chunkCount = 0;
+    private long reservedBytes = 0;
+    private long liveCount = 0;
+
+    public MessageArena(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public long put(Message message) {
+        byte[] sender = message.getSender().getBytes(StandardCharsets.UTF_8);
+        byte[] group = message.getTargetGroup() == null ? null : message.getTargetGroup().getBytes(StandardCharsets.UTF_8);
+        byte[] content = message.getContent() == null ? null : message.getContent().getBytes(StandardCharsets.UTF_8);
+        int length = STRINGS + 4 + sender.length + 4 + (group == null ? 0 : group.length)
+                + 4 + (content == null ? 0 : content.length);
+
+        if (current < 0 || chunks[current].remaining() < length) {
+            current = newChunk(length);
+        }
+        ByteBuffer chunk = chunks[current];
+        int offset = chunk.position();
+        chunk.putLong(message.getId())
+                .putLong(message.getTimestamp().toEpochSecond(ZoneOffset.UTC))
+                .putInt(message.getTimestamp().getNano())
+                .put((byte) message.getType().ordinal());
+        putBytes(chunk, sender);
+        putBytes(chunk, group);
+        putBytes(chunk, content);
+        liveRecords[current]++;
+        liveCount++;
+        return ((long) current << 32) | offset;
+    }
+
+    public Message get(long handle) {
+        ByteBuffer chunk = chunks[chunkOf(handle)];
+        int offset = offsetOf(handle);
+        int position = offset + STRINGS;
+        String sender = readString(chunk, position);
+        position += 4 + chunk.getInt(position);
+        String group = readString(chunk, position);
+        position += 4 + Math.max(0, chunk.getInt(position));
+        String content = readString(chunk, position);
+        return new Message(chunk.getLong(offset + ID), sender, content, timestamp(handle),
+                TYPES[chunk.get(offset + TYPE)], group);
+    }
+
+    /**
+     * Reads only the timestamp, for searches that do not need the whole message.
+     */
+    public LocalDateTime timestamp(long handle) {
+        ByteBuffer chunk = chunks[chunkOf(handle)];
+        int offset = offsetOf(handle);
+        return LocalDateTime.ofEpochSecond(chunk.getLong(offset + SECONDS), chunk.getInt(offset + NANOS), ZoneOffset.UTC);
+    }
+
+    public long id(long handle) {
+        return chunks[chunkOf(handle)].getLong(offsetOf(handle) + ID);
+    }
+
+    public void release(long handle) {
+        int index = chunkOf(handle);
+        liveCount--;
+        if (--liveRecords[index] == 0 && index != current) {
+            freeChunk(index);
+        }
+    }
+
+    public long getReservedBytes() { return reservedBytes; }
+    public long getLiveCount() { return liveCount; }
+
+    private int newChunk(int minimumSize) {
+        // The chunk being replaced may already be empty, it was only kept because it was current
+        if (current >= 0 && liveRecords[current] == 0) {
+            int previous = current;
+            current = -1;
+            freeChunk(previous);
+        }
+
+        ByteBuffer chunk = minimumSize <= chunkSize ? spareChunks.poll() : null;
+        if (chunk == null) {
+            chunk = ByteBuffer.allocateDirect(Math.max(chunkSize, minimumSize));
+            reservedBytes += chunk.capacity();
+        }
+
+        int index;
+        if (!freeSlots.isEmpty()) {
+            index = freeSlots.pop();
+        } else {
+            if (chunkCount == chunks.length) {
+                chunks = Arrays.copyOf(chunks, chunkCount * 2);
+                liveRecords = Arrays.copyOf(liveRecords, chunkCount * 2);
+            }
+            index = chunkCount++;
+        }
+        chunks[index] = chunk;
+        liveRecords[index] = 0;
+        return index;
+    }
+
+    private void freeChunk(int index) {
+        ByteBuffer chunk = chunks[index];
+        chunks[index] = null;
+        freeSlots.push(index);
+        if (chunk.capacity() == chunkSize && spareChunks.size() < MAX_SPARE_CHUNKS) {
+            chunk.clear();
+            spareChunks.push(chunk);
+        } else {
+            // Direct memory is returned once the buffer is garbage collected
+            reservedBytes -= chunk.capacity();
+        }
+    }
+
+    private static void putBytes(ByteBuffer chunk, byte[] bytes) {
+        if (bytes == null) {
+            chunk.putInt(-1);
+        } else {
+            chunk.putInt(bytes.length).put(bytes);
+        }
+    }
+
+    private static String readString(ByteBuffer chunk, int position) {
+        int length = chunk.getInt(position);
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        ByteBuffer view = chunk.duplicate();
+        view.position(position + 4);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int chunkOf(long handle) {
+        return (int) (handle >>> 32);
+    }
+
+    private static int offsetOf(long handle) {
+        return (int) handle;
+    }
+}
@@ -0,0 +1,21 @@
+// MessageBundle.java
+package org.example;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Several messages for the same recipient delivered in one envelope.
+ * Receivers handle them exactly as if they had arrived one by one, in order.
+ */
+public class MessageBundle implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final List<Message> messages;
+
+    public MessageBundle(List<Message> messages) {
+        this.messages = new ArrayList<>(messages);
+    }
+
+    public List<Message> getMessages() { return messages; }
+}
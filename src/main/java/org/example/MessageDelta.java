@@ -0,0 +1,78 @@
+// MessageDelta.java
+package org.example;
+
+import java.io.Serializable;
+
+/**
+ * A change to a message that was already sent: an edit, a deletion or a reaction.
+ * Clients send it to the server, which checks it, records it in history and
+ * delivers the same small event to everyone in the conversation, who patch the
+ * message they already have instead of receiving it again.
+ */
+public class MessageDelta implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final Kind kind;
+    private final String user;         // who made the change
+    private final String chatPartner;  // the other participant of a direct chat, seen from user
+    private final String targetGroup;  // null for direct messages
+    private final long messageId;
+    private final String value;        // new content of an edit, the reaction, or null to take a reaction back
+
+    public enum Kind {
+        EDIT,
+        DELETE,
+        REACT
+    }
+
+    private MessageDelta(Kind kind, String user, String chatPartner, String targetGroup, long messageId, String value) {
+        this.kind = kind;
+        this.user = user;
+        this.chatPartner = chatPartner;
+        this.targetGroup = targetGroup;
+        this.messageId = messageId;
+        this.value = value;
+    }
+
+    public static MessageDelta edit(String user, String chatPartner, String targetGroup, long messageId, String content) {
+        return new MessageDelta(Kind.EDIT, user, chatPartner, targetGroup, messageId, content);
+    }
+
+    public static MessageDelta delete(String user, String chatPartner, String targetGroup, long messageId) {
+        return new MessageDelta(Kind.DELETE, user, chatPartner, targetGroup, messageId, null);
+    }
+
+    public static MessageDelta react(String user, String chatPartner, String targetGroup, long messageId, String reaction) {
+        return new MessageDelta(Kind.REACT, user, chatPartner, targetGroup, messageId, reaction);
+    }
+
+    public Kind getKind() { return kind; }
+    public String getUser() { return user; }
+    public String getChatPartner() { return chatPartner; }
+    public String getTargetGroup() { return targetGroup; }
+    public long getMessageId() { return messageId; }
+    public String getValue() { return value; }
+
+    /**
+     * What the receiving user calls the conversation: the other participant, or #name for groups.
+     */
+    public String conversationFor(String username) {
+        if (targetGroup != null) {
+            return "#" + targetGroup;
+        }
+        return user.equals(username) ? chatPartner : user;
+    }
+
+    /**
+     * Returns the message as it is after this change.
+     */
+    public Message applyTo(Message message) {
+        switch (kind) {
+            case EDIT:
+                return message.withContent(value);
+            case DELETE:
+                return message.asDeleted();
+            default:
+                return message.withReaction(user, value);
+        }
+    }
+}
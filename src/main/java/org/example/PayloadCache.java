@@ -0,0 +1,44 @@
+// PayloadCache.java
+package org.example;
+
+import akka.serialization.Serialization;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Small LRU of recently broadcast payloads and their serialized form. Messages
+ * use identity equality, so the same instance sent to a group and echoed back
+ * to its author is serialized once.
+ */
+public class PayloadCache {
+    private final Serialization serialization;
+    private final Map<Object, SerializedPayload> cache;
+    private long hits = 0;
+    private long misses = 0;
+
+    public PayloadCache(Serialization serialization, int maxEntries) {
+        this.serialization = serialization;
+        this.cache = new LinkedHashMap<Object, SerializedPayload>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, SerializedPayload> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public SerializedPayload get(Object payload) {
+        SerializedPayload serialized = cache.get(payload);
+        if (serialized != null) {
+            hits++;
+            return serialized;
+        }
+        misses++;
+        serialized = SerializedPayload.of(serialization, payload);
+        cache.put(payload, serialized);
+        return serialized;
+    }
+
+    public long getHits() { return hits; }
+    public long getMisses() { return misses; }
+}
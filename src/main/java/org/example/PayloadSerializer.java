@@ -0,0 +1,39 @@
+// PayloadSerializer.java
+package org.example;
+
+import akka.actor.ExtendedActorSystem;
+import akka.serialization.JSerializer;
+import akka.serialization.SerializationExtension;
+
+/**
+ * Writes a SerializedPayload as its pre-built bytes, so sending one broadcast to
+ * many remote recipients serializes the message only once. On the receiving side
+ * the wrapped object is restored, recipients never see the wrapper.
+ */
+public class PayloadSerializer extends JSerializer {
+    private final ExtendedActorSystem system;
+
+    public PayloadSerializer(ExtendedActorSystem system) {
+        this.system = system;
+    }
+
+    @Override
+    public int identifier() {
+        return 912_001;
+    }
+
+    @Override
+    public boolean includeManifest() {
+        return false;
+    }
+
+    @Override
+    public byte[] toBinary(Object obj) {
+        return ((SerializedPayload) obj).getWire();
+    }
+
+    @Override
+    public Object fromBinaryJava(byte[] bytes, Class<?> manifest) {
+        return SerializedPayload.fromWire(bytes).deserialize(SerializationExtension.get(system));
+    }
+}
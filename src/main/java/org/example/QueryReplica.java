@@ -0,0 +1,418 @@
+// QueryReplica.java
+package org.example;
+
+import akka.actor.AbstractActor;
+import akka.actor.Props;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import com.typesafe.config.Config;
+
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Read side of the server. Keeps its own copy of message history and group
+ * membership, built from the events ServerActor publishes, and answers history
+ * and group lookups so heavy reads run next to, not behind, the write path.
+ *
+ * Events are only ever sent by the parent ServerActor, which also forwards the
+ * queries, so a query always sees every change made before it was forwarded.
+ * The same order lets the parent learn when a replica has applied its events:
+ * ReleaseBlocks is answered only after everything sent before it, and only then
+ * are block files the replica may still read deleted.
+ */
+public class QueryReplica extends AbstractActor {
+    private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+    private final HistoryStore messageHistory;
+    private final Map<String, Group> groups = new HashMap<>();
+    // Groups each user is a member of or invited to
+    private final Map<String, Set<String>> groupsByUser = new HashMap<>();
+    private final int historyPage;
+
+    public QueryReplica() {
+        Config config = getContext().getSystem().settings().config().getConfig("chat.server");
+        this.messageHistory = HistoryStore.mirror(config.getConfig("history"), log);
+        this.historyPage = config.getInt("query.history-page");
+    }
+
+    public static Props props() {
+        return Props.create(QueryReplica.class, QueryReplica::new);
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(MessagesStored.class, event -> messageHistory.appendAll(event.key, event.messages))
+                .match(MessageChanged.class, event -> messageHistory.change(event.key, event.message))
+                .match(HistorySpilled.class, event -> messageHistory.applySpill(event.key, event.block, event.count))
+                .match(HistoryCompacted.class, event ->
+                        messageHistory.applyCompaction(event.key, event.cold, event.hotDropped))
+                .match(HistoryRestored.class, event -> messageHistory.applyRestore(event.key, event.cold))
+                .match(MessagesRemoved.class, event -> messageHistory.applyRemoval(event.key, event.ids, event.cold))
+                .match(GroupAdded.class, this::onGroupAdded)
+                .match(MemberAdded.class, this::onMemberAdded)
+                .match(MemberRemoved.class, this::onMemberRemoved)
+                .match(InviteAdded.class, this::onInviteAdded)
+                .match(GroupRemoved.class, this::onGroupRemoved)
+                .match(ReleaseBlocks.class, msg -> getSender().tell(new BlocksReleased(msg.id), getSelf()))
+                .match(ServerActor.GetChatHistory.class, request -> readHistory(request, this::handleGetChatHistory))
+                .match(ServerActor.GetHistoryRange.class, request -> readHistory(request, this::handleGetHistoryRange))
+                .match(ServerActor.GetOlderMessages.class, request -> readHistory(request, this::handleGetOlderMessages))
+                .match(ServerActor.GetGroupInfo.class, request -> readHistory(request, this::handleGetGroupInfo))
+                .match(JoinReply.class, request -> readHistory(request, this::handleJoinReply))
+                .match(ServerActor.GetGroupList.class, this::handleGetGroupList)
+                .match(ServerActor.GetGroupMembers.class, this::handleGetGroupMembers)
+                .build();
+    }
+
+    /**
+     * Answers a request that reads history. A block that cannot be read fails the
+     * request rather than the replica, whose state would be lost on a restart.
+     */
+    private <T> void readHistory(T request, Consumer<T> handler) {
+        try {
+            handler.accept(request);
+        } catch (UncheckedIOException e) {
+            log.error(e, "History request failed");
+            getSender().tell(new ServerActor.ErrorMessage("History is unavailable right now"), getContext().getParent());
+        }
+    }
+
+    private void onGroupAdded(GroupAdded event) {
+        groups.put(event.groupName, new Group(event.groupName, event.admin));
+        index(event.admin, event.groupName);
+    }
+
+    private void onMemberAdded(MemberAdded event) {
+        Group group = groups.get(event.groupName);
+        if (group != null) {
+            group.addMember(event.username);
+            index(event.username, event.groupName);
+        }
+    }
+
+    private void onMemberRemoved(MemberRemoved event) {
+        Group group = groups.get(event.groupName);
+        if (group != null) {
+            group.removeMember(event.username);
+            unindex(event.username, event.groupName);
+        }
+    }
+
+    private void onInviteAdded(InviteAdded event) {
+        Group group = groups.get(event.groupName);
+        if (group != null) {
+            group.addInvite(event.username);
+            index(event.username, event.groupName);
+        }
+    }
+
+    private void onGroupRemoved(GroupRemoved event) {
+        Group group = groups.remove(event.groupName);
+        if (group != null) {
+            group.getMembers().forEach(user -> unindex(user, event.groupName));
+            group.getPendingInvites().forEach(user -> unindex(user, event.groupName));
+        }
+        messageHistory.remove("group:" + event.groupName);
+    }
+
+    private void index(String user, String groupName) {
+        groupsByUser.computeIfAbsent(user, k -> new HashSet<>()).add(groupName);
+    }
+
+    private void unindex(String user, String groupName) {
+        Set<String> names = groupsByUser.get(user);
+        if (names != null) {
+            names.remove(groupName);
+            if (names.isEmpty()) {
+                groupsByUser.remove(user);
+            }
+        }
+    }
+
+    private void handleGetChatHistory(ServerActor.GetChatHistory request) {
+        String historyKey = request.isGroupChat() ?
+                "group:" + request.getGroupName() :
+                ServerActor.getChatId(request.getUser1(), request.getUser2());
+        // Never the whole history at once, that would load every cold block into memory
+        int limit = request.getLimit() > 0 ? request.getLimit() : historyPage;
+        List<Message> page = page(historyKey, Long.MAX_VALUE, limit);
+        getSender().tell(new ServerActor.ChatHistory(newest(page, limit), page.size() > limit),
+                getContext().getParent());
+    }
+
+    private void handleGetOlderMessages(ServerActor.GetOlderMessages cmd) {
+        String historyKey;
+        String label;
+        if (cmd.getGroupName() != null) {
+            if (memberGroup(cmd.getGroupName(), cmd.getUsername()) == null) {
+                return;
+            }
+            historyKey = "group:" + cmd.getGroupName();
+            label = "#" + cmd.getGroupName();
+        } else {
+            historyKey = ServerActor.getChatId(cmd.getUsername(), cmd.getChatPartner());
+            label = cmd.getChatPartner();
+        }
+
+        List<Message> page = page(historyKey, cmd.getBeforeId(), cmd.getLimit());
+        getSender().tell(new ServerActor.OlderMessages(label, newest(page, cmd.getLimit()), page.size() > cmd.getLimit()),
+                getContext().getParent());
+    }
+
+    /**
+     * Fetches one message more than the limit, so the caller can tell whether older ones remain.
+     */
+    private List<Message> page(String historyKey, long beforeId, int limit) {
+        return messageHistory.getLatest(historyKey, beforeId, limit + 1);
+    }
+
+    private static List<Message> newest(List<Message> page, int limit) {
+        return page.size() > limit ? page.subList(page.size() - limit, page.size()) : page;
+    }
+
+    private void handleGetHistoryRange(ServerActor.GetHistoryRange cmd) {
+        String historyKey;
+        String label;
+        if (cmd.getGroupName() != null) {
+            if (memberGroup(cmd.getGroupName(), cmd.getUsername()) == null) {
+                return;
+            }
+            historyKey = "group:" + cmd.getGroupName();
+            label = "#" + cmd.getGroupName();
+        } else {
+            historyKey = ServerActor.getChatId(cmd.getUsername(), cmd.getChatPartner());
+            label = cmd.getChatPartner();
+        }
+
+        // One page per reply, a whole range could be larger than a remote message may be
+        int limit = cmd.getLimit() > 0 ? cmd.getLimit() : historyPage;
+        List<Message> page = messageHistory.getRange(historyKey, cmd.getFrom(), cmd.getAfterId(), cmd.getTo(), limit + 1);
+        List<Message> messages = page.size() > limit ? page.subList(0, limit) : page;
+        ServerActor.GetHistoryRange next = page.size() > limit ? cmd.after(messages.get(limit - 1), limit) : null;
+        getSender().tell(new ServerActor.HistoryRange(label, cmd.getFrom(), cmd.getTo(), messages, cmd.isFirstPage(),
+                next), getContext().getParent());
+    }
+
+    private void handleGetGroupInfo(ServerActor.GetGroupInfo cmd) {
+        Group group = memberGroup(cmd.getGroupName(), cmd.getUsername());
+        if (group == null) {
+            return;
+        }
+
+        String historyKey = "group:" + cmd.getGroupName();
+        int limit = cmd.getHistoryLimit() > 0 ? cmd.getHistoryLimit() : historyPage;
+        List<Message> page = page(historyKey, Long.MAX_VALUE, limit);
+        getSender().tell(new ServerActor.GroupChatHistory(GroupView.of(group), newest(page, limit),
+                page.size() > limit), getContext().getParent());
+    }
+
+    private void handleJoinReply(JoinReply reply) {
+        getSender().tell(new ServerActor.JoinedGroup(reply.view), getContext().getParent());
+        handleGetGroupInfo(new ServerActor.GetGroupInfo(reply.view.getName(), reply.username, historyPage));
+    }
+
+    private void handleGetGroupList(ServerActor.GetGroupList cmd) {
+        List<ServerActor.GroupInfo> groupInfos = new ArrayList<>();
+        for (String name : groupsByUser.getOrDefault(cmd.getUsername(), Collections.emptySet())) {
+            Group group = groups.get(name);
+            boolean isMember = group.isMember(cmd.getUsername());
+            boolean hasInvite = group.hasPendingInvite(cmd.getUsername());
+            if (isMember || hasInvite) {
+                groupInfos.add(new ServerActor.GroupInfo(group.getName(), group.getAdmin(),
+                        group.getMemberCount(), isMember, hasInvite));
+            }
+        }
+        getSender().tell(new ServerActor.GroupList(groupInfos), getContext().getParent());
+    }
+
+    private void handleGetGroupMembers(ServerActor.GetGroupMembers cmd) {
+        Group group = memberGroup(cmd.getGroupName(), cmd.getUsername());
+        if (group == null) {
+            return;
+        }
+
+        if (cmd.getKnownVersion() == group.getVersion()) {
+            getSender().tell(new ServerActor.GroupMembersNotModified(group.getName(), cmd.getOffset(),
+                    group.getVersion()), getContext().getParent());
+            return;
+        }
+
+        List<String> page = group.getMembersPage(cmd.getOffset(), cmd.getLimit());
+        getSender().tell(new ServerActor.GroupMembers(group.getName(), group.getVersion(), cmd.getOffset(),
+                group.getMemberCount(), page), getContext().getParent());
+    }
+
+    /**
+     * Returns the group if the user is a member, otherwise replies with an error and returns null.
+     */
+    private Group memberGroup(String groupName, String username) {
+        Group group = groups.get(groupName);
+        if (group == null) {
+            getSender().tell(new ServerActor.ErrorMessage("Group not found"), getContext().getParent());
+            return null;
+        }
+        if (!group.isMember(username)) {
+            getSender().tell(new ServerActor.ErrorMessage("You are not a member of this group"), getContext().getParent());
+            return null;
+        }
+        return group;
+    }
+
+    // Events published by ServerActor. The Serializable ones are also streamed to a standby server.
+
+    public static final class MessagesStored implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final String key;
+        final List<Message> messages;
+
+        public MessagesStored(String key, List<Message> messages) {
+            this.key = key;
+            this.messages = messages;
+        }
+    }
+
+    /**
+     * A stored message was edited, deleted or reacted to; carries its new version.
+     */
+    public static final class MessageChanged implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final String key;
+        final Message message;
+
+        public MessageChanged(String key, Message message) {
+            this.key = key;
+            this.message = message;
+        }
+    }
+
+    static final class HistorySpilled {
+        final String key;
+        final HistoryStore.ColdBlock block;
+        final int count;
+
+        HistorySpilled(String key, HistoryStore.ColdBlock block, int count) {
+            this.key = key;
+            this.block = block;
+            this.count = count;
+        }
+    }
+
+    static final class HistoryCompacted {
+        final String key;
+        final List<HistoryStore.ColdBlock> cold;
+        final int hotDropped;
+
+        HistoryCompacted(String key, List<HistoryStore.ColdBlock> cold, int hotDropped) {
+            this.key = key;
+            this.cold = cold;
+            this.hotDropped = hotDropped;
+        }
+    }
+
+    static final class HistoryRestored {
+        final String key;
+        final List<HistoryStore.ColdBlock> cold;
+
+        HistoryRestored(String key, List<HistoryStore.ColdBlock> cold) {
+            this.key = key;
+            this.cold = cold;
+        }
+    }
+
+    static final class MessagesRemoved {
+        final String key;
+        final Set<Long> ids;
+        final List<HistoryStore.ColdBlock> cold;
+
+        MessagesRemoved(String key, Set<Long> ids, List<HistoryStore.ColdBlock> cold) {
+            this.key = key;
+            this.ids = ids;
+            this.cold = cold;
+        }
+    }
+
+    static final class ReleaseBlocks {
+        final long id;
+
+        ReleaseBlocks(long id) {
+            this.id = id;
+        }
+    }
+
+    static final class BlocksReleased {
+        final long id;
+
+        BlocksReleased(long id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * Asks the replica to send JoinedGroup followed by the group history to the sender.
+     */
+    public static final class JoinReply {
+        final GroupView view;
+        final String username;
+
+        public JoinReply(GroupView view, String username) {
+            this.view = view;
+            this.username = username;
+        }
+    }
+
+    public static final class GroupAdded implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final String groupName;
+        final String admin;
+
+        public GroupAdded(String groupName, String admin) {
+            this.groupName = groupName;
+            this.admin = admin;
+        }
+    }
+
+    public static final class MemberAdded implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final String groupName;
+        final String username;
+
+        public MemberAdded(String groupName, String username) {
+            this.groupName = groupName;
+            this.username = username;
+        }
+    }
+
+    public static final class MemberRemoved implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final String groupName;
+        final String username;
+
+        public MemberRemoved(String groupName, String username) {
+            this.groupName = groupName;
+            this.username = username;
+        }
+    }
+
+    public static final class InviteAdded implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final String groupName;
+        final String username;
+
+        public InviteAdded(String groupName, String username) {
+            this.groupName = groupName;
+            this.username = username;
+        }
+    }
+
+    public static final class GroupRemoved implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final String groupName;
+
+        public GroupRemoved(String groupName) {
+            this.groupName = groupName;
+        }
+    }
+}
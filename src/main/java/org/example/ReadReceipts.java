@@ -0,0 +1,151 @@
+// ReadReceipts.java
+package org.example;
+
+import java.util.*;
+
+/**
+ * "Seen by" counts for group messages, derived from the read watermarks in
+ * UnreadTracker instead of a receipt per message and member. Only the latest
+ * message of every sender is tracked: watermarks only move forward, so anyone
+ * who has seen it has seen the sender's earlier messages too.
+ *
+ * Reads just mark the group; the counts are computed when drained, at most once
+ * per group and flush, by sorting the members' watermarks once and looking up
+ * every sender's message in them. Members who joined after a message was sent
+ * count neither as members nor as having seen it.
+ */
+public class ReadReceipts {
+    // Group conversation key -> sender -> their latest message
+    private final Map<String, Map<String, Latest>> latest = new HashMap<>();
+    // Groups with reads since the last drain()
+    private final Set<String> dirty = new HashSet<>();
+
+    private static final class Latest {
+        final long messageId;
+        final long sequence;
+        int reportedSeen = 0;
+        int reportedMembers = -1;
+
+        Latest(long messageId, long sequence) {
+            this.messageId = messageId;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Remembers a new message, sequence being the conversation's unread sequence right after it was stored.
+     */
+    public void onStored(String conversation, String sender, long messageId, long sequence) {
+        latest.computeIfAbsent(conversation, k -> new HashMap<>()).put(sender, new Latest(messageId, sequence));
+    }
+
+    public void onRead(String conversation) {
+        if (latest.containsKey(conversation)) {
+            dirty.add(conversation);
+        }
+    }
+
+    public void removeSender(String conversation, String sender) {
+        Map<String, Latest> senders = latest.get(conversation);
+        if (senders != null) {
+            senders.remove(sender);
+            if (senders.isEmpty()) {
+                latest.remove(conversation);
+            }
+        }
+    }
+
+    public void removeConversation(String conversation) {
+        latest.remove(conversation);
+        dirty.remove(conversation);
+    }
+
+    public int trackedSenders() {
+        int total = 0;
+        for (Map<String, Latest> senders : latest.values()) {
+            total += senders.size();
+        }
+        return total;
+    }
+
+    /**
+     * Returns the counts that changed since they were last drained, at most one per sender and group.
+     */
+    public List<Receipt> drain(UnreadTracker unread) {
+        List<Receipt> receipts = new ArrayList<>();
+        for (String conversation : dirty) {
+            Map<String, Latest> senders = latest.get(conversation);
+            if (senders == null) {
+                continue;
+            }
+            Set<String> participants = unread.getParticipants(conversation);
+            long[] marks = new long[participants.size()];
+            long[] joined = new long[participants.size()];
+            int i = 0;
+            for (String user : participants) {
+                marks[i] = unread.getWatermark(user, conversation);
+                joined[i++] = unread.getJoinedAt(user, conversation);
+            }
+            Arrays.sort(marks);
+            Arrays.sort(joined);
+
+            for (Map.Entry<String, Latest> entry : senders.entrySet()) {
+                Latest message = entry.getValue();
+                // Members who joined after the message was sent never got it. Their
+                // watermarks start at their join, so they are among those at or past it
+                int later = countAtLeast(joined, message.sequence);
+                int seen = countAtLeast(marks, message.sequence) - later;
+                int members = participants.size() - later;
+                // The sender's own watermark is always past their message
+                if (participants.contains(entry.getKey())) {
+                    seen--;
+                    members--;
+                }
+                // Nothing to tell while nobody has seen it, or if neither number moved
+                if (seen != message.reportedSeen || (seen > 0 && members != message.reportedMembers)) {
+                    message.reportedSeen = seen;
+                    message.reportedMembers = members;
+                    receipts.add(new Receipt(entry.getKey(), conversation, message.messageId, seen, members));
+                }
+            }
+        }
+        dirty.clear();
+        return receipts;
+    }
+
+    private static int countAtLeast(long[] sorted, long value) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return sorted.length - low;
+    }
+
+    public static final class Receipt {
+        private final String sender;
+        private final String conversation;
+        private final long messageId;
+        private final int seenBy;
+        private final int members;  // other members the message went to
+
+        Receipt(String sender, String conversation, long messageId, int seenBy, int members) {
+            this.sender = sender;
+            this.conversation = conversation;
+            this.messageId = messageId;
+            this.seenBy = seenBy;
+            this.members = members;
+        }
+
+        public String getSender() { return sender; }
+        public String getConversation() { return conversation; }
+        public long getMessageId() { return messageId; }
+        public int getSeenBy() { return seenBy; }
+        public int getMembers() { return members; }
+    }
+}
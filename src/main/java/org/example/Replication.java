@@ -0,0 +1,194 @@
+// Replication.java
+package org.example;
+
+import akka.actor.ActorRef;
+
+import java.io.Serializable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Messages between a primary ServerActor and its hot standby in another process.
+ *
+ * The standby keeps sending Subscribe until the primary answers. The primary then
+ * streams a snapshot of its sessions, groups and history followed by SnapshotDone,
+ * and from then on every change: the Serializable QueryReplica events it publishes
+ * plus the events below. The standby applies them to its own state and watches the
+ * primary; once the primary is unreachable the standby takes over and clients that
+ * lost their server reconnect to it.
+ */
+public final class Replication {
+
+    private Replication() {
+    }
+
+    public static class Subscribe implements Serializable {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Ends one part of the snapshot. The standby sends it back once it got there,
+     * and only then does the primary send the next part.
+     */
+    public static class SnapshotStep implements Serializable {
+        private static final long serialVersionUID = 1L;
+    }
+
+    public static class SnapshotDone implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final long nextMessageId;
+
+        public SnapshotDone(long nextMessageId) {
+            this.nextMessageId = nextMessageId;
+        }
+
+        public long getNextMessageId() { return nextMessageId; }
+    }
+
+    public static class SessionOpened implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String name;
+        private final ActorRef ref;
+        private final ActorRef relay;  // may be null
+        private final String resumeToken;
+
+        public SessionOpened(String name, ActorRef ref, ActorRef relay, String resumeToken) {
+            this.name = name;
+            this.ref = ref;
+            this.relay = relay;
+            this.resumeToken = resumeToken;
+        }
+
+        public String getName() { return name; }
+        public ActorRef getRef() { return ref; }
+        public ActorRef getRelay() { return relay; }
+        public String getResumeToken() { return resumeToken; }
+    }
+
+    public static class SessionClosed implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final ActorRef ref;
+
+        public SessionClosed(ActorRef ref) {
+            this.ref = ref;
+        }
+
+        public ActorRef getRef() { return ref; }
+    }
+
+    /**
+     * Drops a conversation's history before it is sent again in ConversationChunks.
+     */
+    public static class ConversationReset implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String key;
+
+        public ConversationReset(String key) {
+            this.key = key;
+        }
+
+        public String getKey() { return key; }
+    }
+
+    /**
+     * Existing history copied to the standby. Unlike a stored message it does not count as unread.
+     */
+    public static class ConversationChunk implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String key;
+        private final List<Message> messages;
+
+        public ConversationChunk(String key, List<Message> messages) {
+            this.key = key;
+            this.messages = new ArrayList<>(messages);
+        }
+
+        public String getKey() { return key; }
+        public List<Message> getMessages() { return messages; }
+    }
+
+    public static class TtlChanged implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String key;
+        private final Duration ttl;  // null when disappearing messages were turned off
+
+        public TtlChanged(String key, Duration ttl) {
+            this.key = key;
+            this.ttl = ttl;
+        }
+
+        public String getKey() { return key; }
+        public Duration getTtl() { return ttl; }
+    }
+
+    /**
+     * A send the primary scheduled. The standby keeps it until ScheduledSendDone
+     * arrives, and sends it itself if it takes over first.
+     */
+    public static class SendScheduled implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final long id;
+        private final ServerActor.SendMessage message;
+        private final ActorRef replyTo;
+        private final long dueAtMillis;
+
+        public SendScheduled(long id, ServerActor.SendMessage message, ActorRef replyTo, long dueAtMillis) {
+            this.id = id;
+            this.message = message;
+            this.replyTo = replyTo;
+            this.dueAtMillis = dueAtMillis;
+        }
+
+        public long getId() { return id; }
+        public ServerActor.SendMessage getMessage() { return message; }
+        public ActorRef getReplyTo() { return replyTo; }
+        public long getDueAtMillis() { return dueAtMillis; }
+    }
+
+    public static class ScheduledSendDone implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final long id;
+
+        public ScheduledSendDone(long id) {
+            this.id = id;
+        }
+
+        public long getId() { return id; }
+    }
+
+    public static class ReadMarked implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String username;
+        private final String key;
+
+        public ReadMarked(String username, String key) {
+            this.username = username;
+            this.key = key;
+        }
+
+        public String getUsername() { return username; }
+        public String getKey() { return key; }
+    }
+
+    public static class SendRecorded implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String sender;
+        private final long clientMessageId;
+
+        public SendRecorded(String sender, long clientMessageId) {
+            this.sender = sender;
+            this.clientMessageId = clientMessageId;
+        }
+
+        public String getSender() { return sender; }
+        public long getClientMessageId() { return clientMessageId; }
+    }
+
+    /**
+     * Reply of a standby to client requests: it is not serving yet, try again later.
+     */
+    public static class NotActive implements Serializable {
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,62 @@
+// SerializedPayload.java
+package org.example;
+
+import akka.actor.ActorSystem;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import akka.serialization.Serializer;
+import akka.serialization.Serializers;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A broadcast payload that has already been serialized. Remote sends of this
+ * wrapper reuse the same bytes for every recipient (see PayloadSerializer) and
+ * the receiving side gets the original object back.
+ */
+public final class SerializedPayload implements Serializable {
+    private static final long serialVersionUID = 1L;
+    // [serializer id][manifest length][manifest][payload bytes]
+    private final byte[] wire;
+
+    private SerializedPayload(byte[] wire) {
+        this.wire = wire;
+    }
+
+    public static SerializedPayload of(Serialization serialization, Object payload) {
+        Serializer serializer = serialization.findSerializerFor(payload);
+        byte[] bytes = serializer.toBinary(payload);
+        byte[] manifest = Serializers.manifestFor(serializer, payload).getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 2 + manifest.length + bytes.length);
+        buffer.putInt(serializer.identifier());
+        buffer.putShort((short) manifest.length);
+        buffer.put(manifest);
+        buffer.put(bytes);
+        return new SerializedPayload(buffer.array());
+    }
+
+    static SerializedPayload fromWire(byte[] wire) {
+        return new SerializedPayload(wire);
+    }
+
+    byte[] getWire() { return wire; }
+
+    public int size() { return wire.length; }
+
+    public Object deserialize(ActorSystem system) {
+        return deserialize(SerializationExtension.get(system));
+    }
+
+    public Object deserialize(Serialization serialization) {
+        ByteBuffer buffer = ByteBuffer.wrap(wire);
+        int serializerId = buffer.getInt();
+        byte[] manifest = new byte[buffer.getShort()];
+        buffer.get(manifest);
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return serialization.deserialize(bytes, serializerId, new String(manifest, StandardCharsets.UTF_8)).get();
+    }
+}
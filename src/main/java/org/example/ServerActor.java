@@ -1,107 +1,763 @@
 package org.example;
 
-import akka.actor.AbstractActor;
+import akka.actor.AbstractActorWithTimers;
 import akka.actor.ActorRef;
 import akka.actor.Props;
+import akka.actor.Terminated;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
+import akka.serialization.SerializationExtension;
+import com.typesafe.config.Config;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.LocalDateTime;
 import java.util.*;
 
-public class ServerActor extends AbstractActor {
+public class ServerActor extends AbstractActorWithTimers {
     private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
-    private final Map<String, ActorRef> clients = new HashMap<>();
-    private final Map<String, List<Message>> messageHistory = new HashMap<>();
+    private final SessionTracker sessions = new SessionTracker();
+    private final HistoryStore messageHistory;
     private final Map<String, Group> groups = new HashMap<>();
+    private final FanoutPlanner fanout = new FanoutPlanner();
+    private final PayloadCache payloadCache;
+    private final UnreadTracker unread = new UnreadTracker();
+    private final ReadReceipts receipts = new ReadReceipts();
+    private final TypingBuffer typing;
+    private final Duration typingTick;
+    private final int typingMaxGroupSize;
+    private final AdmissionController admission;
+    private final DeliveryBuffer deliveries;
+    private final DedupWindow dedup;
+    private final Duration deliveryWindow;
+    private final TimerWheel<Object> timers;
+    // Conversation key -> lifetime of new messages, only for conversations with disappearing messages
+    private final Map<String, Duration> messageTtls = new HashMap<>();
+    private final long maxScheduleDelayMillis;
+    // Scheduled sends not yet sent, by id; on a standby until the primary reports them sent
+    private final Map<Long, ScheduledSend> scheduledSends = new HashMap<>();
+    private long nextScheduleId = 1;
+    private final int exportChunkSize;
+    private final int maxBatchSize;
+    private final List<ActorRef> replicas = new ArrayList<>();
+    private final String primaryPath;
+    private boolean active;
+    // Primary: the standby changes are streamed to, null without one
+    private ActorRef standby;
+    // Standby: the primary being mirrored, known once its snapshot has arrived
+    private ActorRef primary;
+    // Parts of the snapshot still to be sent to the standby
+    private final Deque<String> snapshotSessions = new ArrayDeque<>();
+    private final Deque<String> snapshotGroups = new ArrayDeque<>();
+    private final Deque<String> snapshotConversations = new ArrayDeque<>();
+    private final Deque<Long> snapshotScheduled = new ArrayDeque<>();
+    private boolean snapshotInFlight = false;
+    private final long idleTimeoutMillis;
+    private final int resumeMaxMessages;
+    private final int relayThreshold;
+    private int nextReplica = 0;
+    private long nextMessageId = 1;
+    // Release id -> retired block files and the replicas that have not yet confirmed it
+    private final Map<Long, List<Path>> releasingBlocks = new HashMap<>();
+    private final Map<Long, Set<ActorRef>> releasePending = new HashMap<>();
+    private long nextReleaseId = 0;
+
+    private static final Object SWEEP_SESSIONS = "sweep-sessions";
+    private static final Object ENFORCE_RETENTION = "enforce-retention";
+    private static final Object FLUSH_UNREAD = "flush-unread";
+    private static final Object FLUSH_RECEIPTS = "flush-receipts";
+    private static final Object ADVANCE_TIMERS = "advance-timers";
+    private static final Object FLUSH_DELIVERIES = "flush-deliveries";
+    private static final Object FLUSH_TYPING = "flush-typing";
+    private static final Object SUBSCRIBE = "subscribe";
+    private static final Object TAKE_OVER = "take-over";
+    // Events sent to the standby before waiting for it to catch up
+    private static final int SNAPSHOT_STEP_EVENTS = 256;
+    // Estimated serialized size of the messages in one event to the standby, well
+    // below Artery's default frame size of 256 KiB; larger events would be dropped
+    private static final int REPLICATION_CHUNK_BYTES = 64 * 1024;
+    private static final int MAX_REACTION_LENGTH = 16;
+
+    public ServerActor() {
+        Config config = getContext().getSystem().settings().config().getConfig("chat.server");
+        this.idleTimeoutMillis = config.getDuration("session.idle-timeout").toMillis();
+        this.resumeMaxMessages = config.getInt("session.resume-max-messages");
+        Duration sweepInterval = config.getDuration("session.sweep-interval");
+        getTimers().startTimerWithFixedDelay(SWEEP_SESSIONS, SWEEP_SESSIONS, sweepInterval);
+
+        int replicaCount = Math.max(1, config.getInt("query.replicas"));
+        for (int i = 0; i < replicaCount; i++) {
+            replicas.add(getContext().actorOf(QueryReplica.props(), "query-replica-" + i));
+        }
+
+        this.messageHistory = new HistoryStore(config.getConfig("history"), log);
+        this.exportChunkSize = config.getInt("history.block-size");
+        messageHistory.setListener(new HistoryStore.Listener() {
+            @Override
+            public void onSpilled(String key, HistoryStore.ColdBlock block, int count) {
+                publish(new QueryReplica.HistorySpilled(key, block, count));
+            }
+
+            @Override
+            public void onCompacted(String key, List<HistoryStore.ColdBlock> cold, int hotDropped) {
+                publish(new QueryReplica.HistoryCompacted(key, cold, hotDropped));
+            }
+
+            @Override
+            public void onRemoved(String key, Set<Long> ids, List<HistoryStore.ColdBlock> cold) {
+                publish(new QueryReplica.MessagesRemoved(key, ids, cold));
+            }
+
+            @Override
+            public void onRestored(String key, List<HistoryStore.ColdBlock> cold) {
+                publish(new QueryReplica.HistoryRestored(key, cold));
+            }
+        });
+        Duration maintenanceInterval = config.getDuration("history.maintenance-interval");
+        getTimers().startTimerWithFixedDelay(ENFORCE_RETENTION, ENFORCE_RETENTION, maintenanceInterval);
+
+        this.relayThreshold = config.getInt("fanout.relay-threshold");
+        this.payloadCache = new PayloadCache(SerializationExtension.get(getContext().getSystem()),
+                config.getInt("fanout.payload-cache-size"));
+        this.deliveryWindow = config.getDuration("delivery.window");
+        this.deliveries = new DeliveryBuffer(config.getInt("delivery.max-messages"));
+
+        this.admission = new AdmissionController(config.getConfig("admission"));
+        this.maxBatchSize = config.getInt("admission.max-batch-size");
+        this.dedup = new DedupWindow(config.getDuration("dedup.window").toMillis(), config.getInt("dedup.max-ids"));
+
+        Duration notifyInterval = config.getDuration("unread.notify-interval");
+        getTimers().startTimerWithFixedDelay(FLUSH_UNREAD, FLUSH_UNREAD, notifyInterval);
+        Duration receiptInterval = config.getDuration("receipts.notify-interval");
+        getTimers().startTimerWithFixedDelay(FLUSH_RECEIPTS, FLUSH_RECEIPTS, receiptInterval);
+        this.typingTick = config.getDuration("typing.tick");
+        this.typing = new TypingBuffer(config.getDuration("typing.quiet-after-send").toMillis());
+        this.typingMaxGroupSize = config.getInt("typing.max-group-size");
+
+        Duration tick = config.getDuration("timers.tick");
+        this.timers = new TimerWheel<>(tick.toMillis(), config.getInt("timers.wheel-size"), System.currentTimeMillis());
+        this.maxScheduleDelayMillis = config.getDuration("timers.max-delay").toMillis();
+        getTimers().startTimerWithFixedDelay(ADVANCE_TIMERS, ADVANCE_TIMERS, tick);
+
+        this.primaryPath = config.getString("replication.primary");
+        this.active = !config.getString("replication.role").equals("standby");
+        if (!active) {
+            getTimers().startTimerWithFixedDelay(SUBSCRIBE, SUBSCRIBE, config.getDuration("replication.subscribe-interval"));
+        }
+    }
 
     public static Props props() {
-        return Props.create(ServerActor.class, ServerActor::new);
+        return Props.create(ServerActor.class, ServerActor::new).withMailbox("chat.server.mailbox");
     }
 
     @Override
     public Receive createReceive() {
+        return active ? serving() : standingBy();
+    }
+
+    private Receive serving() {
         return receiveBuilder()
+                .match(Replication.Subscribe.class, this::handleSubscribe)
+                .match(Replication.SnapshotStep.class, step -> {
+                    if (getSender().equals(standby)) {
+                        sendSnapshotStep();
+                    }
+                })
                 .match(RegisterClient.class, this::handleRegistration)
+                .match(Terminated.class, this::handleClientTerminated)
+                .matchEquals(SWEEP_SESSIONS, msg -> sweepIdleSessions())
+                .matchEquals(ENFORCE_RETENTION, msg -> maintainHistory())
+                .match(QueryReplica.BlocksReleased.class, this::onBlocksReleased)
+                .matchEquals(FLUSH_UNREAD, msg -> flushUnreadUpdates())
+                .matchEquals(FLUSH_RECEIPTS, msg -> flushReadReceipts())
+                .matchEquals(ADVANCE_TIMERS, msg -> advanceTimers())
+                .matchEquals(FLUSH_DELIVERIES, msg -> flushDeliveries())
+                .matchEquals(FLUSH_TYPING, msg -> flushTyping())
+                .match(SetMessageTtl.class, this::handleSetMessageTtl)
+                .match(ScheduleMessage.class, this::handleScheduleMessage)
+                .match(ExportHistory.class, this::handleExportHistory)
+                .match(ImportHistory.class, this::handleImportHistory)
+                .match(MarkRead.class, this::handleMarkRead)
+                .match(GetServerStats.class, this::handleGetServerStats)
+                .match(GetMemoryUsage.class, this::handleGetMemoryUsage)
                 .match(FindClients.class, this::handleFindClients)
                 .match(SendMessage.class, this::handleSendMessage)
+                .match(SendMessageBatch.class, this::handleSendMessageBatch)
+                .match(MessageDelta.class, this::handleMessageDelta)
+                .match(FanoutRelay.PlanUnknown.class, this::handlePlanUnknown)
+                .match(TypingEvent.class, this::handleTypingEvent)
                 .match(GetChatHistory.class, this::handleGetChatHistory)
+                .match(GetHistoryRange.class, cmd -> nextReplica().forward(cmd, getContext()))
+                .match(GetOlderMessages.class, cmd -> nextReplica().forward(cmd, getContext()))
                 .match(CreateGroup.class, this::handleCreateGroup)
                 .match(InviteToGroup.class, this::handleGroupInvite)
                 .match(JoinGroup.class, this::handleJoinGroup)
-                .match(GetGroupList.class, this::handleGetGroupList)
+                .match(GetGroupList.class, cmd -> nextReplica().forward(cmd, getContext()))
                 .match(GetGroupInfo.class, this::handleGetGroupInfo)
+                .match(GetGroupMembers.class, cmd -> nextReplica().forward(cmd, getContext()))
                 .match(LeaveGroup.class, this::handleLeaveGroup)
                 .match(DisbandGroup.class, this::handleDisbandGroup)
                 .build();
     }
 
     private void handleRegistration(RegisterClient register) {
-        if (clients.containsKey(register.getName())) {
+        if (sessions.canResume(register.getName(), register.getResumeToken())) {
+            resumeSession(register);
+            return;
+        }
+        if (sessions.isRegistered(register.getName())) {
+            if (getSender().equals(sessions.getRef(register.getName()))) {
+                // The same client again, reconnecting after its previous server went away
+                getSender().tell(new RegistrationSuccess(register.getName(), sessions.getToken(register.getName()),
+                        true), getSelf());
+                return;
+            }
             getSender().tell(new ErrorMessage("Username already taken"), getSelf());
             return;
         }
 
-        clients.put(register.getName(), getSender());
-        messageHistory.put(register.getName(), new ArrayList<>());
+        String token = sessions.issueToken(register.getName());
+        sessions.register(register.getName(), getSender(), register.getRelay(), System.currentTimeMillis());
+        replicate(new Replication.SessionOpened(register.getName(), getSender(), register.getRelay(), token));
+        getContext().watch(getSender());
         log.info("Client registered: {}", register.getName());
-        getSender().tell(new RegistrationSuccess(register.getName()), getSelf());
+        getSender().tell(new RegistrationSuccess(register.getName(), token, false), getSelf());
+        sendUnreadSummary(register.getName(), getSender());
 
         // Notify all clients about new user
         broadcastSystemMessage(String.format("%s has joined the chat", register.getName()));
     }
 
+    /**
+     * Hands the session to a client that reconnected with its resume token, even if
+     * the old connection has not been noticed as gone yet. Nobody else is told, and
+     * instead of the client reloading its chats the messages it missed are replayed.
+     */
+    private void resumeSession(RegisterClient register) {
+        String name = register.getName();
+        ActorRef previous = sessions.getRef(name);
+        List<Message> buffered = null;
+        if (previous != null && !previous.equals(getSender())) {
+            getContext().unwatch(previous);
+            // Never sent to the old connection, so they go to the new one with the replay
+            buffered = deliveries.take(previous);
+        }
+        sessions.register(name, getSender(), register.getRelay(), System.currentTimeMillis());
+        replicate(new Replication.SessionOpened(name, getSender(), register.getRelay(), sessions.getToken(name)));
+        getContext().watch(getSender());
+        log.info("Client resumed: {}", name);
+        getSender().tell(new RegistrationSuccess(name, sessions.getToken(name), true), getSelf());
+
+        if (register.getLastSeenAt() == null) {
+            if (buffered != null) {
+                sendAll(getSender(), buffered);
+            }
+            sendUnreadSummary(name, getSender());
+            return;
+        }
+        List<Message> missed;
+        try {
+            missed = missedMessages(name, register.getLastSeenMessageId(), register.getLastSeenAt());
+        } catch (UncheckedIOException e) {
+            log.error(e, "Cannot replay missed messages to {}", name);
+            if (buffered != null) {
+                sendAll(getSender(), buffered);
+            }
+            sendUnreadSummary(name, getSender());
+            return;
+        }
+        missed = mergeById(missed, buffered);
+        if (missed.size() > resumeMaxMessages) {
+            // Too much to replay, the client gets the newest ones and unread counts for the rest
+            missed = missed.subList(missed.size() - resumeMaxMessages, missed.size());
+            sendUnreadSummary(name, getSender());
+        }
+        for (int from = 0; from < missed.size(); from += exportChunkSize) {
+            sendAll(getSender(), missed.subList(from, Math.min(missed.size(), from + exportChunkSize)));
+        }
+        log.info("Replayed {} missed message(s) to {}", missed.size(), name);
+    }
+
+    /**
+     * Adds messages that were still waiting for the old connection to the replay.
+     * The replay only has ids above the last one the client saw, which relayed and
+     * system messages, bypassing the delivery buffer, can move past waiting ones.
+     * The replayed version of a message wins, it carries later changes.
+     */
+    private static List<Message> mergeById(List<Message> replay, List<Message> buffered) {
+        if (buffered == null || buffered.isEmpty()) {
+            return replay;
+        }
+        Map<Long, Message> byId = new TreeMap<>();
+        for (Message message : replay) {
+            byId.put(message.getId(), message);
+        }
+        for (Message message : buffered) {
+            byId.putIfAbsent(message.getId(), message);
+        }
+        return new ArrayList<>(byId.values());
+    }
+
+    /**
+     * Messages of the user's conversations with a higher id than the last one the client saw.
+     * Ids and timestamps grow together, so only the time range from lastSeenAt on is searched.
+     */
+    private List<Message> missedMessages(String user, long lastSeenMessageId, LocalDateTime lastSeenAt) {
+        List<Message> missed = new ArrayList<>();
+        for (String key : unread.conversationsOf(user)) {
+            for (Message message : messageHistory.getRange(key, lastSeenAt, LocalDateTime.MAX)) {
+                if (message.getId() > lastSeenMessageId) {
+                    missed.add(message);
+                }
+            }
+        }
+        missed.sort(Comparator.comparingLong(Message::getId));
+        return missed;
+    }
+
+    private void sendUnreadSummary(String user, ActorRef client) {
+        Map<String, Long> pending = unread.summary(user);
+        if (!pending.isEmpty()) {
+            client.tell(new UnreadSummary(labelled(user, pending), true), getSelf());
+        }
+    }
+
+    private void handleClientTerminated(Terminated terminated) {
+        if (terminated.getActor().equals(standby)) {
+            log.warning("Standby {} is gone, continuing without one", standby);
+            standby = null;
+            clearSnapshot();
+            return;
+        }
+
+        deliveries.take(terminated.getActor());
+        String name = sessions.removeDead(terminated.getActor(), System.currentTimeMillis());
+        if (name == null) {
+            return;
+        }
+        replicate(new Replication.SessionClosed(terminated.getActor()));
+
+        log.info("Client disconnected: {}", name);
+        broadcastSystemMessage(String.format("%s has left the chat", name));
+    }
+
+    private void sweepIdleSessions() {
+        List<String> evicted = sessions.evictIdle(System.currentTimeMillis(), idleTimeoutMillis);
+        evicted.forEach(admission::forget);
+        evicted.forEach(dedup::forget);
+        if (!evicted.isEmpty()) {
+            log.info("Evicted idle state for {} user(s): {}", evicted.size(), evicted);
+        }
+    }
+
+    private void handleGetServerStats(GetServerStats request) {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("sessions.live", (long) sessions.liveCount());
+        stats.put("sessions.dead", (long) sessions.deadCount());
+        stats.put("sessions.dead.total", sessions.getTotalDeadSessions());
+        stats.put("sessions.evicted.total", sessions.getTotalEvictedUsers());
+        stats.put("history.hot.messages", (long) messageHistory.hotMessageCount());
+        stats.put("history.cold.messages", (long) messageHistory.coldMessageCount());
+        stats.put("history.cold.blocks", (long) messageHistory.coldBlockCount());
+        stats.put("history.off-heap.bytes", messageHistory.offHeapBytes());
+        stats.put("history.hot.bytes", messageHistory.hotBytes());
+        stats.put("history.quota.spills", messageHistory.getQuotaSpills());
+        long releasing = 0;
+        for (List<Path> files : releasingBlocks.values()) {
+            releasing += files.size();
+        }
+        stats.put("history.cold.releasing", releasing);
+        long members = 0;
+        for (Group group : groups.values()) {
+            members += group.getMemberCount();
+        }
+        stats.put("groups.count", (long) groups.size());
+        stats.put("groups.members", members);
+        stats.put("fanout.payload-cache.hits", payloadCache.getHits());
+        stats.put("fanout.payload-cache.misses", payloadCache.getMisses());
+        stats.put("delivery.pending.messages", (long) deliveries.getPendingCount());
+        stats.put("delivery.pending.recipients", (long) deliveries.getRecipientCount());
+        stats.put("admission.tracked-users", (long) admission.trackedUsers());
+        stats.put("admission.rejected.rate", admission.getRejectedRate());
+        stats.put("admission.rejected.overload", admission.getRejectedOverload());
+        stats.put("dedup.tracked-senders", (long) dedup.trackedSenders());
+        stats.put("receipts.tracked-senders", (long) receipts.trackedSenders());
+        stats.put("dedup.duplicates", dedup.getDuplicates());
+        stats.put("typing.pending", (long) typing.size());
+        stats.put("typing.coalesced", typing.getCoalesced());
+        stats.put("typing.stale", typing.getStale());
+        stats.put("query.replicas", (long) replicas.size());
+        stats.put("replication.standby", standby == null ? 0L : 1L);
+        stats.put("timers.pending", (long) timers.size());
+        stats.put("timers.ttl-conversations", (long) messageTtls.size());
+        stats.put("timers.scheduled-sends", (long) scheduledSends.size());
+        ServerMailbox.PriorityMessageQueue mailbox = ServerMailbox.queueOf(getSelf());
+        if (mailbox != null) {
+            for (ServerMailbox.Priority priority : ServerMailbox.Priority.values()) {
+                String name = priority.name().toLowerCase();
+                stats.put("mailbox." + name + ".depth", (long) mailbox.depth(priority));
+                stats.put("mailbox." + name + ".dequeued", mailbox.dequeued(priority));
+            }
+            stats.put("mailbox.ephemeral.dropped", mailbox.ephemeralDropped());
+        }
+        getSender().tell(new ServerStats(stats), getSelf());
+    }
+
+    private void handleGetMemoryUsage(GetMemoryUsage request) {
+        Map<String, ConversationUsage> usage = new HashMap<>();
+        for (HistoryStore.Usage history : messageHistory.usage()) {
+            String key = history.getKey();
+            Group group = key.startsWith("group:") ? groups.get(key.substring("group:".length())) : null;
+            usage.put(key, new ConversationUsage(key, history, group));
+        }
+        // Groups without any history still hold their member lists
+        for (Group group : groups.values()) {
+            usage.computeIfAbsent("group:" + group.getName(), key -> new ConversationUsage(key, null, group));
+        }
+        List<ConversationUsage> largest = new ArrayList<>(usage.values());
+        largest.sort(Comparator.comparingLong(ConversationUsage::getBytes).reversed());
+        largest = largest.subList(0, Math.min(Math.max(0, request.getLimit()), largest.size()));
+        getSender().tell(new MemoryUsage(largest, usage.size(), messageHistory.hotBytes(),
+                messageHistory.getQuotaSpills()), getSelf());
+    }
+
     private void handleFindClients(FindClients find) {
-        List<String> availableClients = new ArrayList<>(clients.keySet());
+        List<String> availableClients = new ArrayList<>(sessions.names());
         availableClients.remove(find.getRequesterName());
         getSender().tell(new ClientList(availableClients), getSelf());
     }
 
     private void handleSendMessage(SendMessage sendMsg) {
-        Message message = new Message(sendMsg.getSender(), sendMsg.getContent(),
+        long clientMessageId = sendMsg.getClientMessageId();
+        long now = System.currentTimeMillis();
+        if (clientMessageId != 0 && dedup.isDuplicate(sendMsg.getSender(), clientMessageId, now)) {
+            // A retry of a message that already went out: acknowledge it again, nothing else
+            getSender().tell(new DuplicateMessage(clientMessageId), getSelf());
+            return;
+        }
+
+        ServerMailbox.PriorityMessageQueue mailbox = ServerMailbox.queueOf(getSelf());
+        int chatBacklog = mailbox == null ? 0 : mailbox.depth(ServerMailbox.Priority.CHAT);
+        AdmissionController.Decision decision = admission.admitSend(sendMsg.getSender(), chatBacklog, now);
+        if (!decision.isAccepted()) {
+            getSender().tell(new ErrorMessage(decision.getReason(), decision.getRetryAfterMillis(), clientMessageId),
+                    getSelf());
+            return;
+        }
+
+        Message message = newMessage(sendMsg.getSender(), sendMsg.getContent(),
                 sendMsg.getType(), sendMsg.getTargetGroup());
 
+        boolean sent = true;
         switch (message.getType()) {
             case GROUP:
-                handleGroupMessage(message);
+                sent = handleGroupMessage(message, clientMessageId);
                 break;
             case DIRECT:
-                handleDirectMessage(message, sendMsg.getRecipient());
+                sent = handleDirectMessage(message, sendMsg.getRecipient(), clientMessageId);
                 break;
             case SYSTEM:
                 broadcastSystemMessage(message.getContent());
                 break;
         }
+        if (sent && clientMessageId != 0) {
+            recordSent(sendMsg.getSender(), clientMessageId, now);
+        }
     }
 
-    private void handleGroupMessage(Message message) {
+    private boolean handleGroupMessage(Message message, long clientMessageId) {
         Group group = groups.get(message.getTargetGroup());
         if (group == null || !group.isMember(message.getSender())) {
-            getSender().tell(new ErrorMessage("Cannot send message to this group"), getSelf());
-            return;
+            getSender().tell(new ErrorMessage("Cannot send message to this group", 0, clientMessageId), getSelf());
+            return false;
         }
 
         storeGroupMessage(message.getTargetGroup(), message);
+        typing.messageSent(message.getSender(), "group:" + group.getName(), System.currentTimeMillis());
         broadcastToGroup(group, message);
 
-        // Send confirmation to sender
-        getSender().tell(message, getSelf());
+        // Send confirmation to sender, reusing the bytes serialized for the broadcast unless it carries a client id
+        send(getSender(), confirmation(message, clientMessageId));
+        return true;
     }
 
-    private void handleDirectMessage(Message message, String recipient) {
-        ActorRef recipientActor = clients.get(recipient);
+    private boolean handleDirectMessage(Message message, String recipient, long clientMessageId) {
+        ActorRef recipientActor = sessions.getRef(recipient);
         if (recipientActor == null) {
-            getSender().tell(new ErrorMessage("Recipient not found"), getSelf());
-            return;
+            getSender().tell(new ErrorMessage("Recipient not found", 0, clientMessageId), getSelf());
+            return false;
         }
 
         String chatId = getChatId(message.getSender(), recipient);
-        messageHistory.computeIfAbsent(chatId, k -> new ArrayList<>()).add(message);
+        storeMessage(chatId, message);
+        typing.messageSent(message.getSender(), chatId, System.currentTimeMillis());
+        unread.addParticipant(chatId, message.getSender());
+        unread.addParticipant(chatId, recipient);
+        unread.onStored(chatId, message.getSender());
 
         // Send to recipient
-        recipientActor.tell(message, getSelf());
+        send(recipientActor, message);
         // Send confirmation to sender
-        getSender().tell(message, getSelf());
+        send(getSender(), confirmation(message, clientMessageId));
+        return true;
+    }
+
+    private void recordSent(String sender, long clientMessageId, long now) {
+        dedup.record(sender, clientMessageId, now);
+        replicate(new Replication.SendRecorded(sender, clientMessageId));
+    }
+
+    private static Message confirmation(Message message, long clientMessageId) {
+        return clientMessageId == 0 ? message : message.withClientMessageId(clientMessageId);
+    }
+
+    /**
+     * Sends a batch as one unit: every conversation gets a single history append
+     * and every directly delivered recipient gets one MessageBundle with all of
+     * its messages from the batch. Entries that cannot be sent are reported in the
+     * BatchResult and do not stop the rest of the batch.
+     */
+    private void handleSendMessageBatch(SendMessageBatch batch) {
+        List<SendMessage> entries = batch.getMessages();
+        if (entries.isEmpty() || entries.size() > maxBatchSize) {
+            getSender().tell(new ErrorMessage(String.format("A batch must hold 1 to %d messages", maxBatchSize)), getSelf());
+            return;
+        }
+
+        ServerMailbox.PriorityMessageQueue mailbox = ServerMailbox.queueOf(getSelf());
+        int chatBacklog = mailbox == null ? 0 : mailbox.depth(ServerMailbox.Priority.CHAT);
+        AdmissionController.Decision decision = admission.admitBatch(batch.getSender(), entries.size(), chatBacklog,
+                System.currentTimeMillis());
+
+        Map<String, List<Message>> byConversation = new LinkedHashMap<>();
+        Map<ActorRef, List<Message>> byRecipient = new LinkedHashMap<>();
+        Map<Group, List<Message>> relayed = new LinkedHashMap<>();
+        List<String> errors = new ArrayList<>();
+        int sent = 0;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < decision.getAdmitted(); i++) {
+            SendMessage entry = entries.get(i);
+            long clientMessageId = entry.getClientMessageId();
+            if (clientMessageId != 0 && dedup.isDuplicate(batch.getSender(), clientMessageId, now)) {
+                // Sent by an earlier attempt of this batch
+                sent++;
+                continue;
+            }
+            if (entry.getType() == Message.MessageType.GROUP) {
+                Group group = groups.get(entry.getTargetGroup());
+                if (group == null || !group.isMember(batch.getSender())) {
+                    errors.add(String.format("#%d: cannot send message to group %s", i + 1, entry.getTargetGroup()));
+                    continue;
+                }
+                Message message = newMessage(batch.getSender(), entry.getContent(), Message.MessageType.GROUP, group.getName());
+                byConversation.computeIfAbsent("group:" + group.getName(), k -> new ArrayList<>()).add(message);
+                if (group.getMemberCount() >= relayThreshold) {
+                    relayed.computeIfAbsent(group, k -> new ArrayList<>()).add(message);
+                } else {
+                    for (String member : group.getMembers()) {
+                        ActorRef memberActor = member.equals(batch.getSender()) ? null : sessions.getRef(member);
+                        if (memberActor != null) {
+                            byRecipient.computeIfAbsent(memberActor, k -> new ArrayList<>()).add(message);
+                        }
+                    }
+                }
+            } else if (entry.getType() == Message.MessageType.DIRECT) {
+                ActorRef recipientActor = sessions.getRef(entry.getRecipient());
+                if (recipientActor == null) {
+                    errors.add(String.format("#%d: recipient %s not found", i + 1, entry.getRecipient()));
+                    continue;
+                }
+                Message message = newMessage(batch.getSender(), entry.getContent(), Message.MessageType.DIRECT, null);
+                String chatId = getChatId(batch.getSender(), entry.getRecipient());
+                unread.addParticipant(chatId, batch.getSender());
+                unread.addParticipant(chatId, entry.getRecipient());
+                byConversation.computeIfAbsent(chatId, k -> new ArrayList<>()).add(message);
+                byRecipient.computeIfAbsent(recipientActor, k -> new ArrayList<>()).add(message);
+            } else {
+                errors.add(String.format("#%d: only direct and group messages can be batched", i + 1));
+                continue;
+            }
+            if (clientMessageId != 0) {
+                recordSent(batch.getSender(), clientMessageId, now);
+            }
+            sent++;
+        }
+
+        for (Map.Entry<String, List<Message>> conversation : byConversation.entrySet()) {
+            storeMessages(conversation.getKey(), conversation.getValue());
+            typing.messageSent(batch.getSender(), conversation.getKey(), now);
+            for (Message message : conversation.getValue()) {
+                unread.onStored(conversation.getKey(), message.getSender());
+                if (conversation.getKey().startsWith("group:")) {
+                    receipts.onStored(conversation.getKey(), message.getSender(), message.getId(),
+                            unread.getSequence(conversation.getKey()));
+                }
+            }
+        }
+        for (Map.Entry<ActorRef, List<Message>> delivery : byRecipient.entrySet()) {
+            // Messages still waiting in the delivery window go first, in the same envelope
+            List<Message> messages = deliveries.take(delivery.getKey());
+            if (messages == null) {
+                messages = delivery.getValue();
+            } else {
+                messages.addAll(delivery.getValue());
+            }
+            sendAll(delivery.getKey(), messages);
+        }
+        ActorRef senderActor = sessions.getRef(batch.getSender());
+        for (Map.Entry<Group, List<Message>> delivery : relayed.entrySet()) {
+            deliver(fanout.forGroup(delivery.getKey(), sessions), new MessageBundle(delivery.getValue()), senderActor);
+        }
+
+        if (!decision.isAccepted()) {
+            errors.add(decision.getReason());
+        }
+        getSender().tell(new BatchResult(entries.get(0).getClientMessageId(), entries.size(), decision.getAdmitted(),
+                sent, errors, decision.getRetryAfterMillis()), getSelf());
+    }
+
+    /**
+     * Applies an edit, deletion or reaction to a stored message and sends the delta,
+     * not the changed message, to everyone in the conversation who is online,
+     * including whoever made the change.
+     */
+    private void handleMessageDelta(MessageDelta delta) {
+        ServerMailbox.PriorityMessageQueue mailbox = ServerMailbox.queueOf(getSelf());
+        int chatBacklog = mailbox == null ? 0 : mailbox.depth(ServerMailbox.Priority.CHAT);
+        AdmissionController.Decision decision = admission.admitSend(delta.getUser(), chatBacklog,
+                System.currentTimeMillis());
+        if (!decision.isAccepted()) {
+            getSender().tell(new ErrorMessage(decision.getReason(), decision.getRetryAfterMillis(), 0), getSelf());
+            return;
+        }
+
+        Group group = null;
+        String key;
+        if (delta.getTargetGroup() != null) {
+            group = groups.get(delta.getTargetGroup());
+            if (group == null || !group.isMember(delta.getUser())) {
+                getSender().tell(new ErrorMessage("Cannot change messages of this group"), getSelf());
+                return;
+            }
+            key = "group:" + group.getName();
+        } else if (delta.getChatPartner() != null) {
+            key = getChatId(delta.getUser(), delta.getChatPartner());
+        } else {
+            getSender().tell(new ErrorMessage("No conversation given"), getSelf());
+            return;
+        }
+
+        Message message;
+        try {
+            message = messageHistory.find(key, delta.getMessageId());
+        } catch (UncheckedIOException e) {
+            log.error(e, "Cannot look up message {} in {}", delta.getMessageId(), key);
+            getSender().tell(new ErrorMessage("History is unavailable right now"), getSelf());
+            return;
+        }
+        String problem = checkDelta(delta, message);
+        if (problem != null) {
+            getSender().tell(new ErrorMessage(problem), getSelf());
+            return;
+        }
+        Message changed = delta.applyTo(message);
+        messageHistory.change(key, changed);
+        publish(new QueryReplica.MessageChanged(key, changed));
+
+        if (group == null) {
+            sendDelta(sessions.getRef(delta.getUser()), delta, false);
+            sendDelta(sessions.getRef(delta.getChatPartner()), delta, false);
+        } else if (group.getMemberCount() >= relayThreshold) {
+            deliver(fanout.forGroup(group, sessions), delta, null);
+        } else {
+            for (String member : group.getMembers()) {
+                sendDelta(sessions.getRef(member), delta, true);
+            }
+        }
+    }
+
+    private static String checkDelta(MessageDelta delta, Message message) {
+        if (message == null || message.isDeleted()) {
+            return "Message not found";
+        }
+        if (message.getType() == Message.MessageType.SYSTEM) {
+            return "System messages cannot be changed";
+        }
+        if (delta.getKind() == MessageDelta.Kind.REACT) {
+            return delta.getValue() != null && delta.getValue().length() > MAX_REACTION_LENGTH ?
+                    String.format("A reaction can be at most %d characters", MAX_REACTION_LENGTH) : null;
+        }
+        if (!message.getSender().equals(delta.getUser())) {
+            return "You can only change your own messages";
+        }
+        if (delta.getKind() == MessageDelta.Kind.EDIT && (delta.getValue() == null || delta.getValue().trim().isEmpty())) {
+            return "An edit needs the new text";
+        }
+        return null;
+    }
+
+    /**
+     * Typing indicators skip admission, history and replication: they are checked
+     * and kept for the next typing tick, only the latest per user and conversation.
+     */
+    private void handleTypingEvent(TypingEvent event) {
+        // Only from the user's own session, which also means the user is online
+        if (!getSender().equals(sessions.getRef(event.getUser()))) {
+            return;
+        }
+        String key;
+        if (event.getTargetGroup() != null) {
+            Group group = groups.get(event.getTargetGroup());
+            if (group == null || !group.isMember(event.getUser()) || group.getMemberCount() > typingMaxGroupSize) {
+                return;
+            }
+            key = "group:" + group.getName();
+        } else if (event.getChatPartner() != null) {
+            key = getChatId(event.getUser(), event.getChatPartner());
+        } else {
+            return;
+        }
+        if (typing.offer(key, event, System.currentTimeMillis())) {
+            getTimers().startSingleTimer(FLUSH_TYPING, FLUSH_TYPING, typingTick);
+        }
+    }
+
+    private void flushTyping() {
+        for (TypingEvent event : typing.drain()) {
+            if (event.getTargetGroup() == null) {
+                ActorRef partner = sessions.getRef(event.getChatPartner());
+                if (partner != null) {
+                    partner.tell(event, getSelf());
+                }
+                continue;
+            }
+            Group group = groups.get(event.getTargetGroup());
+            if (group == null) {
+                continue;
+            }
+            for (String member : group.getMembers()) {
+                ActorRef ref = member.equals(event.getUser()) ? null : sessions.getRef(member);
+                if (ref != null) {
+                    ref.tell(event, getSelf());
+                }
+            }
+        }
+    }
+
+    private void sendDelta(ActorRef recipient, MessageDelta delta, boolean shared) {
+        if (recipient == null) {
+            return;
+        }
+        // Messages still in the delivery window go first, the delta may refer to one of them
+        List<Message> pending = deliveries.take(recipient);
+        if (pending != null) {
+            sendAll(recipient, pending);
+        }
+        recipient.tell(shared ? broadcastForm(recipient, delta) : delta, getSelf());
     }
 
     public static class CreateGroup implements Serializable {
@@ -126,12 +782,14 @@ public class ServerActor extends AbstractActor {
 
         Group group = new Group(cmd.getGroupName(), cmd.getAdmin());
         groups.put(cmd.getGroupName(), group);
+        publish(new QueryReplica.GroupAdded(cmd.getGroupName(), cmd.getAdmin()));
+        unread.addParticipant("group:" + cmd.getGroupName(), cmd.getAdmin());
 
         String message = String.format("Group '%s' created by %s", cmd.getGroupName(), cmd.getAdmin());
-        Message systemMsg = new Message("SYSTEM", message, Message.MessageType.SYSTEM, cmd.getGroupName());
+        Message systemMsg = newMessage("SYSTEM", message, Message.MessageType.SYSTEM, cmd.getGroupName());
         storeGroupMessage(cmd.getGroupName(), systemMsg);
 
-        getSender().tell(new GroupCreated(group), getSelf());
+        getSender().tell(new GroupCreated(GroupView.of(group)), getSelf());
         broadcastSystemMessage(message);
     }
 
@@ -170,7 +828,8 @@ public class ServerActor extends AbstractActor {
         }
 
         group.addInvite(cmd.getInvitee());
-        ActorRef invitee = clients.get(cmd.getInvitee());
+        publish(new QueryReplica.InviteAdded(cmd.getGroupName(), cmd.getInvitee()));
+        ActorRef invitee = sessions.getRef(cmd.getInvitee());
         if (invitee != null) {
             invitee.tell(new GroupInvitation(cmd.getGroupName(), cmd.getInviter()), getSelf());
             getSender().tell(new SystemMessage(String.format("Invitation sent to %s", cmd.getInvitee())), getSelf());
@@ -205,19 +864,16 @@ public class ServerActor extends AbstractActor {
         }
 
         group.addMember(cmd.getUsername());
+        publish(new QueryReplica.MemberAdded(cmd.getGroupName(), cmd.getUsername()));
 
         String joinMessage = String.format("%s joined the group", cmd.getUsername());
-        Message systemMsg = new Message("SYSTEM", joinMessage, Message.MessageType.SYSTEM, cmd.getGroupName());
+        Message systemMsg = newMessage("SYSTEM", joinMessage, Message.MessageType.SYSTEM, cmd.getGroupName());
         broadcastToGroup(group, systemMsg);
         storeGroupMessage(cmd.getGroupName(), systemMsg);
+        unread.addParticipant("group:" + cmd.getGroupName(), cmd.getUsername());
 
-        // Send group info to new member
-        getSender().tell(new JoinedGroup(group), getSelf());
-
-        // Send chat history to new member
-        String historyKey = "group:" + cmd.getGroupName();
-        List<Message> history = messageHistory.getOrDefault(historyKey, new ArrayList<>());
-        getSender().tell(new GroupChatHistory(group, history), getSelf());
+        // The replica sends both the group info and the history, keeping them in order
+        nextReplica().tell(new QueryReplica.JoinReply(GroupView.of(group), cmd.getUsername()), getSender());
     }
 
     private void handleLeaveGroup(LeaveGroup cmd) {
@@ -238,8 +894,11 @@ public class ServerActor extends AbstractActor {
         }
 
         group.removeMember(cmd.getUsername());
+        publish(new QueryReplica.MemberRemoved(cmd.getGroupName(), cmd.getUsername()));
+        unread.removeParticipant("group:" + cmd.getGroupName(), cmd.getUsername());
+        receipts.removeSender("group:" + cmd.getGroupName(), cmd.getUsername());
         String leaveMessage = String.format("%s left the group", cmd.getUsername());
-        Message systemMsg = new Message("SYSTEM", leaveMessage, Message.MessageType.SYSTEM, cmd.getGroupName());
+        Message systemMsg = newMessage("SYSTEM", leaveMessage, Message.MessageType.SYSTEM, cmd.getGroupName());
         broadcastToGroup(group, systemMsg);
         storeGroupMessage(cmd.getGroupName(), systemMsg);
 
@@ -260,12 +919,17 @@ public class ServerActor extends AbstractActor {
 
         // Notify all members
         String disbandMessage = String.format("Group '%s' has been disbanded by admin", cmd.getGroupName());
-        Message systemMsg = new Message("SYSTEM", disbandMessage, Message.MessageType.SYSTEM, cmd.getGroupName());
+        Message systemMsg = newMessage("SYSTEM", disbandMessage, Message.MessageType.SYSTEM, cmd.getGroupName());
         broadcastToGroup(group, systemMsg);
 
         // Remove group
         groups.remove(cmd.getGroupName());
+        fanout.forget(cmd.getGroupName());
         messageHistory.remove("group:" + cmd.getGroupName());
+        unread.removeConversation("group:" + cmd.getGroupName());
+        receipts.removeConversation("group:" + cmd.getGroupName());
+        messageTtls.remove("group:" + cmd.getGroupName());
+        publish(new QueryReplica.GroupRemoved(cmd.getGroupName()));
 
         getSender().tell(new GroupDisbanded(cmd.getGroupName()), getSelf());
     }
@@ -274,14 +938,21 @@ public class ServerActor extends AbstractActor {
         private static final long serialVersionUID = 1L;
         private final String groupName;
         private final String username;
+        private final int historyLimit;  // newest messages to include, 0 for the default page
 
         public GetGroupInfo(String groupName, String username) {
+            this(groupName, username, 0);
+        }
+
+        public GetGroupInfo(String groupName, String username, int historyLimit) {
             this.groupName = groupName;
             this.username = username;
+            this.historyLimit = historyLimit;
         }
 
         public String getGroupName() { return groupName; }
         public String getUsername() { return username; }
+        public int getHistoryLimit() { return historyLimit; }
     }
 
     public static class GetGroupList implements Serializable {
@@ -295,170 +966,973 @@ public class ServerActor extends AbstractActor {
         public String getUsername() { return username; }
     }
 
-    private void handleGetGroupList(GetGroupList cmd) {
-        List<GroupInfo> groupInfos = new ArrayList<>();
-        for (Group group : groups.values()) {
-            boolean isMember = group.isMember(cmd.getUsername());
-            boolean hasInvite = group.hasPendingInvite(cmd.getUsername());
-            if (isMember || hasInvite) {
-                groupInfos.add(new GroupInfo(group.getName(), group.getAdmin(),
-                        group.getMembers().size(), isMember, hasInvite));
-            }
-        }
-        getSender().tell(new GroupList(groupInfos), getSelf());
-    }
-
     private void handleGetGroupInfo(GetGroupInfo cmd) {
-        Group group = groups.get(cmd.getGroupName());
-        if (group == null) {
-            getSender().tell(new ErrorMessage("Group not found"), getSelf());
-            return;
-        }
-
-        if (!group.isMember(cmd.getUsername())) {
-            getSender().tell(new ErrorMessage("You are not a member of this group"), getSelf());
-            return;
-        }
-
-        String historyKey = "group:" + cmd.getGroupName();
-        List<Message> history = messageHistory.getOrDefault(historyKey, new ArrayList<>());
-        getSender().tell(new GroupChatHistory(group, history), getSelf());
+        markRead(cmd.getUsername(), "group:" + cmd.getGroupName());
+        nextReplica().forward(cmd, getContext());
     }
 
     private void handleGetChatHistory(GetChatHistory request) {
-        if (request.isGroupChat()) {
-            String historyKey = "group:" + request.getGroupName();
-            List<Message> history = messageHistory.getOrDefault(historyKey, new ArrayList<>());
-            getSender().tell(new ChatHistory(history), getSelf());
-        } else {
-            String chatId = getChatId(request.getUser1(), request.getUser2());
-            List<Message> history = messageHistory.getOrDefault(chatId, new ArrayList<>());
-            getSender().tell(new ChatHistory(history), getSelf());
+        if (!request.isGroupChat()) {
+            markRead(request.getUser1(), getChatId(request.getUser1(), request.getUser2()));
         }
+        nextReplica().forward(request, getContext());
     }
 
     private void storeGroupMessage(String groupName, Message message) {
         String historyKey = "group:" + groupName;
-        messageHistory.computeIfAbsent(historyKey, k -> new ArrayList<>()).add(message);
+        storeMessage(historyKey, message);
+        if (message.getType() != Message.MessageType.SYSTEM) {
+            unread.onStored(historyKey, message.getSender());
+            receipts.onStored(historyKey, message.getSender(), message.getId(), unread.getSequence(historyKey));
+        }
     }
 
-    private void broadcastToGroup(Group group, Message message) {
-        for (String member : group.getMembers()) {
-            // Skip sending the message back to the sender
-            if (member.equals(message.getSender())) {
-                continue;
+    private void storeMessage(String key, Message message) {
+        storeMessages(key, Collections.singletonList(message));
+    }
+
+    /**
+     * Stores messages and, in a conversation with disappearing messages, schedules
+     * each to expire its TTL after it was sent. Copied history, as in a snapshot,
+     * may be old already: what has expired is not stored at all.
+     */
+    private void storeMessages(String key, List<Message> messages) {
+        Duration ttl = messageTtls.get(key);
+        LocalDateTime now = LocalDateTime.now();
+        if (ttl != null) {
+            LocalDateTime cutoff = now.minus(ttl);
+            List<Message> live = new ArrayList<>(messages.size());
+            for (Message message : messages) {
+                if (message.getTimestamp().isAfter(cutoff)) {
+                    live.add(message);
+                }
+            }
+            messages = live;
+            if (messages.isEmpty()) {
+                return;
             }
+        }
 
-            ActorRef memberActor = clients.get(member);
-            if (memberActor != null) {
-                memberActor.tell(message, getSelf());
+        messageHistory.appendAll(key, messages);
+        publish(new QueryReplica.MessagesStored(key, messages));
+        if (ttl != null) {
+            long nowMillis = System.currentTimeMillis();
+            for (Message message : messages) {
+                long delay = Duration.between(now, message.getTimestamp().plus(ttl)).toMillis();
+                timers.schedule(new Expiry(key, message.getId(), message.getTimestamp()), delay, nowMillis);
             }
         }
     }
 
+    private Message newMessage(String sender, String content, Message.MessageType type, String targetGroup) {
+        return new Message(nextMessageId++, sender, content, type, targetGroup);
+    }
 
-    public static class ChatHistory implements Serializable {
-        private static final long serialVersionUID = 1L;
-        private final List<Message> messages;
-
-        public ChatHistory(List<Message> messages) {
-            this.messages = new ArrayList<>(messages);
+    private void handleSetMessageTtl(SetMessageTtl cmd) {
+        Duration ttl = cmd.getTtl() == null || cmd.getTtl().isZero() || cmd.getTtl().isNegative() ? null : cmd.getTtl();
+        String description = ttl == null ?
+                String.format("%s turned off disappearing messages", cmd.getUsername()) :
+                String.format("%s set messages to disappear after %s", cmd.getUsername(), Durations.format(ttl));
+
+        if (cmd.getGroupName() != null) {
+            Group group = groups.get(cmd.getGroupName());
+            if (group == null) {
+                getSender().tell(new ErrorMessage("Group not found"), getSelf());
+                return;
+            }
+            if (!group.getAdmin().equals(cmd.getUsername())) {
+                getSender().tell(new ErrorMessage("Only the admin can change disappearing messages"), getSelf());
+                return;
+            }
+            setTtl("group:" + group.getName(), ttl);
+            Message systemMsg = newMessage("SYSTEM", description, Message.MessageType.SYSTEM, group.getName());
+            broadcastToGroup(group, systemMsg);
+            storeGroupMessage(group.getName(), systemMsg);
+            return;
         }
 
-        public List<Message> getMessages() {
-            return messages;
+        String partnerName = cmd.getChatPartner();
+        if (!isChatPartner(cmd.getUsername(), partnerName)) {
+            getSender().tell(new ErrorMessage("User not found"), getSelf());
+            return;
+        }
+        setTtl(getChatId(cmd.getUsername(), partnerName), ttl);
+        SystemMessage notice = new SystemMessage(description);
+        ActorRef partner = sessions.getRef(partnerName);
+        if (partner != null) {
+            partner.tell(notice, getSelf());
         }
+        getSender().tell(notice, getSelf());
     }
 
-    private void broadcastSystemMessage(String content) {
-        Message systemMsg = new Message("SYSTEM", content, Message.MessageType.SYSTEM, null);
-        for (ActorRef client : clients.values()) {
-            client.tell(systemMsg, getSelf());
+    /**
+     * Someone else who is online, or with whom the user already has a conversation.
+     */
+    private boolean isChatPartner(String user, String partner) {
+        if (partner == null || partner.equals(user)) {
+            return false;
         }
+        return sessions.isRegistered(partner) || unread.conversationsOf(user).contains(getChatId(user, partner));
     }
 
-    private String getChatId(String user1, String user2) {
-        return user1.compareTo(user2) < 0 ?
-                user1 + ":" + user2 :
-                user2 + ":" + user1;
+    private void setTtl(String key, Duration ttl) {
+        // Only messages stored from now on are affected
+        if (ttl == null) {
+            messageTtls.remove(key);
+        } else {
+            messageTtls.put(key, ttl);
+        }
+        replicate(new Replication.TtlChanged(key, ttl));
     }
 
-    // Additional Message Classes
-    public static class LeaveGroup implements Serializable {
-        private static final long serialVersionUID = 1L;
-        private final String groupName;
-        private final String username;
-
-        public LeaveGroup(String groupName, String username) {
-            this.groupName = groupName;
-            this.username = username;
+    private void handleScheduleMessage(ScheduleMessage cmd) {
+        if (cmd.getDelayMillis() < 1000 || cmd.getDelayMillis() > maxScheduleDelayMillis) {
+            getSender().tell(new ErrorMessage(String.format("Delay must be between 1s and %s",
+                    Durations.format(Duration.ofMillis(maxScheduleDelayMillis)))), getSelf());
+            return;
         }
 
-        public String getGroupName() { return groupName; }
-        public String getUsername() { return username; }
+        long now = System.currentTimeMillis();
+        ScheduledSend send = new ScheduledSend(nextScheduleId++, cmd.getMessage(), getSender(), now + cmd.getDelayMillis());
+        schedule(send, now);
+        replicate(send.toEvent());
+        LocalDateTime at = LocalDateTime.now().plusNanos(cmd.getDelayMillis() * 1_000_000L);
+        getSender().tell(new SystemMessage(String.format("Message scheduled for %s",
+                at.format(java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")))), getSelf());
     }
 
-    public static class LeftGroup implements Serializable {
-        private static final long serialVersionUID = 1L;
-        private final String groupName;
-
-        public LeftGroup(String groupName) {
-            this.groupName = groupName;
+    /**
+     * Handles everything that came due on the timer wheel since the last tick.
+     * Expired messages are removed per conversation in one batch, scheduled
+     * sends go through the normal send path as if the author sent them now.
+     */
+    private void advanceTimers() {
+        List<Object> due = timers.advance(System.currentTimeMillis());
+        if (due.isEmpty()) {
+            return;
         }
 
-        public String getGroupName() { return groupName; }
+        Map<String, Map<Long, LocalDateTime>> expired = new HashMap<>();
+        for (Object item : due) {
+            if (item instanceof Expiry) {
+                Expiry expiry = (Expiry) item;
+                expired.computeIfAbsent(expiry.key, k -> new HashMap<>()).put(expiry.messageId, expiry.timestamp);
+            } else if (item instanceof ScheduledSend && active) {
+                // A standby keeps its copy until the primary reports it sent or it takes over
+                fireScheduled(((ScheduledSend) item).id);
+            }
+        }
+        expired.forEach(messageHistory::removeMessages);
+        releaseRetiredBlocks();
     }
 
-    public static class DisbandGroup implements Serializable {
-        private static final long serialVersionUID = 1L;
-        private final String groupName;
-        private final String username;
-
-        public DisbandGroup(String groupName, String username) {
-            this.groupName = groupName;
-            this.username = username;
+    /**
+     * Writes all groups and history to an archive file. The server does not handle
+     * other messages until the export is done, which keeps the archive consistent.
+     */
+    private void handleExportHistory(ExportHistory cmd) {
+        long start = System.nanoTime();
+        try {
+            HistoryArchive.Summary summary = HistoryArchive.export(Paths.get(cmd.getPath()), messageHistory,
+                    groups.values(), messageTtls, exportChunkSize);
+            log.info("Exported {} conversation(s) to {}", summary.getConversations(), cmd.getPath());
+            getSender().tell(new ArchiveResult(summary, (System.nanoTime() - start) / 1_000_000), getSelf());
+        } catch (IOException | RuntimeException e) {
+            log.error(e, "Export to {} failed", cmd.getPath());
+            getSender().tell(new ErrorMessage("Export failed: " + e.getMessage()), getSelf());
         }
+    }
 
-        public String getGroupName() { return groupName; }
-        public String getUsername() { return username; }
+    /**
+     * Restores groups and history from an archive. Groups and conversations in the
+     * archive replace existing ones with the same name, everything else is kept.
+     */
+    private void handleImportHistory(ImportHistory cmd) {
+        long start = System.nanoTime();
+        try {
+            HistoryArchive.Summary summary = HistoryArchive.read(Paths.get(cmd.getPath()), messageHistory,
+                    new HistoryArchive.Visitor() {
+                        @Override
+                        public void onGroup(String name, String admin, List<String> members, List<String> invites) {
+                            restoreGroup(name, admin, members, invites);
+                        }
+
+                        @Override
+                        public void onConversation(String key, Duration ttl, List<HistoryStore.ColdBlock> blocks) {
+                            messageHistory.restore(key, blocks);
+                            setTtl(key, ttl);
+                            for (HistoryStore.ColdBlock block : blocks) {
+                                nextMessageId = Math.max(nextMessageId, block.getMaxId() + 1);
+                            }
+                            if (standby != null) {
+                                // Restored blocks only exist on this machine, the standby gets the messages
+                                snapshotConversations.add(key);
+                            }
+                        }
+                    });
+            if (standby != null && !snapshotInFlight) {
+                sendSnapshotStep();
+            }
+            log.info("Imported {} conversation(s) from {}", summary.getConversations(), cmd.getPath());
+            getSender().tell(new ArchiveResult(summary, (System.nanoTime() - start) / 1_000_000), getSelf());
+        } catch (IOException | RuntimeException e) {
+            log.error(e, "Import from {} failed", cmd.getPath());
+            getSender().tell(new ErrorMessage("Import failed: " + e.getMessage()), getSelf());
+        }
     }
 
-    public static class GroupDisbanded implements Serializable {
-        private static final long serialVersionUID = 1L;
-        private final String groupName;
+    private void restoreGroup(String name, String admin, List<String> members, List<String> invites) {
+        if (groups.remove(name) != null) {
+            fanout.forget(name);
+            unread.removeConversation("group:" + name);
+            receipts.removeConversation("group:" + name);
+            publish(new QueryReplica.GroupRemoved(name));
+        }
 
-        public GroupDisbanded(String groupName) {
-            this.groupName = groupName;
+        Group group = new Group(name, admin);
+        groups.put(name, group);
+        publish(new QueryReplica.GroupAdded(name, admin));
+        unread.addParticipant("group:" + name, admin);
+        for (String member : members) {
+            group.addMember(member);
+            publish(new QueryReplica.MemberAdded(name, member));
+            unread.addParticipant("group:" + name, member);
+        }
+        for (String invitee : invites) {
+            group.addInvite(invitee);
+            publish(new QueryReplica.InviteAdded(name, invitee));
         }
+    }
 
-        public String getGroupName() { return groupName; }
+    /**
+     * Only what is needed to find the message again, its body may have moved to
+     * disk or off-heap long before it expires.
+     */
+    private static final class Expiry {
+        final String key;
+        final long messageId;
+        final LocalDateTime timestamp;
+
+        Expiry(String key, long messageId, LocalDateTime timestamp) {
+            this.key = key;
+            this.messageId = messageId;
+            this.timestamp = timestamp;
+        }
     }
 
-    public static class SystemMessage implements Serializable {
-        private static final long serialVersionUID = 1L;
-        private final String message;
+    private static final class ScheduledSend {
+        final long id;
+        final SendMessage message;
+        final ActorRef replyTo;
+        final long dueAtMillis;
 
-        public SystemMessage(String message) {
+        ScheduledSend(long id, SendMessage message, ActorRef replyTo, long dueAtMillis) {
+            this.id = id;
             this.message = message;
+            this.replyTo = replyTo;
+            this.dueAtMillis = dueAtMillis;
         }
 
-        public String getMessage() { return message; }
+        Replication.SendScheduled toEvent() {
+            return new Replication.SendScheduled(id, message, replyTo, dueAtMillis);
+        }
     }
 
-    public static class RegistrationSuccess implements Serializable {
-        private static final long serialVersionUID = 1L;
-        private final String name;
+    private void schedule(ScheduledSend send, long now) {
+        scheduledSends.put(send.id, send);
+        timers.schedule(send, Math.max(0, send.dueAtMillis - now), now);
+    }
 
-        public RegistrationSuccess(String name) {
-            this.name = name;
+    /**
+     * Sends a scheduled message through the normal send path, unless it was sent already.
+     */
+    private void fireScheduled(long id) {
+        ScheduledSend send = scheduledSends.remove(id);
+        if (send != null) {
+            replicate(new Replication.ScheduledSendDone(id));
+            getSelf().tell(send.message, send.replyTo);
         }
-
-        public String getName() { return name; }
     }
 
-    public static class ClientList implements Serializable {
-        private static final long serialVersionUID = 1L;
-        private final List<String> clients;
+    private void maintainHistory() {
+        messageHistory.enforceRetention(LocalDateTime.now());
+        releaseRetiredBlocks();
+    }
+
+    /**
+     * Block files replaced since the last call are deleted once every replica has
+     * confirmed a ReleaseBlocks sent after the events that replaced them, so a
+     * replica never reads a block that is already gone.
+     */
+    private void releaseRetiredBlocks() {
+        List<Path> files = messageHistory.takeRetired();
+        if (files.isEmpty()) {
+            return;
+        }
+        long id = nextReleaseId++;
+        releasingBlocks.put(id, files);
+        releasePending.put(id, new HashSet<>(replicas));
+        for (ActorRef replica : replicas) {
+            replica.tell(new QueryReplica.ReleaseBlocks(id), getSelf());
+        }
+    }
+
+    private void onBlocksReleased(QueryReplica.BlocksReleased released) {
+        Set<ActorRef> pending = releasePending.get(released.id);
+        if (pending == null) {
+            return;
+        }
+        pending.remove(getSender());
+        if (pending.isEmpty()) {
+            releasePending.remove(released.id);
+            messageHistory.deleteBlocks(releasingBlocks.remove(released.id));
+        }
+    }
+
+    /**
+     * Sends a change to every query replica. Replicas only learn about state
+     * through these events, so every write to history or groups must publish one.
+     * The Serializable ones are streamed to the standby as well.
+     */
+    private void publish(Object event) {
+        for (ActorRef replica : replicas) {
+            replica.tell(event, getSelf());
+        }
+        if (event instanceof Serializable) {
+            replicate(event);
+        }
+    }
+
+    private void replicate(Object event) {
+        if (standby == null) {
+            return;
+        }
+        if (event instanceof QueryReplica.MessagesStored) {
+            QueryReplica.MessagesStored stored = (QueryReplica.MessagesStored) event;
+            List<List<Message>> chunks = replicationChunks(stored.messages);
+            if (chunks.size() > 1) {
+                for (List<Message> chunk : chunks) {
+                    standby.tell(new QueryReplica.MessagesStored(stored.key, chunk), getSelf());
+                }
+                return;
+            }
+        }
+        standby.tell(event, getSelf());
+    }
+
+    /**
+     * Splits messages into runs that fit in one event to the standby. Sizes are
+     * estimated for Java serialization with up to three bytes per character.
+     */
+    private static List<List<Message>> replicationChunks(List<Message> messages) {
+        List<List<Message>> chunks = new ArrayList<>();
+        int start = 0;
+        long bytes = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            Message message = messages.get(i);
+            long size = 128 + 3L * (length(message.getSender()) + length(message.getContent()));
+            if (i > start && bytes + size > REPLICATION_CHUNK_BYTES) {
+                chunks.add(new ArrayList<>(messages.subList(start, i)));
+                start = i;
+                bytes = 0;
+            }
+            bytes += size;
+        }
+        if (start < messages.size()) {
+            chunks.add(start == 0 ? messages : new ArrayList<>(messages.subList(start, messages.size())));
+        }
+        return chunks;
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    /**
+     * Starts streaming to a standby: a snapshot of the current state first, then
+     * every change as it happens. A new subscriber replaces the previous standby.
+     */
+    private void handleSubscribe(Replication.Subscribe subscribe) {
+        if (getSender().equals(standby)) {
+            // Repeated while the snapshot is on its way
+            return;
+        }
+        if (standby != null) {
+            getContext().unwatch(standby);
+        }
+        standby = getSender();
+        getContext().watch(standby);
+        log.info("Streaming state to standby {}", standby);
+
+        clearSnapshot();
+        snapshotSessions.addAll(sessions.names());
+        snapshotGroups.addAll(groups.keySet());
+        snapshotConversations.addAll(messageHistory.keys());
+        snapshotScheduled.addAll(scheduledSends.keySet());
+        sendSnapshotStep();
+    }
+
+    /**
+     * Sends the next part of the snapshot followed by a SnapshotStep, which the
+     * standby echoes once it has applied everything before it. Waiting for the echo
+     * keeps a large snapshot from overflowing the remote send queue. Each part is
+     * read from the current state, so changes made meanwhile are never lost: they
+     * are either included or streamed after the part that covers them.
+     */
+    private void sendSnapshotStep() {
+        int sent = 0;
+        while (sent < SNAPSHOT_STEP_EVENTS && !snapshotSessions.isEmpty()) {
+            String name = snapshotSessions.poll();
+            if (sessions.isRegistered(name)) {
+                replicate(new Replication.SessionOpened(name, sessions.getRef(name), sessions.getRelay(name),
+                        sessions.getToken(name)));
+                sent++;
+            }
+        }
+        while (sent < SNAPSHOT_STEP_EVENTS && !snapshotGroups.isEmpty()) {
+            Group group = groups.get(snapshotGroups.poll());
+            if (group != null) {
+                replicate(new QueryReplica.GroupAdded(group.getName(), group.getAdmin()));
+                for (String member : group.getMembers()) {
+                    replicate(new QueryReplica.MemberAdded(group.getName(), member));
+                }
+                for (String invitee : group.getPendingInvites()) {
+                    replicate(new QueryReplica.InviteAdded(group.getName(), invitee));
+                }
+                sent += 1 + group.getMemberCount() + group.getPendingInvites().size();
+            }
+        }
+        while (sent < SNAPSHOT_STEP_EVENTS && !snapshotConversations.isEmpty()) {
+            sent += replicateConversation(snapshotConversations.poll());
+        }
+        while (sent < SNAPSHOT_STEP_EVENTS && !snapshotScheduled.isEmpty()) {
+            ScheduledSend send = scheduledSends.get(snapshotScheduled.poll());
+            if (send != null) {
+                replicate(send.toEvent());
+                sent++;
+            }
+        }
+
+        if (snapshotSessions.isEmpty() && snapshotGroups.isEmpty() && snapshotConversations.isEmpty()
+                && snapshotScheduled.isEmpty()) {
+            replicate(new Replication.SnapshotDone(nextMessageId));
+            snapshotInFlight = false;
+        } else {
+            replicate(new Replication.SnapshotStep());
+            snapshotInFlight = true;
+        }
+    }
+
+    /**
+     * Sends the whole history of one conversation in one go. Returns the number of events sent.
+     */
+    private int replicateConversation(String key) {
+        replicate(new Replication.ConversationReset(key));
+        replicate(new Replication.TtlChanged(key, messageTtls.get(key)));
+        int sent = 2;
+        for (HistoryStore.ColdBlock block : messageHistory.coldBlocks(key)) {
+            try {
+                for (List<Message> chunk : replicationChunks(messageHistory.readMessages(key, block))) {
+                    replicate(new Replication.ConversationChunk(key, chunk));
+                    sent++;
+                }
+            } catch (UncheckedIOException e) {
+                log.error(e, "Standby misses {} message(s) of {}", block.getCount(), key);
+            }
+        }
+        List<Message> hot = messageHistory.hotMessages(key);
+        for (int from = 0; from < hot.size(); from += exportChunkSize) {
+            for (List<Message> chunk : replicationChunks(hot.subList(from, Math.min(hot.size(), from + exportChunkSize)))) {
+                replicate(new Replication.ConversationChunk(key, chunk));
+                sent++;
+            }
+        }
+        return sent;
+    }
+
+    private void clearSnapshot() {
+        snapshotSessions.clear();
+        snapshotGroups.clear();
+        snapshotConversations.clear();
+        snapshotScheduled.clear();
+        snapshotInFlight = false;
+    }
+
+    /**
+     * Behaviour of a standby: applies what the primary streams and answers clients
+     * with NotActive until the primary is gone and it takes over.
+     */
+    private Receive standingBy() {
+        return receiveBuilder()
+                .matchEquals(SUBSCRIBE, msg ->
+                        getContext().actorSelection(primaryPath).tell(new Replication.Subscribe(), getSelf()))
+                .match(Replication.SessionOpened.class, event -> {
+                    sessions.register(event.getName(), event.getRef(), event.getRelay(), System.currentTimeMillis());
+                    sessions.setToken(event.getName(), event.getResumeToken());
+                })
+                .match(Replication.SessionClosed.class, event ->
+                        sessions.removeDead(event.getRef(), System.currentTimeMillis()))
+                .match(QueryReplica.GroupAdded.class, this::applyGroupAdded)
+                .match(QueryReplica.MemberAdded.class, this::applyMemberAdded)
+                .match(QueryReplica.MemberRemoved.class, this::applyMemberRemoved)
+                .match(QueryReplica.InviteAdded.class, this::applyInviteAdded)
+                .match(QueryReplica.GroupRemoved.class, this::applyGroupRemoved)
+                .match(QueryReplica.MessagesStored.class, this::applyMessagesStored)
+                .match(QueryReplica.MessageChanged.class, event -> {
+                    messageHistory.change(event.key, event.message);
+                    publish(event);
+                })
+                .match(Replication.ConversationReset.class, event -> {
+                    // Restoring nothing also empties the conversation on the query replicas
+                    messageHistory.restore(event.getKey(), Collections.emptyList());
+                    messageTtls.remove(event.getKey());
+                })
+                .match(Replication.ConversationChunk.class, this::applyConversationChunk)
+                .match(Replication.TtlChanged.class, event -> setTtl(event.getKey(), event.getTtl()))
+                .match(Replication.SendScheduled.class, event -> {
+                    nextScheduleId = Math.max(nextScheduleId, event.getId() + 1);
+                    schedule(new ScheduledSend(event.getId(), event.getMessage(), event.getReplyTo(),
+                            event.getDueAtMillis()), System.currentTimeMillis());
+                })
+                .match(Replication.ScheduledSendDone.class, event -> scheduledSends.remove(event.getId()))
+                .match(Replication.ReadMarked.class, event -> {
+                    unread.markRead(event.getUsername(), event.getKey());
+                    receipts.onRead(event.getKey());
+                })
+                .match(Replication.SendRecorded.class, event ->
+                        dedup.record(event.getSender(), event.getClientMessageId(), System.currentTimeMillis()))
+                .match(Replication.SnapshotStep.class, step -> getSender().tell(step, getSelf()))
+                .match(Replication.SnapshotDone.class, this::onSnapshotDone)
+                .match(Terminated.class, terminated -> {
+                    if (terminated.getActor().equals(primary)) {
+                        // Queued behind the events still in the mailbox, so all of them are applied first
+                        getSelf().tell(TAKE_OVER, getSelf());
+                    }
+                })
+                .matchEquals(TAKE_OVER, msg -> takeOver())
+                .matchEquals(SWEEP_SESSIONS, msg -> sweepIdleSessions())
+                .matchEquals(ENFORCE_RETENTION, msg -> maintainHistory())
+                .match(QueryReplica.BlocksReleased.class, this::onBlocksReleased)
+                .matchEquals(ADVANCE_TIMERS, msg -> advanceTimers())
+                // Nobody to notify while standing by
+                .matchEquals(FLUSH_UNREAD, msg -> unread.drainUpdates())
+                .matchEquals(FLUSH_RECEIPTS, msg -> receipts.drain(unread))
+                .match(GetServerStats.class, this::handleGetServerStats)
+                .match(GetMemoryUsage.class, this::handleGetMemoryUsage)
+                // Typing indicators are not worth an answer
+                .match(TypingEvent.class, event -> { })
+                .matchAny(msg -> getSender().tell(new Replication.NotActive(), getSelf()))
+                .build();
+    }
+
+    private void onSnapshotDone(Replication.SnapshotDone done) {
+        nextMessageId = Math.max(nextMessageId, done.getNextMessageId());
+        if (primary == null) {
+            primary = getSender();
+            getContext().watch(primary);
+            getTimers().cancel(SUBSCRIBE);
+            log.info("Standing by for primary {}", primary);
+        }
+    }
+
+    private void takeOver() {
+        log.warning("Primary {} is unreachable, taking over", primary);
+        primary = null;
+        active = true;
+        for (ActorRef client : new ArrayList<>(sessions.refs())) {
+            getContext().watch(client);
+        }
+        // Sends that came due while standing by go out now, the others when their timer fires
+        long now = System.currentTimeMillis();
+        for (ScheduledSend send : new ArrayList<>(scheduledSends.values())) {
+            if (send.dueAtMillis <= now) {
+                fireScheduled(send.id);
+            }
+        }
+        getContext().become(serving());
+    }
+
+    private void applyGroupAdded(QueryReplica.GroupAdded event) {
+        groups.put(event.groupName, new Group(event.groupName, event.admin));
+        fanout.forget(event.groupName);
+        unread.addParticipant("group:" + event.groupName, event.admin);
+        publish(event);
+    }
+
+    private void applyMemberAdded(QueryReplica.MemberAdded event) {
+        Group group = groups.get(event.groupName);
+        if (group != null) {
+            group.addMember(event.username);
+            unread.addParticipant("group:" + event.groupName, event.username);
+            publish(event);
+        }
+    }
+
+    private void applyMemberRemoved(QueryReplica.MemberRemoved event) {
+        Group group = groups.get(event.groupName);
+        if (group != null) {
+            group.removeMember(event.username);
+            unread.removeParticipant("group:" + event.groupName, event.username);
+            receipts.removeSender("group:" + event.groupName, event.username);
+            publish(event);
+        }
+    }
+
+    private void applyInviteAdded(QueryReplica.InviteAdded event) {
+        Group group = groups.get(event.groupName);
+        if (group != null) {
+            group.addInvite(event.username);
+            publish(event);
+        }
+    }
+
+    private void applyGroupRemoved(QueryReplica.GroupRemoved event) {
+        String key = "group:" + event.groupName;
+        groups.remove(event.groupName);
+        fanout.forget(event.groupName);
+        messageHistory.remove(key);
+        unread.removeConversation(key);
+        receipts.removeConversation(key);
+        messageTtls.remove(key);
+        publish(event);
+    }
+
+    /**
+     * Stores messages the primary stored, updating unread counts the way the send path does.
+     */
+    private void applyMessagesStored(QueryReplica.MessagesStored event) {
+        storeMessages(event.key, event.messages);
+        boolean direct = !event.key.startsWith("group:");
+        for (Message message : event.messages) {
+            nextMessageId = Math.max(nextMessageId, message.getId() + 1);
+            if (message.getType() == Message.MessageType.SYSTEM) {
+                continue;
+            }
+            if (direct) {
+                unread.addParticipant(event.key, message.getSender());
+                unread.addParticipant(event.key, partnerIn(event.key, message.getSender()));
+            }
+            unread.onStored(event.key, message.getSender());
+            if (!direct) {
+                receipts.onStored(event.key, message.getSender(), message.getId(), unread.getSequence(event.key));
+            }
+        }
+    }
+
+    private void applyConversationChunk(Replication.ConversationChunk chunk) {
+        storeMessages(chunk.getKey(), chunk.getMessages());
+        for (Message message : chunk.getMessages()) {
+            nextMessageId = Math.max(nextMessageId, message.getId() + 1);
+            if (message.getType() == Message.MessageType.DIRECT) {
+                // New participants start with everything read
+                unread.addParticipant(chunk.getKey(), message.getSender());
+                unread.addParticipant(chunk.getKey(), partnerIn(chunk.getKey(), message.getSender()));
+            }
+        }
+    }
+
+    /**
+     * The other participant of a direct chat key built by getChatId.
+     */
+    private static String partnerIn(String chatId, String user) {
+        return chatId.startsWith(user + ":") ?
+                chatId.substring(user.length() + 1) :
+                chatId.substring(0, chatId.length() - user.length() - 1);
+    }
+
+    private ActorRef nextReplica() {
+        ActorRef replica = replicas.get(nextReplica);
+        nextReplica = (nextReplica + 1) % replicas.size();
+        return replica;
+    }
+
+    private void handleMarkRead(MarkRead cmd) {
+        String key = cmd.getGroupName() != null ?
+                "group:" + cmd.getGroupName() :
+                getChatId(cmd.getUsername(), cmd.getChatPartner());
+        markRead(cmd.getUsername(), key);
+    }
+
+    private void markRead(String username, String key) {
+        unread.markRead(username, key);
+        if (key.startsWith("group:")) {
+            receipts.onRead(key);
+        }
+        replicate(new Replication.ReadMarked(username, key));
+    }
+
+    /**
+     * Sends each online user at most one coalesced unread update per interval
+     * instead of a notification per message.
+     */
+    private void flushUnreadUpdates() {
+        for (Map.Entry<String, Map<String, Long>> entry : unread.drainUpdates().entrySet()) {
+            ActorRef client = sessions.getRef(entry.getKey());
+            if (client != null) {
+                client.tell(new UnreadSummary(labelled(entry.getKey(), entry.getValue()), false), getSelf());
+            }
+        }
+    }
+
+    /**
+     * Tells authors how many members have seen their latest message in each group
+     * where someone read since the last flush, only where the count changed.
+     */
+    private void flushReadReceipts() {
+        for (ReadReceipts.Receipt receipt : receipts.drain(unread)) {
+            ActorRef author = sessions.getRef(receipt.getSender());
+            if (author != null) {
+                author.tell(new SeenBy(receipt.getConversation().substring("group:".length()), receipt.getMessageId(),
+                        receipt.getSeenBy(), receipt.getMembers()), getSelf());
+            }
+        }
+    }
+
+    /**
+     * Replaces conversation keys with what the user knows them by:
+     * the other participant for direct chats, #name for groups.
+     */
+    private Map<String, Long> labelled(String user, Map<String, Long> counts) {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            String key = entry.getKey();
+            String label;
+            if (key.startsWith("group:")) {
+                label = "#" + key.substring("group:".length());
+            } else if (key.startsWith(user + ":")) {
+                label = key.substring(user.length() + 1);
+            } else {
+                label = key.substring(0, key.length() - user.length() - 1);
+            }
+            result.put(label, entry.getValue());
+        }
+        return result;
+    }
+
+    private void broadcastToGroup(Group group, Message message) {
+        if (group.getMemberCount() >= relayThreshold) {
+            // Large groups: one envelope per client ActorSystem, its relay fans out locally
+            deliver(fanout.forGroup(group, sessions), message, sessions.getRef(message.getSender()));
+            return;
+        }
+
+        for (String member : group.getMembers()) {
+            // Skip sending the message back to the sender
+            if (member.equals(message.getSender())) {
+                continue;
+            }
+
+            ActorRef memberActor = sessions.getRef(member);
+            if (memberActor != null) {
+                send(memberActor, message);
+            }
+        }
+    }
+
+    /**
+     * Delivers a chat message to one client. Messages sent to the same client
+     * within the delivery window are collected and go out together, as one
+     * MessageBundle, when the window closes or the size cap is reached.
+     */
+    private void send(ActorRef recipient, Message message) {
+        if (deliveryWindow.isZero()) {
+            sendAll(recipient, Collections.singletonList(message));
+            return;
+        }
+        if (deliveries.isEmpty()) {
+            getTimers().startSingleTimer(FLUSH_DELIVERIES, FLUSH_DELIVERIES, deliveryWindow);
+        }
+        List<Message> full = deliveries.add(recipient, message);
+        if (full != null) {
+            sendAll(recipient, full);
+        }
+    }
+
+    private void flushDeliveries() {
+        for (Map.Entry<ActorRef, List<Message>> delivery : deliveries.drain().entrySet()) {
+            sendAll(delivery.getKey(), delivery.getValue());
+        }
+    }
+
+    private void sendAll(ActorRef recipient, List<Message> messages) {
+        if (messages.size() > 1) {
+            recipient.tell(new MessageBundle(messages), getSelf());
+            return;
+        }
+        Message message = messages.get(0);
+        // A group message usually goes to other members as well, so share its serialized bytes
+        recipient.tell(message.getType() == Message.MessageType.GROUP ? broadcastForm(recipient, message) : message,
+                getSelf());
+    }
+
+
+    public static class ChatHistory implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final List<Message> messages;
+        private final boolean hasMore;  // older messages exist, fetched with GetOlderMessages
+
+        public ChatHistory(List<Message> messages) {
+            this(messages, false);
+        }
+
+        public ChatHistory(List<Message> messages, boolean hasMore) {
+            this.messages = new ArrayList<>(messages);
+            this.hasMore = hasMore;
+        }
+
+        public List<Message> getMessages() {
+            return messages;
+        }
+
+        public boolean hasMore() {
+            return hasMore;
+        }
+    }
+
+    private void broadcastSystemMessage(String content) {
+        Message systemMsg = newMessage("SYSTEM", content, Message.MessageType.SYSTEM, null);
+        if (sessions.liveCount() >= relayThreshold) {
+            deliver(fanout.forEveryone(sessions), systemMsg, null);
+            return;
+        }
+
+        for (ActorRef client : sessions.refs()) {
+            client.tell(broadcastForm(client, systemMsg), getSelf());
+        }
+    }
+
+    private void deliver(FanoutPlanner.Plan plan, Object payload, ActorRef exclude) {
+        for (ActorRef recipient : plan.getDirect()) {
+            if (!recipient.equals(exclude)) {
+                recipient.tell(broadcastForm(recipient, payload), getSelf());
+            }
+        }
+        for (Map.Entry<ActorRef, Set<ActorRef>> entry : plan.getByRelay().entrySet()) {
+            ActorRef relay = entry.getKey();
+            // Recipients go along only once per plan and relay, the relay keeps them
+            Set<ActorRef> recipients = plan.markInformed(relay) ? entry.getValue() : null;
+            relay.tell(new FanoutRelay.RelayEnvelope(broadcastForm(relay, payload), plan.getKey(), plan.getId(),
+                    recipients, exclude), getSelf());
+        }
+    }
+
+    /**
+     * A relay lost the recipients of a plan: send the envelope again with those of the current plan.
+     */
+    private void handlePlanUnknown(FanoutRelay.PlanUnknown unknown) {
+        FanoutRelay.RelayEnvelope envelope = unknown.getEnvelope();
+        FanoutPlanner.Plan plan = fanout.current(envelope.getPlanKey());
+        Set<ActorRef> recipients = plan == null ? null : plan.getByRelay().get(getSender());
+        if (recipients == null) {
+            // The plan was replaced by one that no longer uses this relay; like a member who
+            // left, its old recipients miss this message and get the next ones directly
+            return;
+        }
+        plan.markInformed(getSender());
+        getSender().tell(new FanoutRelay.RelayEnvelope(envelope.getPayload(), plan.getKey(), plan.getId(),
+                recipients, envelope.getExclude()), getSelf());
+    }
+
+    /**
+     * Remote recipients of a broadcast get the payload serialized once and shared,
+     * local recipients get the object itself.
+     */
+    private Object broadcastForm(ActorRef recipient, Object payload) {
+        if (recipient.path().address().hasLocalScope()) {
+            return payload;
+        }
+        return payloadCache.get(payload);
+    }
+
+    static String getChatId(String user1, String user2) {
+        return user1.compareTo(user2) < 0 ?
+                user1 + ":" + user2 :
+                user2 + ":" + user1;
+    }
+
+    // Additional Message Classes
+    public static class LeaveGroup implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String groupName;
+        private final String username;
+
+        public LeaveGroup(String groupName, String username) {
+            this.groupName = groupName;
+            this.username = username;
+        }
+
+        public String getGroupName() { return groupName; }
+        public String getUsername() { return username; }
+    }
+
+    public static class LeftGroup implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String groupName;
+
+        public LeftGroup(String groupName) {
+            this.groupName = groupName;
+        }
+
+        public String getGroupName() { return groupName; }
+    }
+
+    public static class DisbandGroup implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String groupName;
+        private final String username;
+
+        public DisbandGroup(String groupName, String username) {
+            this.groupName = groupName;
+            this.username = username;
+        }
+
+        public String getGroupName() { return groupName; }
+        public String getUsername() { return username; }
+    }
+
+    public static class GroupDisbanded implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String groupName;
+
+        public GroupDisbanded(String groupName) {
+            this.groupName = groupName;
+        }
+
+        public String getGroupName() { return groupName; }
+    }
+
+    public static class SystemMessage implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String message;
+
+        public SystemMessage(String message) {
+            this.message = message;
+        }
+
+        public String getMessage() { return message; }
+    }
+
+    public static class RegistrationSuccess implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String name;
+        // Sent back in RegisterClient to take the session over after a reconnect
+        private final String resumeToken;
+        private final boolean resumed;
+
+        public RegistrationSuccess(String name, String resumeToken, boolean resumed) {
+            this.name = name;
+            this.resumeToken = resumeToken;
+            this.resumed = resumed;
+        }
+
+        public String getName() { return name; }
+        public String getResumeToken() { return resumeToken; }
+        public boolean isResumed() { return resumed; }
+    }
+
+    public static class ClientList implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final List<String> clients;
 
         public ClientList(List<String> clients) {
             this.clients = new ArrayList<>(clients);
@@ -483,14 +1957,48 @@ public class ServerActor extends AbstractActor {
     public static class ErrorMessage implements Serializable {
         private static final long serialVersionUID = 1L;
         private final String error;
+        private final long retryAfterMillis;  // 0 unless the request may be retried later
+        private final long clientMessageId;   // the failed send, 0 if the error is not about a send with an id
 
         public ErrorMessage(String error) {
+            this(error, 0);
+        }
+
+        public ErrorMessage(String error, long retryAfterMillis) {
+            this(error, retryAfterMillis, 0);
+        }
+
+        public ErrorMessage(String error, long retryAfterMillis, long clientMessageId) {
             this.error = error;
+            this.retryAfterMillis = retryAfterMillis;
+            this.clientMessageId = clientMessageId;
         }
 
         public String getError() {
             return error;
         }
+
+        public long getRetryAfterMillis() {
+            return retryAfterMillis;
+        }
+
+        public long getClientMessageId() {
+            return clientMessageId;
+        }
+    }
+
+    /**
+     * Reply to a send whose client message id was already sent: nothing was stored or delivered again.
+     */
+    public static class DuplicateMessage implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final long clientMessageId;
+
+        public DuplicateMessage(long clientMessageId) {
+            this.clientMessageId = clientMessageId;
+        }
+
+        public long getClientMessageId() { return clientMessageId; }
     }
 
     // Note: This is the only GetChatHistory class that should be in your code
@@ -500,13 +2008,19 @@ public class ServerActor extends AbstractActor {
         private final String user2;
         private final String groupName;
         private final boolean isGroupChat;
+        private final int limit;  // only the newest messages, 0 for the default page
 
         // Constructor for direct messages
         public GetChatHistory(String user1, String user2) {
+            this(user1, user2, 0);
+        }
+
+        public GetChatHistory(String user1, String user2, int limit) {
             this.user1 = user1;
             this.user2 = user2;
             this.groupName = null;
             this.isGroupChat = false;
+            this.limit = limit;
         }
 
         // Constructor for group messages
@@ -515,12 +2029,14 @@ public class ServerActor extends AbstractActor {
             this.user2 = null;
             this.groupName = groupName;
             this.isGroupChat = true;
+            this.limit = 0;
         }
 
         public String getUser1() { return user1; }
         public String getUser2() { return user2; }
         public String getGroupName() { return groupName; }
         public boolean isGroupChat() { return isGroupChat; }
+        public int getLimit() { return limit; }
     }
 
     public static class SendMessage implements Serializable {
@@ -530,13 +2046,20 @@ public class ServerActor extends AbstractActor {
         private final String content;
         private final Message.MessageType type;
         private final String targetGroup;
+        private final long clientMessageId;  // 0 if the client does not need retries to be detected
 
         public SendMessage(String sender, String recipient, String content, Message.MessageType type, String targetGroup) {
+            this(sender, recipient, content, type, targetGroup, 0);
+        }
+
+        public SendMessage(String sender, String recipient, String content, Message.MessageType type, String targetGroup,
+                           long clientMessageId) {
             this.sender = sender;
             this.recipient = recipient;
             this.content = content;
             this.type = type;
             this.targetGroup = targetGroup;
+            this.clientMessageId = clientMessageId;
         }
 
         public String getSender() { return sender; }
@@ -544,19 +2067,456 @@ public class ServerActor extends AbstractActor {
         public String getContent() { return content; }
         public Message.MessageType getType() { return type; }
         public String getTargetGroup() { return targetGroup; }
+        public long getClientMessageId() { return clientMessageId; }
+    }
+
+    public static class MarkRead implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String username;
+        private final String chatPartner;  // null for group chats
+        private final String groupName;    // null for direct chats
+
+        public MarkRead(String username, String chatPartner, String groupName) {
+            this.username = username;
+            this.chatPartner = chatPartner;
+            this.groupName = groupName;
+        }
+
+        public String getUsername() { return username; }
+        public String getChatPartner() { return chatPartner; }
+        public String getGroupName() { return groupName; }
+    }
+
+    /**
+     * Many messages from one sender, to any mix of users and groups, in one envelope.
+     * Only the recipient or target group and the content of each entry are used.
+     */
+    public static class SendMessageBatch implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String sender;
+        private final List<SendMessage> messages;
+
+        public SendMessageBatch(String sender, List<SendMessage> messages) {
+            this.sender = sender;
+            this.messages = new ArrayList<>(messages);
+        }
+
+        public String getSender() { return sender; }
+        public List<SendMessage> getMessages() { return messages; }
+    }
+
+    public static class BatchResult implements Serializable {
+        private static final long serialVersionUID = 1L;
+        // Client message id of the first entry, tells a client which of its batches this answers
+        private final long firstClientMessageId;
+        private final int requested;
+        private final int admitted;  // entries from this index on were not attempted
+        private final int sent;
+        private final List<String> errors;
+        private final long retryAfterMillis;
+
+        public BatchResult(long firstClientMessageId, int requested, int admitted, int sent, List<String> errors,
+                           long retryAfterMillis) {
+            this.firstClientMessageId = firstClientMessageId;
+            this.requested = requested;
+            this.admitted = admitted;
+            this.sent = sent;
+            this.errors = new ArrayList<>(errors);
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        public long getFirstClientMessageId() { return firstClientMessageId; }
+        public int getRequested() { return requested; }
+        public int getAdmitted() { return admitted; }
+        public int getSent() { return sent; }
+        public List<String> getErrors() { return errors; }
+        public long getRetryAfterMillis() { return retryAfterMillis; }
+    }
+
+    public static class ExportHistory implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String path;
+
+        public ExportHistory(String path) {
+            this.path = path;
+        }
+
+        public String getPath() { return path; }
+    }
+
+    public static class ImportHistory implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String path;
+
+        public ImportHistory(String path) {
+            this.path = path;
+        }
+
+        public String getPath() { return path; }
+    }
+
+    public static class ArchiveResult implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final int groups;
+        private final int conversations;
+        private final long messages;
+        private final long bytes;
+        private final long millis;
+
+        public ArchiveResult(HistoryArchive.Summary summary, long millis) {
+            this.groups = summary.getGroups();
+            this.conversations = summary.getConversations();
+            this.messages = summary.getMessages();
+            this.bytes = summary.getBytes();
+            this.millis = millis;
+        }
+
+        public int getGroups() { return groups; }
+        public int getConversations() { return conversations; }
+        public long getMessages() { return messages; }
+        public long getBytes() { return bytes; }
+        public long getMillis() { return millis; }
+    }
+
+    /**
+     * Turns disappearing messages on for one conversation, or off when ttl is null or zero.
+     */
+    public static class SetMessageTtl implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String username;
+        private final String chatPartner;  // null for group chats
+        private final String groupName;    // null for direct chats
+        private final Duration ttl;
+
+        public SetMessageTtl(String username, String chatPartner, String groupName, Duration ttl) {
+            this.username = username;
+            this.chatPartner = chatPartner;
+            this.groupName = groupName;
+            this.ttl = ttl;
+        }
+
+        public String getUsername() { return username; }
+        public String getChatPartner() { return chatPartner; }
+        public String getGroupName() { return groupName; }
+        public Duration getTtl() { return ttl; }
+    }
+
+    public static class ScheduleMessage implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final SendMessage message;
+        private final long delayMillis;
+
+        public ScheduleMessage(SendMessage message, long delayMillis) {
+            this.message = message;
+            this.delayMillis = delayMillis;
+        }
+
+        public SendMessage getMessage() { return message; }
+        public long getDelayMillis() { return delayMillis; }
+    }
+
+    /**
+     * Asks for the messages of one conversation with from <= timestamp < to, one
+     * page at a time. The answer names the request for the next page, if any.
+     */
+    public static class GetHistoryRange implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String username;
+        private final String chatPartner;  // null for group chats
+        private final String groupName;    // null for direct chats
+        private final LocalDateTime from;
+        private final long afterId;        // messages stamped from with an id up to this were sent already
+        private final LocalDateTime to;
+        private final int limit;           // 0 for the server's history page size
+
+        public GetHistoryRange(String username, String chatPartner, String groupName,
+                               LocalDateTime from, LocalDateTime to) {
+            this(username, chatPartner, groupName, from, 0, to, 0);
+        }
+
+        public GetHistoryRange(String username, String chatPartner, String groupName,
+                               LocalDateTime from, long afterId, LocalDateTime to, int limit) {
+            this.username = username;
+            this.chatPartner = chatPartner;
+            this.groupName = groupName;
+            this.from = from;
+            this.afterId = afterId;
+            this.to = to;
+            this.limit = limit;
+        }
+
+        public String getUsername() { return username; }
+        public String getChatPartner() { return chatPartner; }
+        public String getGroupName() { return groupName; }
+        public LocalDateTime getFrom() { return from; }
+        public long getAfterId() { return afterId; }
+        public LocalDateTime getTo() { return to; }
+        public int getLimit() { return limit; }
+
+        /**
+         * The first page starts at from, later ones after the last message already sent.
+         */
+        public boolean isFirstPage() { return afterId == 0; }
+
+        GetHistoryRange after(Message last, int pageSize) {
+            return new GetHistoryRange(username, chatPartner, groupName, last.getTimestamp(), last.getId(), to, pageSize);
+        }
+
+        /**
+         * Parses a range bound as either a time relative to now (30s, 10m, 2h, 1d)
+         * or an ISO date-time such as 2024-05-01T09:00. Returns null if neither fits.
+         */
+        public static LocalDateTime parseBound(String text, LocalDateTime now) {
+            String value = text.trim().toLowerCase();
+            if (value.equals("now")) {
+                return now;
+            }
+            Duration ago = Durations.parse(value);
+            if (ago != null) {
+                return now.minus(ago);
+            }
+            try {
+                return LocalDateTime.parse(text.trim());
+            } catch (java.time.format.DateTimeParseException e) {
+                return null;
+            }
+        }
+    }
+
+    public static class HistoryRange implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String conversation;  // chat partner or #group
+        private final LocalDateTime from;
+        private final LocalDateTime to;
+        private final List<Message> messages;
+        private final boolean firstPage;
+        private final GetHistoryRange next;  // null on the last page
+
+        public HistoryRange(String conversation, LocalDateTime from, LocalDateTime to, List<Message> messages,
+                            boolean firstPage, GetHistoryRange next) {
+            this.conversation = conversation;
+            this.from = from;
+            this.to = to;
+            this.messages = new ArrayList<>(messages);
+            this.firstPage = firstPage;
+            this.next = next;
+        }
+
+        public String getConversation() { return conversation; }
+        public LocalDateTime getFrom() { return from; }
+        public LocalDateTime getTo() { return to; }
+        public List<Message> getMessages() { return messages; }
+        public boolean isFirstPage() { return firstPage; }
+        public boolean hasMore() { return next != null; }
+        public GetHistoryRange getNext() { return next; }
+    }
+
+    /**
+     * Asks for the page of messages just before the oldest one the client shows.
+     */
+    public static class GetOlderMessages implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String username;
+        private final String chatPartner;  // null for group chats
+        private final String groupName;    // null for direct chats
+        private final long beforeId;
+        private final int limit;
+
+        public GetOlderMessages(String username, String chatPartner, String groupName, long beforeId, int limit) {
+            this.username = username;
+            this.chatPartner = chatPartner;
+            this.groupName = groupName;
+            this.beforeId = beforeId;
+            this.limit = limit;
+        }
+
+        public String getUsername() { return username; }
+        public String getChatPartner() { return chatPartner; }
+        public String getGroupName() { return groupName; }
+        public long getBeforeId() { return beforeId; }
+        public int getLimit() { return limit; }
+    }
+
+    public static class OlderMessages implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String conversation;  // chat partner or #group
+        private final List<Message> messages;
+        private final boolean hasMore;
+
+        public OlderMessages(String conversation, List<Message> messages, boolean hasMore) {
+            this.conversation = conversation;
+            this.messages = new ArrayList<>(messages);
+            this.hasMore = hasMore;
+        }
+
+        public String getConversation() { return conversation; }
+        public List<Message> getMessages() { return messages; }
+        public boolean hasMore() { return hasMore; }
+    }
+
+    public static class UnreadSummary implements Serializable {
+        private static final long serialVersionUID = 1L;
+        // Chat partner or #group -> unread count
+        private final Map<String, Long> counts;
+        private final boolean initial;
+
+        public UnreadSummary(Map<String, Long> counts, boolean initial) {
+            this.counts = new TreeMap<>(counts);
+            this.initial = initial;
+        }
+
+        public Map<String, Long> getCounts() { return counts; }
+        public boolean isInitial() { return initial; }
+    }
+
+    /**
+     * How many other members of a group have read up to the author's latest message there.
+     */
+    public static class SeenBy implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String groupName;
+        private final long messageId;
+        private final int seenBy;
+        private final int members;
+
+        public SeenBy(String groupName, long messageId, int seenBy, int members) {
+            this.groupName = groupName;
+            this.messageId = messageId;
+            this.seenBy = seenBy;
+            this.members = members;
+        }
+
+        public String getGroupName() { return groupName; }
+        public long getMessageId() { return messageId; }
+        public int getSeenBy() { return seenBy; }
+        public int getMembers() { return members; }
+    }
+
+    public static class GetServerStats implements Serializable {
+        private static final long serialVersionUID = 1L;
+    }
+
+    public static class ServerStats implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final Map<String, Long> values;
+
+        public ServerStats(Map<String, Long> values) {
+            this.values = new LinkedHashMap<>(values);
+        }
+
+        public Map<String, Long> getValues() { return values; }
+    }
+
+    /**
+     * Asks for the conversations taking the most memory, at most limit of them.
+     */
+    public static class GetMemoryUsage implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final int limit;
+
+        public GetMemoryUsage(int limit) {
+            this.limit = limit;
+        }
+
+        public int getLimit() { return limit; }
+    }
+
+    public static class MemoryUsage implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final List<ConversationUsage> largest;
+        private final int conversations;
+        private final long hotBytes;
+        private final long quotaSpills;
+
+        public MemoryUsage(List<ConversationUsage> largest, int conversations, long hotBytes, long quotaSpills) {
+            this.largest = new ArrayList<>(largest);
+            this.conversations = conversations;
+            this.hotBytes = hotBytes;
+            this.quotaSpills = quotaSpills;
+        }
+
+        public List<ConversationUsage> getLargest() { return largest; }
+        public int getConversations() { return conversations; }
+        public long getHotBytes() { return hotBytes; }
+        public long getQuotaSpills() { return quotaSpills; }
+    }
+
+    /**
+     * Estimated memory of one conversation: its hot messages, changed messages and,
+     * for groups, the member list. Cold messages are counted but live on disk.
+     */
+    public static class ConversationUsage implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String key;
+        private final int hotMessages;
+        private final int coldMessages;
+        private final int changedMessages;
+        private final int members;
+        private final long bytes;
+
+        public ConversationUsage(String key, HistoryStore.Usage history, Group group) {
+            this.key = key;
+            this.hotMessages = history == null ? 0 : history.getHotMessages();
+            this.coldMessages = history == null ? 0 : history.getColdMessages();
+            this.changedMessages = history == null ? 0 : history.getChangedMessages();
+            this.members = group != null ? group.getMemberCount() : key.startsWith("group:") ? 0 : 2;
+            this.bytes = (history == null ? 0 : history.getHotBytes() + history.getChangeBytes())
+                    + (group == null ? 0 : group.estimateBytes());
+        }
+
+        public String getKey() { return key; }
+        public int getHotMessages() { return hotMessages; }
+        public int getColdMessages() { return coldMessages; }
+        public int getChangedMessages() { return changedMessages; }
+        public int getMembers() { return members; }
+        public long getBytes() { return bytes; }
     }
 
     public static class RegisterClient implements Serializable {
         private static final long serialVersionUID = 1L;
         private final String name;
+        private final ActorRef relay;
+        // Set when reconnecting: the token from RegistrationSuccess and the newest message received
+        private final String resumeToken;
+        private final long lastSeenMessageId;
+        private final LocalDateTime lastSeenAt;
 
         public RegisterClient(String name) {
+            this(name, null);
+        }
+
+        public RegisterClient(String name, ActorRef relay) {
+            this(name, relay, null, 0, null);
+        }
+
+        public RegisterClient(String name, ActorRef relay, String resumeToken, long lastSeenMessageId,
+                              LocalDateTime lastSeenAt) {
             this.name = name;
+            this.relay = relay;
+            this.resumeToken = resumeToken;
+            this.lastSeenMessageId = lastSeenMessageId;
+            this.lastSeenAt = lastSeenAt;
         }
 
         public String getName() {
             return name;
         }
+
+        public ActorRef getRelay() {
+            return relay;
+        }
+
+        public String getResumeToken() {
+            return resumeToken;
+        }
+
+        public long getLastSeenMessageId() {
+            return lastSeenMessageId;
+        }
+
+        public LocalDateTime getLastSeenAt() {
+            return lastSeenAt;
+        }
     }
 
     public static class GroupInfo implements Serializable {
@@ -597,27 +2557,97 @@ public class ServerActor extends AbstractActor {
 
     public static class GroupCreated implements Serializable {
         private static final long serialVersionUID = 1L;
-        private final Group group;
+        private final GroupView group;
 
-        public GroupCreated(Group group) {
+        public GroupCreated(GroupView group) {
             this.group = group;
         }
 
-        public Group getGroup() { return group; }
+        public GroupView getGroup() { return group; }
     }
 
     public static class GroupChatHistory implements Serializable {
         private static final long serialVersionUID = 1L;
-        private final Group group;
+        private final GroupView group;
         private final List<Message> messages;
+        private final boolean hasMore;
 
-        public GroupChatHistory(Group group, List<Message> messages) {
+        public GroupChatHistory(GroupView group, List<Message> messages) {
+            this(group, messages, false);
+        }
+
+        public GroupChatHistory(GroupView group, List<Message> messages, boolean hasMore) {
             this.group = group;
             this.messages = new ArrayList<>(messages);
+            this.hasMore = hasMore;
         }
 
-        public Group getGroup() { return group; }
+        public GroupView getGroup() { return group; }
         public List<Message> getMessages() { return messages; }
+        public boolean hasMore() { return hasMore; }
+    }
+
+    public static class GetGroupMembers implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String groupName;
+        private final String username;
+        private final int offset;
+        private final int limit;
+        private final long knownVersion;  // -1 when the client has no cached copy
+
+        public GetGroupMembers(String groupName, String username, int offset, int limit, long knownVersion) {
+            this.groupName = groupName;
+            this.username = username;
+            this.offset = offset;
+            this.limit = limit;
+            this.knownVersion = knownVersion;
+        }
+
+        public String getGroupName() { return groupName; }
+        public String getUsername() { return username; }
+        public int getOffset() { return offset; }
+        public int getLimit() { return limit; }
+        public long getKnownVersion() { return knownVersion; }
+    }
+
+    public static class GroupMembers implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String groupName;
+        private final long version;
+        private final int offset;
+        private final int total;
+        private final List<String> members;
+
+        public GroupMembers(String groupName, long version, int offset, int total, List<String> members) {
+            this.groupName = groupName;
+            this.version = version;
+            this.offset = offset;
+            this.total = total;
+            this.members = new ArrayList<>(members);
+        }
+
+        public String getGroupName() { return groupName; }
+        public long getVersion() { return version; }
+        public int getOffset() { return offset; }
+        public int getTotal() { return total; }
+        public List<String> getMembers() { return members; }
+    }
+
+    public static class GroupMembersNotModified implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String groupName;
+        private final int offset;
+        private final long version;
+
+        public GroupMembersNotModified(String groupName, int offset, long version) {
+            this.groupName = groupName;
+            this.offset = offset;
+            this.version = version;
+        }
+
+        public String getGroupName() { return groupName; }
+        public int getOffset() { return offset; }
+        public long getVersion() { return version; }
     }
 
     public static class GroupInvitation implements Serializable {
@@ -636,13 +2666,13 @@ public class ServerActor extends AbstractActor {
 
     public static class JoinedGroup implements Serializable {
         private static final long serialVersionUID = 1L;
-        private final Group group;
+        private final GroupView group;
 
-        public JoinedGroup(Group group) {
+        public JoinedGroup(GroupView group) {
             this.group = group;
         }
 
-        public Group getGroup() { return group; }
+        public GroupView getGroup() { return group; }
     }
 
 
@@ -3,12 +3,122 @@ package org.example;
 
 import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
+import akka.pattern.Patterns;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Scanner;
 
 public class ServerApp {
     public static void main(String[] args) {
-        ActorSystem system = ActorSystem.create("ChatServer");
+        boolean standby = args.length > 0 && args[0].equals("standby");
+        Config defaults = ConfigFactory.load();
+        Config config = defaults.getConfig("server-process").withFallback(defaults);
+        if (standby) {
+            config = defaults.getConfig("standby-process").withFallback(config);
+        }
+
+        ActorSystem system = ActorSystem.create("ChatServer", config);
         ActorRef serverActor = system.actorOf(ServerActor.props(), "serverActor");
-        System.out.println("Chat server started on port 25520");
+        int port = config.getInt("akka.remote.artery.canonical.port");
+        if (standby) {
+            System.out.println("Chat server started on port " + port + " as standby for "
+                    + config.getString("chat.server.replication.primary"));
+        } else {
+            System.out.println("Chat server started on port " + port);
+        }
+        startGateway(system, serverActor);
         System.out.println("Waiting for clients...");
+
+        runConsole(serverActor);
+    }
+
+    private static void startGateway(ActorSystem system, ActorRef serverActor) {
+        Config config = system.settings().config().getConfig("chat.gateway");
+        if (!config.getBoolean("enabled")) {
+            return;
+        }
+
+        ActorRef relay = system.actorOf(FanoutRelay.props(), "relay");
+        TextGateway gateway = new TextGateway(system, serverActor, relay,
+                config.getInt("max-line-bytes"), config.getInt("max-pending-writes"));
+        try {
+            int port = gateway.start(config.getString("host"), config.getInt("port"));
+            System.out.println("Text gateway listening on port " + port);
+            system.registerOnTermination(gateway::stop);
+        } catch (IOException e) {
+            System.out.println("Failed to start text gateway: " + e.getMessage());
+        }
+    }
+
+    private static void runConsole(ActorRef serverActor) {
+        Scanner scanner = new Scanner(System.in);
+        while (scanner.hasNextLine()) {
+            String command = scanner.nextLine().trim();
+            String[] parts = command.split("\\s+", 2);
+            if (command.equals("stats")) {
+                printStats(serverActor);
+            } else if (parts[0].equals("memory")) {
+                printMemory(serverActor, parts.length == 2 ? parts[1] : "20");
+            } else if (parts[0].equals("export") && parts.length == 2) {
+                runArchiveCommand(serverActor, new ServerActor.ExportHistory(parts[1]), "Exported");
+            } else if (parts[0].equals("import") && parts.length == 2) {
+                runArchiveCommand(serverActor, new ServerActor.ImportHistory(parts[1]), "Imported");
+            } else if (!command.isEmpty()) {
+                System.out.println("Unknown command. Available: stats, memory [n], export <file>, import <file>");
+            }
+        }
+    }
+
+    private static void runArchiveCommand(ActorRef serverActor, Object command, String verb) {
+        try {
+            Object reply = Patterns.ask(serverActor, command, Duration.ofMinutes(30)).toCompletableFuture().join();
+            if (reply instanceof ServerActor.ArchiveResult) {
+                ServerActor.ArchiveResult result = (ServerActor.ArchiveResult) reply;
+                System.out.printf("%s %d group(s), %d conversation(s), %d message(s), %d bytes in %d ms%n", verb,
+                        result.getGroups(), result.getConversations(), result.getMessages(),
+                        result.getBytes(), result.getMillis());
+            } else if (reply instanceof ServerActor.ErrorMessage) {
+                System.out.println(((ServerActor.ErrorMessage) reply).getError());
+            }
+        } catch (Exception e) {
+            System.out.println("Archive command failed: " + e.getMessage());
+        }
+    }
+
+    private static void printMemory(ActorRef serverActor, String limit) {
+        try {
+            ServerActor.MemoryUsage usage = (ServerActor.MemoryUsage) Patterns
+                    .ask(serverActor, new ServerActor.GetMemoryUsage(Integer.parseInt(limit)), Duration.ofSeconds(5))
+                    .toCompletableFuture().join();
+            System.out.printf("%d conversation(s), hot messages take about %d bytes, %d quota spill(s)%n",
+                    usage.getConversations(), usage.getHotBytes(), usage.getQuotaSpills());
+            System.out.printf("%-32s %12s %8s %8s %8s %8s%n", "conversation", "bytes", "hot", "cold", "changed", "members");
+            for (ServerActor.ConversationUsage conversation : usage.getLargest()) {
+                System.out.printf("%-32s %12d %8d %8d %8d %8d%n", conversation.getKey(), conversation.getBytes(),
+                        conversation.getHotMessages(), conversation.getColdMessages(),
+                        conversation.getChangedMessages(), conversation.getMembers());
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Usage: memory [n]");
+        } catch (Exception e) {
+            System.out.println("Failed to fetch memory usage: " + e.getMessage());
+        }
+    }
+
+    private static void printStats(ActorRef serverActor) {
+        try {
+            ServerActor.ServerStats stats = (ServerActor.ServerStats) Patterns
+                    .ask(serverActor, new ServerActor.GetServerStats(), Duration.ofSeconds(5))
+                    .toCompletableFuture().join();
+            for (Map.Entry<String, Long> entry : stats.getValues().entrySet()) {
+                System.out.printf("%-32s %d%n", entry.getKey(), entry.getValue());
+            }
+        } catch (Exception e) {
+            System.out.println("Failed to fetch stats: " + e.getMessage());
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,269 @@
+// ServerMailbox.java
+package org.example;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Terminated;
+import akka.dispatch.Envelope;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+import akka.dispatch.ProducesMessageQueue;
+import akka.dispatch.UnboundedMessageQueueSemantics;
+import com.typesafe.config.Config;
+import scala.Option;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mailbox for the server actors that serves control and membership commands
+ * before queries, and queries before chat traffic, so logins and joins do not
+ * wait behind a flood of SendMessage. A lower priority that has been skipped
+ * max-skips times in a row is served next, so chat can never starve.
+ *
+ * Priorities only reorder messages of different senders. The actors rely on each
+ * sender's messages arriving in the order they were sent, e.g. a SendMessage
+ * before the LeaveGroup that follows it, so a message never goes to a higher
+ * level than an earlier one of its sender that is still waiting, and the
+ * starvation rule never serves a message while an earlier one of its sender waits.
+ *
+ * Ephemeral events such as typing indicators come last and get no such
+ * protection: they are served only when nothing else waits. At most
+ * ephemeral-capacity of them are queued, the oldest are dropped beyond that.
+ */
+public class ServerMailbox implements MailboxType, ProducesMessageQueue<ServerMailbox.PriorityMessageQueue> {
+    private static final Map<ActorRef, PriorityMessageQueue> QUEUES = new ConcurrentHashMap<>();
+    private final int maxSkips;
+    private final int ephemeralCapacity;
+
+    public enum Priority { CONTROL, QUERY, CHAT, EPHEMERAL }
+
+    public ServerMailbox(ActorSystem.Settings settings, Config config) {
+        this.maxSkips = config.getInt("max-skips");
+        this.ephemeralCapacity = config.getInt("ephemeral-capacity");
+    }
+
+    @Override
+    public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system) {
+        PriorityMessageQueue queue = new PriorityMessageQueue(maxSkips, ephemeralCapacity);
+        if (owner.isDefined()) {
+            QUEUES.put(owner.get(), queue);
+        }
+        return queue;
+    }
+
+    /**
+     * Returns the queue of an actor running on this mailbox, or null.
+     */
+    public static PriorityMessageQueue queueOf(ActorRef owner) {
+        return QUEUES.get(owner);
+    }
+
+    /**
+     * The level of a message by its type alone, before its sender is taken into account.
+     */
+    static Priority classify(Object message) {
+        if (message instanceof TypingEvent) {
+            return Priority.EPHEMERAL;
+        }
+        if (message instanceof ServerActor.SendMessage
+                || message instanceof ServerActor.SendMessageBatch
+                || message instanceof MessageDelta
+                || message instanceof ServerActor.ScheduleMessage) {
+            return Priority.CHAT;
+        }
+        if (message instanceof ServerActor.RegisterClient
+                || message instanceof Replication.Subscribe
+                || message instanceof Terminated
+                || message instanceof ServerActor.CreateGroup
+                || message instanceof ServerActor.JoinGroup
+                || message instanceof ServerActor.InviteToGroup
+                || message instanceof ServerActor.LeaveGroup
+                || message instanceof ServerActor.DisbandGroup
+                || message instanceof ServerActor.SetMessageTtl
+                || message instanceof ServerActor.ExportHistory
+                || message instanceof ServerActor.ImportHistory
+                || message instanceof ServerActor.GetServerStats
+                || message instanceof ServerActor.GetMemoryUsage) {
+            return Priority.CONTROL;
+        }
+        return Priority.QUERY;
+    }
+
+    public static class PriorityMessageQueue implements MessageQueue, UnboundedMessageQueueSemantics {
+        private final Priority[] levels = Priority.values();
+        private final Queue<Envelope>[] queues;
+        private final AtomicInteger[] depths;
+        private final AtomicLong[] dequeued;
+        // Consecutive dequeues that went to a higher level while this level was waiting
+        private final int[] skips;
+        private final int maxSkips;
+        private final int ephemeralCapacity;
+        private final AtomicLong ephemeralDropped = new AtomicLong();
+        // Waiting messages per level of each sender that has any, ephemeral ones not counted
+        private final Map<ActorRef, int[]> waiting = new ConcurrentHashMap<>();
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        PriorityMessageQueue(int maxSkips, int ephemeralCapacity) {
+            this.maxSkips = maxSkips;
+            this.ephemeralCapacity = ephemeralCapacity;
+            this.queues = new Queue[levels.length];
+            this.depths = new AtomicInteger[levels.length];
+            this.dequeued = new AtomicLong[levels.length];
+            this.skips = new int[levels.length];
+            for (int i = 0; i < levels.length; i++) {
+                queues[i] = new ConcurrentLinkedQueue<>();
+                depths[i] = new AtomicInteger();
+                dequeued[i] = new AtomicLong();
+            }
+        }
+
+        @Override
+        public void enqueue(ActorRef receiver, Envelope handle) {
+            int level = levelFor(handle);
+            depths[level].incrementAndGet();
+            queues[level].add(handle);
+            if (level == Priority.EPHEMERAL.ordinal()) {
+                // A full queue means the events are stale anyway, the newest ones matter most
+                while (depths[level].get() > ephemeralCapacity && queues[level].poll() != null) {
+                    depths[level].decrementAndGet();
+                    ephemeralDropped.incrementAndGet();
+                }
+            }
+        }
+
+        @Override
+        public Envelope dequeue() {
+            int level = pickLevel();
+            if (level < 0) {
+                return null;
+            }
+            Envelope envelope = queues[level].poll();
+            if (envelope == null) {
+                return null;
+            }
+            depths[level].decrementAndGet();
+            if (level != Priority.EPHEMERAL.ordinal() && envelope.sender() != null) {
+                waiting.computeIfPresent(envelope.sender(), (sender, counts) -> {
+                    counts[level]--;
+                    for (int count : counts) {
+                        if (count > 0) {
+                            return counts;
+                        }
+                    }
+                    return null;
+                });
+            }
+            dequeued[level].incrementAndGet();
+
+            skips[level] = 0;
+            for (int lower = level + 1; lower < levels.length; lower++) {
+                if (depths[lower].get() > 0) {
+                    skips[lower]++;
+                }
+            }
+            return envelope;
+        }
+
+        /**
+         * The message's own level, or the lowest level holding an earlier message of
+         * its sender if that is lower. Messages of one sender are enqueued one after
+         * the other, so only dequeue races with this, and it can only lower counts.
+         */
+        private int levelFor(Envelope handle) {
+            Priority priority = classify(handle.message());
+            if (priority == Priority.EPHEMERAL || handle.sender() == null) {
+                return priority.ordinal();
+            }
+            int[] level = { priority.ordinal() };
+            waiting.compute(handle.sender(), (sender, counts) -> {
+                if (counts == null) {
+                    counts = new int[levels.length];
+                }
+                for (int i = levels.length - 1; i > level[0]; i--) {
+                    if (counts[i] > 0) {
+                        level[0] = i;
+                        break;
+                    }
+                }
+                counts[level[0]]++;
+                return counts;
+            });
+            return level[0];
+        }
+
+        private int pickLevel() {
+            // Starvation protection: the lowest level that waited too long goes first,
+            // unless its next message has to wait for an earlier one of the same sender
+            for (int i = Priority.CHAT.ordinal(); i > 0; i--) {
+                if (skips[i] >= maxSkips && depths[i].get() > 0 && !waitsForEarlier(queues[i].peek(), i)) {
+                    return i;
+                }
+            }
+            for (int i = 0; i < levels.length; i++) {
+                if (depths[i].get() > 0) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private boolean waitsForEarlier(Envelope envelope, int level) {
+            if (envelope == null || envelope.sender() == null) {
+                return false;
+            }
+            boolean[] earlier = { false };
+            // Read under the map's lock as well, the counts are updated in place
+            waiting.computeIfPresent(envelope.sender(), (sender, counts) -> {
+                for (int i = 0; i < level; i++) {
+                    earlier[0] |= counts[i] > 0;
+                }
+                return counts;
+            });
+            return earlier[0];
+        }
+
+        @Override
+        public int numberOfMessages() {
+            int total = 0;
+            for (AtomicInteger depth : depths) {
+                total += depth.get();
+            }
+            return total;
+        }
+
+        @Override
+        public boolean hasMessages() {
+            return numberOfMessages() > 0;
+        }
+
+        @Override
+        public void cleanUp(ActorRef owner, MessageQueue deadLetters) {
+            QUEUES.remove(owner);
+            waiting.clear();
+            for (int i = 0; i < levels.length; i++) {
+                Envelope envelope;
+                while ((envelope = queues[i].poll()) != null) {
+                    depths[i].decrementAndGet();
+                    deadLetters.enqueue(owner, envelope);
+                }
+            }
+        }
+
+        public int depth(Priority priority) {
+            return depths[priority.ordinal()].get();
+        }
+
+        public long dequeued(Priority priority) {
+            return dequeued[priority.ordinal()].get();
+        }
+
+        public long ephemeralDropped() {
+            return ephemeralDropped.get();
+        }
+    }
+}
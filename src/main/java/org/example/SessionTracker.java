@@ -0,0 +1,163 @@
+// SessionTracker.java
+package org.example;
+
+import akka.actor.ActorRef;
+
+import java.security.SecureRandom;
+import java.util.*;
+
+public class SessionTracker {
+    private final Map<String, Session> sessions = new HashMap<>();
+    private final Map<ActorRef, String> namesByRef = new HashMap<>();
+    // Users whose client actor died, kept until they have been idle for the eviction timeout
+    private final Map<String, Long> deadSessions = new HashMap<>();
+    // Resume token per user, valid while the session is live or dead but not yet evicted
+    private final Map<String, String> resumeTokens = new HashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private long totalDeadSessions = 0;
+    private long totalEvictedUsers = 0;
+    // Incremented whenever a session is added or removed so cached fan-out plans can catch up
+    private long epoch = 0;
+    // Names whose session changed, the one at epoch e in slot e % length
+    private final String[] recentChanges = new String[1024];
+
+    public static class Session {
+        private final String name;
+        private final ActorRef ref;
+        private final ActorRef relay;  // null for clients without a local fan-out relay
+        private final long connectedAt;
+
+        Session(String name, ActorRef ref, ActorRef relay, long now) {
+            this.name = name;
+            this.ref = ref;
+            this.relay = relay;
+            this.connectedAt = now;
+        }
+
+        public String getName() { return name; }
+        public ActorRef getRef() { return ref; }
+        public ActorRef getRelay() { return relay; }
+        public long getConnectedAt() { return connectedAt; }
+    }
+
+    public boolean isRegistered(String name) {
+        return sessions.containsKey(name);
+    }
+
+    /**
+     * Registers the client as the owner of the name, replacing any client that held it before.
+     */
+    public void register(String name, ActorRef ref, ActorRef relay, long now) {
+        Session previous = sessions.put(name, new Session(name, ref, relay, now));
+        if (previous != null) {
+            namesByRef.remove(previous.getRef());
+        }
+        namesByRef.put(ref, name);
+        deadSessions.remove(name);
+        changed(name);
+    }
+
+    /**
+     * Creates a new resume token for the user, invalidating the previous one.
+     */
+    public String issueToken(String name) {
+        String token = String.format("%016x%016x", random.nextLong(), random.nextLong());
+        resumeTokens.put(name, token);
+        return token;
+    }
+
+    public void setToken(String name, String token) {
+        resumeTokens.put(name, token);
+    }
+
+    public String getToken(String name) {
+        return resumeTokens.get(name);
+    }
+
+    public boolean canResume(String name, String token) {
+        return token != null && token.equals(resumeTokens.get(name));
+    }
+
+    public ActorRef getRef(String name) {
+        Session session = sessions.get(name);
+        return session == null ? null : session.getRef();
+    }
+
+    public ActorRef getRelay(String name) {
+        Session session = sessions.get(name);
+        return session == null ? null : session.getRelay();
+    }
+
+    public String getName(ActorRef ref) {
+        return namesByRef.get(ref);
+    }
+
+    /**
+     * Frees the session owned by a terminated client actor.
+     * Returns the username that was released, or null if the actor was unknown.
+     */
+    public String removeDead(ActorRef ref, long now) {
+        String name = namesByRef.remove(ref);
+        if (name == null) {
+            return null;
+        }
+        sessions.remove(name);
+        deadSessions.put(name, now);
+        changed(name);
+        totalDeadSessions++;
+        return name;
+    }
+
+    /**
+     * Drops dead sessions that have been idle longer than the timeout and returns
+     * their usernames so any remaining per-user state can be released as well.
+     */
+    public List<String> evictIdle(long now, long idleTimeoutMillis) {
+        List<String> evicted = new ArrayList<>();
+        Iterator<Map.Entry<String, Long>> it = deadSessions.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            if (now - entry.getValue() >= idleTimeoutMillis) {
+                evicted.add(entry.getKey());
+                resumeTokens.remove(entry.getKey());
+                it.remove();
+            }
+        }
+        totalEvictedUsers += evicted.size();
+        return evicted;
+    }
+
+    private void changed(String name) {
+        recentChanges[(int) (epoch % recentChanges.length)] = name;
+        epoch++;
+    }
+
+    /**
+     * Returns the names whose session was added or removed since the given epoch,
+     * or null if that is longer ago than the tracker remembers.
+     */
+    public List<String> changedSince(long since) {
+        if (epoch - since > recentChanges.length) {
+            return null;
+        }
+        List<String> names = new ArrayList<>((int) (epoch - since));
+        for (long e = since; e < epoch; e++) {
+            names.add(recentChanges[(int) (e % recentChanges.length)]);
+        }
+        return names;
+    }
+
+    public Set<String> names() {
+        return sessions.keySet();
+    }
+
+    public Collection<ActorRef> refs() {
+        return namesByRef.keySet();
+    }
+
+    public long getEpoch() { return epoch; }
+    public int liveCount() { return sessions.size(); }
+    public int deadCount() { return deadSessions.size(); }
+    public long getTotalDeadSessions() { return totalDeadSessions; }
+    public long getTotalEvictedUsers() { return totalEvictedUsers; }
+}
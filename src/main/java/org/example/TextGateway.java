@@ -0,0 +1,345 @@
+// TextGateway.java
+package org.example;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.PoisonPill;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plain TCP line-protocol front door for bots and thin clients. A single selector
+ * thread serves every connection, and each connection is backed by a lightweight
+ * GatewaySession actor instead of a full client ActorSystem.
+ *
+ * A failure on one connection closes only that connection. When accepting fails,
+ * e.g. because the process ran out of file descriptors, accepting pauses with a
+ * growing backoff instead of spinning on the error.
+ */
+public class TextGateway {
+    private final ActorSystem system;
+    private final ActorRef serverActor;
+    private final ActorRef relay;
+    private final LoggingAdapter log;
+    private final int maxLineBytes;
+    private final int maxPendingWrites;
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final Queue<Connection> pendingCloses = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);
+    private final AtomicLong nextConnectionId = new AtomicLong();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread selectorThread;
+    private volatile boolean running = false;
+    // Selector thread only: accepting is paused until then after an accept failure
+    private long acceptPausedUntil = 0;
+    private long acceptBackoffMillis = 0;
+
+    private static final long MIN_ACCEPT_BACKOFF_MILLIS = 10;
+    private static final long MAX_ACCEPT_BACKOFF_MILLIS = 1000;
+
+    public TextGateway(ActorSystem system, ActorRef serverActor, ActorRef relay, int maxLineBytes, int maxPendingWrites) {
+        this.system = system;
+        this.serverActor = serverActor;
+        this.relay = relay;
+        this.log = Logging.getLogger(system, this);
+        this.maxLineBytes = maxLineBytes;
+        this.maxPendingWrites = maxPendingWrites;
+    }
+
+    /**
+     * Binds the listening socket and starts the selector thread.
+     * Returns the bound port, which is useful when port 0 was requested.
+     */
+    public int start(String host, int port) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(new InetSocketAddress(host, port), 1024);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+
+        selectorThread = new Thread(this::runSelector, "text-gateway-selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public void stop() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    /**
+     * One client connection. Lines can be sent from any thread; the bytes are
+     * queued and written by the selector thread.
+     */
+    public final class Connection {
+        private final long id;
+        private final SocketChannel channel;
+        private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+        private SelectionKey key;
+        private ActorRef session;
+        private volatile boolean closed = false;
+        private boolean released = false;  // selector thread only
+
+        Connection(long id, SocketChannel channel) {
+            this.id = id;
+            this.channel = channel;
+        }
+
+        public long getId() { return id; }
+
+        public void send(String line) {
+            if (closed) {
+                return;
+            }
+            if (queued.incrementAndGet() > maxPendingWrites) {
+                // Slow consumer: drop the connection instead of buffering without bound
+                log.warning("Closing gateway connection {}: too many pending writes", id);
+                close();
+                return;
+            }
+            outbound.add(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+            pendingWrites.add(this);
+            selector.wakeup();
+        }
+
+        public void close() {
+            if (!closed) {
+                closed = true;
+                pendingCloses.add(this);
+                selector.wakeup();
+            }
+        }
+    }
+
+    private void runSelector() {
+        while (running) {
+            try {
+                if (acceptPausedUntil > 0) {
+                    long wait = acceptPausedUntil - System.currentTimeMillis();
+                    if (wait > 0) {
+                        selector.select(wait);
+                    } else {
+                        resumeAccepting();
+                        selector.selectNow();
+                    }
+                } else {
+                    selector.select();
+                }
+                processPendingCloses();
+                processPendingWrites();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        handle((Connection) key.attachment(), key);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // Never let the selector thread die, that would silently stop the whole gateway
+                log.error(e, "Gateway selector failure");
+            }
+        }
+        shutdown();
+    }
+
+    private void handle(Connection connection, SelectionKey key) {
+        try {
+            if (key.isReadable()) {
+                read(connection);
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush(connection);
+            }
+        } catch (RuntimeException e) {
+            log.error(e, "Closing gateway connection {} after a failure", connection.id);
+            closeNow(connection);
+        }
+    }
+
+    private void accept() {
+        SocketChannel channel;
+        try {
+            while ((channel = serverChannel.accept()) != null) {
+                register(channel);
+            }
+            acceptBackoffMillis = 0;
+        } catch (IOException e) {
+            acceptBackoffMillis = Math.min(MAX_ACCEPT_BACKOFF_MILLIS,
+                    Math.max(MIN_ACCEPT_BACKOFF_MILLIS, acceptBackoffMillis * 2));
+            log.warning("Gateway failed to accept a connection, pausing for {} ms: {}", acceptBackoffMillis,
+                    e.getMessage());
+            acceptPausedUntil = System.currentTimeMillis() + acceptBackoffMillis;
+            serverChannel.keyFor(selector).interestOps(0);
+        }
+    }
+
+    private void resumeAccepting() {
+        acceptPausedUntil = 0;
+        serverChannel.keyFor(selector).interestOps(SelectionKey.OP_ACCEPT);
+    }
+
+    private void register(SocketChannel channel) {
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(nextConnectionId.incrementAndGet(), channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connection.session = system.actorOf(GatewaySession.props(serverActor, relay, connection),
+                    "gateway-session-" + connection.id);
+            openConnections.incrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            log.warning("Gateway dropped a new connection: {}", e.getMessage());
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // already failing
+            }
+        }
+    }
+
+    private void read(Connection connection) {
+        readBuffer.clear();
+        int read;
+        try {
+            read = connection.channel.read(readBuffer);
+        } catch (IOException e) {
+            read = -1;
+        }
+        if (read < 0) {
+            closeNow(connection);
+            return;
+        }
+
+        readBuffer.flip();
+        while (readBuffer.hasRemaining()) {
+            byte b = readBuffer.get();
+            if (b == '\n') {
+                String line = new String(connection.partialLine.toByteArray(), StandardCharsets.UTF_8).trim();
+                connection.partialLine.reset();
+                if (!line.isEmpty()) {
+                    connection.session.tell(new GatewaySession.Line(line), ActorRef.noSender());
+                }
+            } else if (connection.partialLine.size() >= maxLineBytes) {
+                log.warning("Closing gateway connection {}: line too long", connection.id);
+                closeNow(connection);
+                return;
+            } else {
+                connection.partialLine.write(b);
+            }
+        }
+    }
+
+    private void processPendingWrites() {
+        Connection connection;
+        while ((connection = pendingWrites.poll()) != null) {
+            if (connection.key != null && connection.key.isValid()) {
+                try {
+                    flush(connection);
+                } catch (RuntimeException e) {
+                    log.error(e, "Closing gateway connection {} after a failure", connection.id);
+                    closeNow(connection);
+                }
+            }
+        }
+    }
+
+    private void flush(Connection connection) {
+        try {
+            ByteBuffer buffer;
+            while ((buffer = connection.outbound.peek()) != null) {
+                connection.channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    // Socket buffer is full, wait until the channel becomes writable again
+                    connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                connection.outbound.poll();
+                connection.queued.decrementAndGet();
+            }
+            connection.key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            closeNow(connection);
+        }
+    }
+
+    private void processPendingCloses() {
+        Connection connection;
+        while ((connection = pendingCloses.poll()) != null) {
+            closeNow(connection);
+        }
+    }
+
+    private void closeNow(Connection connection) {
+        if (connection.released) {
+            return;
+        }
+        connection.released = true;
+        connection.closed = true;
+        // Best effort: write whatever is still queued before closing
+        try {
+            ByteBuffer buffer;
+            while ((buffer = connection.outbound.poll()) != null && connection.channel.write(buffer) > 0) {
+                // keep draining until the socket buffer is full
+            }
+        } catch (IOException e) {
+            log.debug("Dropping unsent data for gateway connection {}: {}", connection.id, e.getMessage());
+        }
+        if (connection.key != null) {
+            connection.key.cancel();
+        }
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            log.debug("Error closing gateway connection {}: {}", connection.id, e.getMessage());
+        }
+        if (connection.session != null) {
+            connection.session.tell(PoisonPill.getInstance(), ActorRef.noSender());
+        }
+        openConnections.decrementAndGet();
+    }
+
+    private void shutdown() {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                closeNow((Connection) key.attachment());
+            }
+        }
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            log.debug("Error closing gateway selector: {}", e.getMessage());
+        }
+    }
+}
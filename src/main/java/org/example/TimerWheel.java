@@ -0,0 +1,83 @@
+// TimerWheel.java
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Hashed timing wheel for large numbers of coarse timers. Scheduling is O(1)
+ * and each tick only looks at one slot, so millions of pending entries cost
+ * nothing until they are due. Entries further away than one rotation wait in
+ * their slot with a count of remaining rotations.
+ *
+ * Not thread-safe; meant to be owned and advanced by a single actor.
+ */
+public class TimerWheel<T> {
+    private final long tickMillis;
+    private final List<Entry<T>>[] slots;
+    private long currentTick;
+    private long lastAdvanceMillis;
+    private int size = 0;
+
+    private static final class Entry<T> {
+        final T item;
+        long rounds;
+
+        Entry(T item, long rounds) {
+            this.item = item;
+            this.rounds = rounds;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(long tickMillis, int wheelSize, long nowMillis) {
+        this.tickMillis = tickMillis;
+        this.slots = new List[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            slots[i] = new ArrayList<>();
+        }
+        this.lastAdvanceMillis = nowMillis;
+    }
+
+    /**
+     * Schedules an item to come due after the delay, rounded up to whole ticks.
+     */
+    public void schedule(T item, long delayMillis, long nowMillis) {
+        // Account for time that passed since the last advance so the delay is measured from now
+        long pending = Math.max(0, nowMillis - lastAdvanceMillis) / tickMillis;
+        long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis + pending);
+        long target = currentTick + ticks;
+        int slot = (int) (target % slots.length);
+        slots[slot].add(new Entry<>(item, (ticks - 1) / slots.length));
+        size++;
+    }
+
+    /**
+     * Moves the wheel forward to the given time and returns every item that came
+     * due on the way, in the order of their ticks.
+     */
+    public List<T> advance(long nowMillis) {
+        List<T> due = new ArrayList<>();
+        while (nowMillis - lastAdvanceMillis >= tickMillis) {
+            lastAdvanceMillis += tickMillis;
+            currentTick++;
+            Iterator<Entry<T>> it = slots[(int) (currentTick % slots.length)].iterator();
+            while (it.hasNext()) {
+                Entry<T> entry = it.next();
+                if (entry.rounds == 0) {
+                    due.add(entry.item);
+                    it.remove();
+                    size--;
+                } else {
+                    entry.rounds--;
+                }
+            }
+        }
+        return due;
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,66 @@
+// TokenBucket.java
+package org.example;
+
+/**
+ * Classic token bucket: refills at a fixed rate up to a burst capacity and
+ * each accepted request takes one token.
+ */
+public class TokenBucket {
+    private final double ratePerMilli;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(double ratePerSecond, int burst, long now) {
+        this.ratePerMilli = ratePerSecond / 1000.0;
+        this.capacity = burst;
+        this.tokens = burst;
+        this.lastRefill = now;
+    }
+
+    public boolean tryAcquire(long now) {
+        refill(now);
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Takes as many whole tokens as are available, up to the requested number,
+     * and returns how many were taken.
+     */
+    public int tryAcquire(long now, int requested) {
+        refill(now);
+        int taken = (int) Math.min(requested, Math.floor(tokens));
+        tokens -= taken;
+        return taken;
+    }
+
+    /**
+     * Milliseconds until the next token becomes available.
+     */
+    public long millisUntilAvailable(long now) {
+        return millisUntilAvailable(now, 1);
+    }
+
+    /**
+     * Milliseconds until count tokens are available, at most until the bucket is full.
+     */
+    public long millisUntilAvailable(long now, int count) {
+        refill(now);
+        double needed = Math.min(count, capacity);
+        if (tokens >= needed) {
+            return 0;
+        }
+        return (long) Math.ceil((needed - tokens) / ratePerMilli);
+    }
+
+    private void refill(long now) {
+        if (now > lastRefill) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * ratePerMilli);
+            lastRefill = now;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+// TypingBuffer.java
+package org.example;
+
+import java.util.*;
+
+/**
+ * Typing events waiting for the next typing tick, one per user and conversation.
+ * A newer event replaces the one still waiting, so however often a client reports
+ * typing, each of its conversations causes at most one delivery per tick.
+ *
+ * Typing events queue behind chat messages, so one sent just before a message
+ * may only arrive after it. Typing reported within quietMillis of the user's
+ * last message in the conversation is taken to be such a latecomer and dropped.
+ */
+public class TypingBuffer {
+    private final long quietMillis;
+    // "user conversation-key" -> latest event
+    private final Map<String, TypingEvent> pending = new LinkedHashMap<>();
+    // "user conversation-key" -> when the user last sent a message there, oldest first
+    private final Map<String, Long> recentSends = new LinkedHashMap<>();
+    private long coalesced = 0;
+    private long stale = 0;
+
+    public TypingBuffer(long quietMillis) {
+        this.quietMillis = quietMillis;
+    }
+
+    /**
+     * Keeps the event for the next tick. Returns true if nothing was waiting yet, i.e. a tick must be scheduled.
+     */
+    public boolean offer(String conversation, TypingEvent event, long now) {
+        String key = event.getUser() + " " + conversation;
+        Long sent = recentSends.get(key);
+        if (event.isTyping() && sent != null && now - sent < quietMillis) {
+            stale++;
+            return false;
+        }
+        boolean wasEmpty = pending.isEmpty();
+        if (pending.put(key, event) != null) {
+            coalesced++;
+        }
+        return wasEmpty;
+    }
+
+    /**
+     * The user sent a message to the conversation, which ends their typing there.
+     */
+    public void messageSent(String user, String conversation, long now) {
+        String key = user + " " + conversation;
+        pending.remove(key);
+        // Re-inserted so the map stays ordered by time and expired entries are at its head
+        recentSends.remove(key);
+        recentSends.put(key, now);
+        Iterator<Long> oldest = recentSends.values().iterator();
+        while (oldest.hasNext() && now - oldest.next() >= quietMillis) {
+            oldest.remove();
+        }
+    }
+
+    public List<TypingEvent> drain() {
+        List<TypingEvent> events = new ArrayList<>(pending.values());
+        pending.clear();
+        return events;
+    }
+
+    public int size() { return pending.size(); }
+    public long getCoalesced() { return coalesced; }
+    public long getStale() { return stale; }
+}
@@ -0,0 +1,41 @@
+// TypingEvent.java
+package org.example;
+
+import java.io.Serializable;
+
+/**
+ * Tells the other participants of a conversation that a user started or stopped
+ * typing. Unlike SendMessage it is never stored or acknowledged: the server keeps
+ * only the latest state per user and conversation, delivers it at the next typing
+ * tick and drops it when busy. Clients repeat typing=true every few seconds while
+ * their user types, and receivers forget a state that was not repeated in time.
+ */
+public class TypingEvent implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final String user;
+    private final String chatPartner;  // the other participant of a direct chat, seen from user
+    private final String targetGroup;  // null for direct chats
+    private final boolean typing;
+
+    public TypingEvent(String user, String chatPartner, String targetGroup, boolean typing) {
+        this.user = user;
+        this.chatPartner = chatPartner;
+        this.targetGroup = targetGroup;
+        this.typing = typing;
+    }
+
+    public String getUser() { return user; }
+    public String getChatPartner() { return chatPartner; }
+    public String getTargetGroup() { return targetGroup; }
+    public boolean isTyping() { return typing; }
+
+    /**
+     * What the receiving user calls the conversation: the other participant, or #name for groups.
+     */
+    public String conversationFor(String username) {
+        if (targetGroup != null) {
+            return "#" + targetGroup;
+        }
+        return user.equals(username) ? chatPartner : user;
+    }
+}
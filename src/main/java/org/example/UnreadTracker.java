@@ -0,0 +1,161 @@
+// UnreadTracker.java
+package org.example;
+
+import java.util.*;
+
+/**
+ * Per-user unread counts kept as read watermarks. Each conversation has a
+ * sequence number that grows with every stored message and each participant
+ * remembers the sequence they have read up to, so storing a message is O(1)
+ * regardless of how many people take part in the conversation.
+ */
+public class UnreadTracker {
+    private final Map<String, Long> sequences = new HashMap<>();
+    private final Map<String, Set<String>> participants = new HashMap<>();
+    // user -> conversation -> sequence read up to
+    private final Map<String, Map<String, Long>> watermarks = new HashMap<>();
+    // user -> conversation -> sequence when they joined
+    private final Map<String, Map<String, Long>> joins = new HashMap<>();
+    // Conversations with new messages since the last drainUpdates()
+    private final Set<String> dirty = new HashSet<>();
+
+    public void addParticipant(String conversation, String user) {
+        if (participants.computeIfAbsent(conversation, k -> new HashSet<>()).add(user)) {
+            // New participants start with everything already sent marked as read
+            watermarks.computeIfAbsent(user, k -> new HashMap<>()).put(conversation, sequence(conversation));
+            joins.computeIfAbsent(user, k -> new HashMap<>()).put(conversation, sequence(conversation));
+        }
+    }
+
+    public void removeParticipant(String conversation, String user) {
+        Set<String> users = participants.get(conversation);
+        if (users != null) {
+            users.remove(user);
+        }
+        Map<String, Long> marks = watermarks.get(user);
+        if (marks != null) {
+            marks.remove(conversation);
+        }
+        Map<String, Long> joined = joins.get(user);
+        if (joined != null) {
+            joined.remove(conversation);
+        }
+    }
+
+    public void removeConversation(String conversation) {
+        Set<String> users = participants.remove(conversation);
+        if (users != null) {
+            for (String user : users) {
+                Map<String, Long> marks = watermarks.get(user);
+                if (marks != null) {
+                    marks.remove(conversation);
+                }
+                Map<String, Long> joined = joins.get(user);
+                if (joined != null) {
+                    joined.remove(conversation);
+                }
+            }
+        }
+        sequences.remove(conversation);
+        dirty.remove(conversation);
+    }
+
+    public void onStored(String conversation, String sender) {
+        long sequence = sequence(conversation) + 1;
+        sequences.put(conversation, sequence);
+        // Authors have read their own messages
+        Map<String, Long> marks = watermarks.get(sender);
+        if (marks != null && marks.containsKey(conversation)) {
+            marks.put(conversation, sequence);
+        }
+        dirty.add(conversation);
+    }
+
+    public void markRead(String user, String conversation) {
+        Map<String, Long> marks = watermarks.get(user);
+        if (marks != null && marks.containsKey(conversation)) {
+            marks.put(conversation, sequence(conversation));
+        }
+    }
+
+    public long getUnread(String user, String conversation) {
+        Map<String, Long> marks = watermarks.get(user);
+        if (marks == null || !marks.containsKey(conversation)) {
+            return 0;
+        }
+        return sequence(conversation) - marks.get(conversation);
+    }
+
+    public long getSequence(String conversation) {
+        return sequence(conversation);
+    }
+
+    public long getWatermark(String user, String conversation) {
+        Map<String, Long> marks = watermarks.get(user);
+        Long mark = marks == null ? null : marks.get(conversation);
+        return mark == null ? 0 : mark;
+    }
+
+    /**
+     * Returns the conversation's sequence when the user joined it, so messages
+     * up to that sequence were sent before they were there.
+     */
+    public long getJoinedAt(String user, String conversation) {
+        Map<String, Long> joined = joins.get(user);
+        Long sequence = joined == null ? null : joined.get(conversation);
+        return sequence == null ? 0 : sequence;
+    }
+
+    /**
+     * Returns the conversations the user takes part in.
+     */
+    public Set<String> conversationsOf(String user) {
+        Map<String, Long> marks = watermarks.get(user);
+        return marks == null ? Collections.emptySet() : marks.keySet();
+    }
+
+    public Set<String> getParticipants(String conversation) {
+        Set<String> users = participants.get(conversation);
+        return users == null ? Collections.emptySet() : users;
+    }
+
+    /**
+     * Returns every conversation of the user that has unread messages.
+     */
+    public Map<String, Long> summary(String user) {
+        Map<String, Long> result = new HashMap<>();
+        Map<String, Long> marks = watermarks.get(user);
+        if (marks != null) {
+            for (Map.Entry<String, Long> entry : marks.entrySet()) {
+                long unread = sequence(entry.getKey()) - entry.getValue();
+                if (unread > 0) {
+                    result.put(entry.getKey(), unread);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Collects the unread counts that changed since the previous call, grouped
+     * by user, so each user gets at most one update per flush.
+     */
+    public Map<String, Map<String, Long>> drainUpdates() {
+        Map<String, Map<String, Long>> updates = new HashMap<>();
+        for (String conversation : dirty) {
+            for (String user : getParticipants(conversation)) {
+                long unread = getUnread(user, conversation);
+                if (unread > 0) {
+                    updates.computeIfAbsent(user, k -> new HashMap<>()).put(conversation, unread);
+                }
+            }
+        }
+        dirty.clear();
+        return updates;
+    }
+
+    private long sequence(String conversation) {
+        Long sequence = sequences.get(conversation);
+        return sequence == null ? 0 : sequence;
+    }
+}
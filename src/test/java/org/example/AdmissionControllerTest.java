@@ -0,0 +1,48 @@
+// AdmissionControllerTest.java
+package org.example;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdmissionControllerTest {
+    private final Config config = ConfigFactory.load().getConfig("chat.server.admission");
+
+    @Test
+    public void admitsAFullBatchAtOnce() {
+        AdmissionController admission = new AdmissionController(config);
+        int maxBatchSize = config.getInt("max-batch-size");
+
+        AdmissionController.Decision decision = admission.admitBatch("alice", maxBatchSize, 0, 0);
+        assertTrue(decision.isAccepted());
+        assertEquals(maxBatchSize, decision.getAdmitted());
+    }
+
+    @Test
+    public void batchesDoNotUseTheSendRate() {
+        AdmissionController admission = new AdmissionController(config);
+        admission.admitBatch("alice", config.getInt("batch-burst"), 0, 0);
+
+        assertTrue(admission.admitSend("alice", 0, 0).isAccepted());
+    }
+
+    @Test
+    public void rejectedTailComesWithTheTimeToAdmitIt() {
+        AdmissionController admission = new AdmissionController(config);
+        int burst = config.getInt("batch-burst");
+        double rate = config.getDouble("batch-rate");
+        admission.admitBatch("alice", burst, 0, 0);
+
+        AdmissionController.Decision decision = admission.admitBatch("alice", 50, 0, 0);
+        assertFalse(decision.isAccepted());
+        assertEquals(0, decision.getAdmitted());
+        long expected = (long) Math.ceil(50 * 1000 / rate);
+        assertEquals(expected, decision.getRetryAfterMillis());
+
+        AdmissionController.Decision retried = admission.admitBatch("alice", 50, 0, decision.getRetryAfterMillis());
+        assertTrue(retried.isAccepted());
+        assertEquals(50, retried.getAdmitted());
+    }
+}
@@ -0,0 +1,92 @@
+// ArenaBenchmark.java
+package org.example;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares garbage collection cost of hot history kept as Message objects on
+ * the heap versus encoded in a MessageArena. Fills many hot windows, then
+ * keeps appending new messages and dropping the oldest ones like the
+ * HistoryStore does, and reports collections, collection time and live heap.
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.example.ArenaBenchmark -Dexec.args="heap|off-heap"
+ */
+public class ArenaBenchmark {
+    private static final int CONVERSATIONS = 10_000;
+    private static final int WINDOW = 200;
+    private static final int CHURN_ROUNDS = 100;
+
+    public static void main(String[] args) {
+        String mode = args.length > 0 ? args[0] : "heap";
+        MessageArena arena = mode.equals("off-heap") ? new MessageArena(1 << 20) : null;
+        List<List<Message>> windows = new ArrayList<>(CONVERSATIONS);
+        for (int i = 0; i < CONVERSATIONS; i++) {
+            windows.add(arena == null ? new ArrayList<>() : new ArenaMessageList(arena));
+        }
+
+        long nextId = 1;
+        for (int n = 0; n < WINDOW; n++) {
+            for (int i = 0; i < CONVERSATIONS; i++) {
+                windows.get(i).add(message(nextId++, i));
+            }
+        }
+        long gcStart = System.nanoTime();
+        long liveHeap = liveHeapBytes();
+        long fullCollectionMillis = (System.nanoTime() - gcStart) / 1_000_000;
+
+        long collectionsBefore = collections();
+        long timeBefore = collectionMillis();
+        long start = System.nanoTime();
+        for (int round = 0; round < CHURN_ROUNDS; round++) {
+            for (int i = 0; i < CONVERSATIONS; i++) {
+                List<Message> window = windows.get(i);
+                window.add(message(nextId++, i));
+                window.subList(0, window.size() - WINDOW).clear();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("mode=%s messages=%d%n", mode, (long) CONVERSATIONS * WINDOW);
+        System.out.printf("live heap after fill: %.1f MB, full collection took %d ms%n",
+                liveHeap / 1_048_576.0, fullCollectionMillis);
+        if (arena != null) {
+            System.out.printf("off-heap reserved:    %.1f MB%n", arena.getReservedBytes() / 1_048_576.0);
+        }
+        System.out.printf("churn: %d appends in %d ms, %d collections, %d ms collecting%n",
+                (long) CONVERSATIONS * CHURN_ROUNDS, elapsed / 1_000_000,
+                collections() - collectionsBefore, collectionMillis() - timeBefore);
+        System.out.printf("live heap after churn: %.1f MB%n", liveHeapBytes() / 1_048_576.0);
+        // Keep the windows reachable until everything has been measured
+        System.out.println("windows: " + windows.size());
+    }
+
+    private static Message message(long id, int conversation) {
+        return new Message(id, "user" + (conversation % 1000), "Message " + id + " in conversation " + conversation,
+                Message.MessageType.DIRECT, null);
+    }
+
+    private static long liveHeapBytes() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static long collections() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionCount());
+        }
+        return total;
+    }
+
+    private static long collectionMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+}
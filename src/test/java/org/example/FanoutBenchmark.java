@@ -0,0 +1,72 @@
+// FanoutBenchmark.java
+package org.example;
+
+import akka.actor.ActorSystem;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import akka.serialization.Serializer;
+import com.typesafe.config.ConfigFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Compares the serialization CPU cost of one broadcast when the message is
+ * serialized for every remote recipient versus once through SerializedPayload.
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.example.FanoutBenchmark
+ */
+public class FanoutBenchmark {
+    private static final int[] MEMBER_COUNTS = {10, 100, 1_000, 10_000};
+    private static final int ROUNDS = 20;
+
+    public static void main(String[] args) {
+        ActorSystem system = ActorSystem.create("FanoutBenchmark",
+                ConfigFactory.parseString("akka.actor.provider = local").withFallback(ConfigFactory.load()));
+        Serialization serialization = SerializationExtension.get(system);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Message message = new Message("alice", "The quick brown fox jumps over the lazy dog",
+                Message.MessageType.GROUP, "benchmark");
+        Serializer payloadSerializer = serialization.findSerializerFor(SerializedPayload.of(serialization, message));
+
+        // Warm up both paths before measuring
+        perRecipient(serialization, message, 10_000);
+        serializeOnce(serialization, payloadSerializer, message, 10_000);
+
+        System.out.printf("%-10s %22s %22s%n", "members", "per-recipient (us)", "serialize-once (us)");
+        for (int members : MEMBER_COUNTS) {
+            long naive = 0;
+            long once = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = threads.getCurrentThreadCpuTime();
+                perRecipient(serialization, message, members);
+                naive += threads.getCurrentThreadCpuTime() - start;
+
+                start = threads.getCurrentThreadCpuTime();
+                serializeOnce(serialization, payloadSerializer, message, members);
+                once += threads.getCurrentThreadCpuTime() - start;
+            }
+            System.out.printf("%-10d %22.1f %22.1f%n", members,
+                    naive / 1_000.0 / ROUNDS, once / 1_000.0 / ROUNDS);
+        }
+
+        system.terminate();
+    }
+
+    private static long perRecipient(Serialization serialization, Object message, int recipients) {
+        long bytes = 0;
+        for (int i = 0; i < recipients; i++) {
+            bytes += serialization.serialize(message).get().length;
+        }
+        return bytes;
+    }
+
+    private static long serializeOnce(Serialization serialization, Serializer payloadSerializer,
+                                      Object message, int recipients) {
+        SerializedPayload payload = SerializedPayload.of(serialization, message);
+        long bytes = 0;
+        for (int i = 0; i < recipients; i++) {
+            bytes += payloadSerializer.toBinary(payload).length;
+        }
+        return bytes;
+    }
+}
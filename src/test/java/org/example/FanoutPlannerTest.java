@@ -0,0 +1,84 @@
+// FanoutPlannerTest.java
+package org.example;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FanoutPlannerTest {
+    private static ActorSystem system;
+
+    @BeforeClass
+    public static void setUp() {
+        system = ActorSystem.create("FanoutPlannerTest");
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        TestKit.shutdownActorSystem(system);
+    }
+
+    private static ActorRef ref() {
+        return new TestKit(system).getRef();
+    }
+
+    @Test
+    public void patchesThePlanForOneSessionInsteadOfRebuilding() {
+        SessionTracker sessions = new SessionTracker();
+        Group group = new Group("g", "u0");
+        ActorRef relayA = ref();
+        ActorRef relayB = ref();
+        for (int i = 0; i < 4; i++) {
+            group.addMember("u" + i);
+            sessions.register("u" + i, ref(), i < 2 ? relayA : relayB, 0);
+        }
+        FanoutPlanner planner = new FanoutPlanner();
+        FanoutPlanner.Plan plan = planner.forGroup(group, sessions);
+        assertTrue(plan.markInformed(relayA));
+        assertTrue(plan.markInformed(relayB));
+
+        // Someone outside the group logs in, nothing changes
+        sessions.register("outsider", ref(), relayA, 0);
+        assertSame(plan, planner.forGroup(group, sessions));
+        assertEquals(2, plan.getByRelay().get(relayA).size());
+        assertFalse(plan.markInformed(relayA));
+
+        // A member reconnects: same plan, only their relay gets its recipients again
+        ActorRef reconnected = ref();
+        sessions.removeDead(sessions.getRef("u3"), 0);
+        sessions.register("u3", reconnected, relayB, 0);
+        assertSame(plan, planner.forGroup(group, sessions));
+        assertTrue(plan.getByRelay().get(relayB).contains(reconnected));
+        assertFalse(plan.markInformed(relayA));
+        assertTrue(plan.markInformed(relayB));
+
+        // A relay left with one recipient is skipped for a direct send
+        ActorRef u0 = sessions.getRef("u0");
+        ActorRef u1 = sessions.getRef("u1");
+        sessions.removeDead(u0, 0);
+        assertSame(plan, planner.forGroup(group, sessions));
+        assertFalse(plan.getByRelay().containsKey(relayA));
+        assertTrue(plan.getDirect().contains(u1));
+        assertFalse(plan.getDirect().contains(u0));
+    }
+
+    @Test
+    public void rebuildsWhenMembershipChanges() {
+        SessionTracker sessions = new SessionTracker();
+        Group group = new Group("g", "alice");
+        sessions.register("alice", ref(), null, 0);
+        FanoutPlanner planner = new FanoutPlanner();
+        FanoutPlanner.Plan plan = planner.forGroup(group, sessions);
+
+        group.addMember("bob");
+        sessions.register("bob", ref(), null, 0);
+        FanoutPlanner.Plan rebuilt = planner.forGroup(group, sessions);
+        assertNotEquals(plan.getId(), rebuilt.getId());
+        assertEquals(2, rebuilt.getDirect().size());
+    }
+}
@@ -0,0 +1,164 @@
+// HistoryStoreTest.java
+package org.example;
+
+import akka.event.NoLogging$;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class HistoryStoreTest {
+    private static final String KEY = "alice:bob";
+    private Config config;
+    private HistoryStore primary;
+    private HistoryStore mirror;
+
+    @Before
+    public void setUp() throws IOException {
+        Path coldDir = Files.createTempDirectory("history-test-cold");
+        config = ConfigFactory.parseString(
+                "hot-max-messages = 10\n" +
+                "block-size = 5\n" +
+                "cold-dir = \"" + coldDir.toAbsolutePath().toString().replace("\\", "/") + "\"\n")
+                .withFallback(ConfigFactory.load().getConfig("chat.server.history"));
+        primary = new HistoryStore(config, NoLogging$.MODULE$);
+        mirror = HistoryStore.mirror(config, NoLogging$.MODULE$);
+        // Events are applied at once here, a replica applies them later
+        primary.setListener(new HistoryStore.Listener() {
+            @Override
+            public void onSpilled(String key, HistoryStore.ColdBlock block, int count) {
+                mirror.applySpill(key, block, count);
+            }
+
+            @Override
+            public void onCompacted(String key, List<HistoryStore.ColdBlock> cold, int hotDropped) {
+                mirror.applyCompaction(key, cold, hotDropped);
+            }
+
+            @Override
+            public void onRemoved(String key, Set<Long> ids, List<HistoryStore.ColdBlock> cold) {
+                mirror.applyRemoval(key, ids, cold);
+            }
+
+            @Override
+            public void onRestored(String key, List<HistoryStore.ColdBlock> cold) {
+                mirror.applyRestore(key, cold);
+            }
+        });
+    }
+
+    private void appendMessages(int count) {
+        LocalDateTime start = LocalDateTime.now().minusMinutes(count);
+        for (int id = 1; id <= count; id++) {
+            Message message = new Message(id, "alice", "message " + id, start.plusMinutes(id),
+                    Message.MessageType.DIRECT, null);
+            primary.append(KEY, message);
+            mirror.append(KEY, message);
+        }
+    }
+
+    @Test
+    public void keepsReplacedBlocksUntilReleased() {
+        appendMessages(20);
+        assertTrue(primary.coldBlockCount() > 0);
+        List<HistoryStore.ColdBlock> blocks = primary.coldBlocks(KEY);
+
+        primary.remove(KEY);
+        List<Path> retired = primary.takeRetired();
+        assertEquals(blocks.size(), retired.size());
+        for (Path file : retired) {
+            assertTrue(Files.exists(file));
+        }
+
+        // A mirror that has not seen the removal yet still reads the old blocks
+        assertEquals(20, mirror.getLatest(KEY, Long.MAX_VALUE, 100).size());
+
+        primary.deleteBlocks(retired);
+        for (Path file : retired) {
+            assertFalse(Files.exists(file));
+        }
+        assertTrue(primary.takeRetired().isEmpty());
+    }
+
+    @Test(expected = UncheckedIOException.class)
+    public void missingBlockIsAnError() throws IOException {
+        appendMessages(20);
+        Files.delete(primary.coldBlocks(KEY).get(0).getFile());
+        primary.getLatest(KEY, Long.MAX_VALUE, 100);
+    }
+
+    @Test
+    public void deletesAtOnceWithoutMirrors() {
+        HistoryStore alone = new HistoryStore(config, NoLogging$.MODULE$);
+        LocalDateTime start = LocalDateTime.now().minusMinutes(20);
+        for (int id = 1; id <= 20; id++) {
+            alone.append(KEY, new Message(id, "alice", "message " + id, start.plusMinutes(id),
+                    Message.MessageType.DIRECT, null));
+        }
+        List<HistoryStore.ColdBlock> blocks = alone.coldBlocks(KEY);
+        assertFalse(blocks.isEmpty());
+
+        alone.remove(KEY);
+        assertTrue(alone.takeRetired().isEmpty());
+        for (HistoryStore.ColdBlock block : blocks) {
+            assertFalse(Files.exists(block.getFile()));
+        }
+    }
+
+    @Test
+    public void pagesThroughARange() {
+        LocalDateTime start = LocalDateTime.now().minusHours(1);
+        for (int id = 1; id <= 23; id++) {
+            // Pairs of messages share a timestamp, so pages may end between them
+            primary.append(KEY, new Message(id, "alice", "message " + id, start.plusMinutes(id / 2),
+                    Message.MessageType.DIRECT, null));
+        }
+        assertTrue(primary.coldBlockCount() > 0);
+
+        LocalDateTime from = start;
+        long afterId = 0;
+        List<Long> ids = new java.util.ArrayList<>();
+        List<Message> page;
+        while (!(page = primary.getRange(KEY, from, afterId, start.plusHours(1), 4)).isEmpty()) {
+            assertTrue(page.size() <= 4);
+            for (Message message : page) {
+                ids.add(message.getId());
+            }
+            Message last = page.get(page.size() - 1);
+            from = last.getTimestamp();
+            afterId = last.getId();
+        }
+        assertEquals(23, ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals(i + 1, (long) ids.get(i));
+        }
+    }
+
+    @Test
+    public void removesMessagesByIdAndTimestamp() {
+        appendMessages(20);
+        List<Message> all = primary.getLatest(KEY, Long.MAX_VALUE, 100);
+        java.util.Map<Long, LocalDateTime> expired = new java.util.HashMap<>();
+        // One from a cold block, one still hot
+        expired.put(all.get(2).getId(), all.get(2).getTimestamp());
+        expired.put(all.get(17).getId(), all.get(17).getTimestamp());
+
+        primary.removeMessages(KEY, expired);
+        List<Message> left = primary.getLatest(KEY, Long.MAX_VALUE, 100);
+        assertEquals(18, left.size());
+        for (Message message : left) {
+            assertFalse(expired.containsKey(message.getId()));
+        }
+        assertEquals(18, mirror.getLatest(KEY, Long.MAX_VALUE, 100).size());
+    }
+}
@@ -0,0 +1,100 @@
+// MessageTtlTest.java
+package org.example;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class MessageTtlTest {
+    private ActorSystem system;
+    private ActorRef server;
+
+    @Before
+    public void setUp() throws IOException {
+        String coldDir = Files.createTempDirectory("ttl-test-cold").toAbsolutePath().toString().replace("\\", "/");
+        Config config = ConfigFactory.parseString(
+                "akka.actor.provider = local\n" +
+                "akka.loglevel = WARNING\n" +
+                "chat.server.delivery.window = 0\n" +
+                "chat.server.history.cold-dir = \"" + coldDir + "\"\n")
+                .withFallback(ConfigFactory.load());
+        system = ActorSystem.create("MessageTtlTest", config);
+        server = system.actorOf(ServerActor.props(), "serverActor");
+    }
+
+    @After
+    public void tearDown() {
+        TestKit.shutdownActorSystem(system);
+    }
+
+    private static long stat(TestKit probe, ActorRef server, String key) {
+        server.tell(new ServerActor.GetServerStats(), probe.getRef());
+        return probe.expectMsgClass(ServerActor.ServerStats.class).getValues().getOrDefault(key, 0L);
+    }
+
+    private long ttlConversations(TestKit probe) {
+        return stat(probe, server, "timers.ttl-conversations");
+    }
+
+    @Test
+    public void refusesMissingOrUnknownPartners() {
+        TestKit alice = new TestKit(system);
+        server.tell(new ServerActor.RegisterClient("alice"), alice.getRef());
+        alice.expectMsgClass(ServerActor.RegistrationSuccess.class);
+
+        server.tell(new ServerActor.SetMessageTtl("alice", null, null, Duration.ofHours(1)), alice.getRef());
+        alice.fishForMessage(Duration.ofSeconds(5), "an error", msg -> msg instanceof ServerActor.ErrorMessage);
+        server.tell(new ServerActor.SetMessageTtl("alice", "nobody", null, Duration.ofHours(1)), alice.getRef());
+        alice.fishForMessage(Duration.ofSeconds(5), "an error", msg -> msg instanceof ServerActor.ErrorMessage);
+        assertEquals(0, ttlConversations(alice));
+
+        TestKit bob = new TestKit(system);
+        server.tell(new ServerActor.RegisterClient("bob"), bob.getRef());
+        bob.expectMsgClass(ServerActor.RegistrationSuccess.class);
+        server.tell(new ServerActor.SetMessageTtl("alice", "bob", null, Duration.ofHours(1)), alice.getRef());
+        alice.fishForMessage(Duration.ofSeconds(5), "the notice", msg -> msg instanceof ServerActor.SystemMessage);
+        assertEquals(1, ttlConversations(alice));
+    }
+
+    @Test
+    public void copiedHistoryExpiresByItsOwnTimestamp() throws IOException {
+        String coldDir = Files.createTempDirectory("ttl-standby-cold").toAbsolutePath().toString().replace("\\", "/");
+        ActorSystem standbySystem = ActorSystem.create("MessageTtlStandby", ConfigFactory.parseString(
+                "chat.server.replication.role = standby\n" +
+                "chat.server.timers.tick = 100ms\n" +
+                "chat.server.history.cold-dir = \"" + coldDir + "\"\n")
+                .withFallback(system.settings().config()));
+        try {
+            ActorRef standby = standbySystem.actorOf(ServerActor.props(), "serverActor");
+            TestKit primary = new TestKit(standbySystem);
+            LocalDateTime now = LocalDateTime.now();
+            standby.tell(new Replication.TtlChanged("alice:bob", Duration.ofSeconds(3)), primary.getRef());
+            standby.tell(new Replication.ConversationChunk("alice:bob", Arrays.asList(
+                    new Message(1, "alice", "expired", now.minusSeconds(10), Message.MessageType.DIRECT, null),
+                    new Message(2, "alice", "nearly", now.minusNanos(2_500_000_000L), Message.MessageType.DIRECT, null),
+                    new Message(3, "alice", "fresh", now, Message.MessageType.DIRECT, null))), primary.getRef());
+
+            assertEquals(2, stat(primary, standby, "history.hot.messages"));
+            // Half a second left for the second one, not a whole TTL from its arrival
+            primary.awaitAssert(Duration.ofMillis(2000), () -> {
+                assertEquals(1, stat(primary, standby, "history.hot.messages"));
+                return null;
+            });
+        } finally {
+            TestKit.shutdownActorSystem(standbySystem);
+        }
+    }
+}
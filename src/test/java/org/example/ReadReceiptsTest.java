@@ -0,0 +1,64 @@
+// ReadReceiptsTest.java
+package org.example;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReadReceiptsTest {
+    private static final String GROUP = "group:g";
+
+    private final UnreadTracker unread = new UnreadTracker();
+    private final ReadReceipts receipts = new ReadReceipts();
+
+    private void store(String sender, long messageId) {
+        unread.onStored(GROUP, sender);
+        receipts.onStored(GROUP, sender, messageId, unread.getSequence(GROUP));
+    }
+
+    private void read(String user) {
+        unread.markRead(user, GROUP);
+        receipts.onRead(GROUP);
+    }
+
+    @Test
+    public void countsOnlyMembersWhoWereThere() {
+        unread.addParticipant(GROUP, "alice");
+        unread.addParticipant(GROUP, "bob");
+        unread.addParticipant(GROUP, "carol");
+        store("alice", 1);
+
+        unread.addParticipant(GROUP, "dave");
+        read("bob");
+        List<ReadReceipts.Receipt> drained = receipts.drain(unread);
+        assertEquals(1, drained.size());
+        assertEquals(1, drained.get(0).getSeenBy());
+        assertEquals(2, drained.get(0).getMembers());
+
+        // Reading after joining does not count for a message sent before
+        read("dave");
+        assertTrue(receipts.drain(unread).isEmpty());
+
+        read("carol");
+        drained = receipts.drain(unread);
+        assertEquals(2, drained.get(0).getSeenBy());
+        assertEquals(2, drained.get(0).getMembers());
+    }
+
+    @Test
+    public void countsMembersWhoJoinedBeforeTheMessage() {
+        unread.addParticipant(GROUP, "alice");
+        unread.addParticipant(GROUP, "bob");
+        store("alice", 1);
+        unread.addParticipant(GROUP, "carol");
+        store("alice", 2);
+
+        read("carol");
+        List<ReadReceipts.Receipt> drained = receipts.drain(unread);
+        assertEquals(2, drained.get(0).getMessageId());
+        assertEquals(1, drained.get(0).getSeenBy());
+        assertEquals(2, drained.get(0).getMembers());
+    }
+}
@@ -0,0 +1,226 @@
+// ReplicationTest.java
+package org.example;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Address;
+import akka.actor.ExtendedActorSystem;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs a primary and a standby server in two ActorSystems talking over remoting,
+ * the way ServerApp runs them in two JVMs, with the clients in a third one.
+ */
+public class ReplicationTest {
+    private final List<ActorSystem> systems = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        systems.forEach(TestKit::shutdownActorSystem);
+    }
+
+    private ActorSystem start(String name, String settings) throws IOException {
+        String coldDir = Files.createTempDirectory(name + "-cold").toAbsolutePath().toString().replace("\\", "/");
+        Config config = ConfigFactory.parseString(
+                "akka.loglevel = WARNING\n" +
+                "akka.remote.artery.canonical.port = 0\n" +
+                "akka.remote.watch-failure-detector.acceptable-heartbeat-pause = 2s\n" +
+                "chat.server.delivery.window = 0\n" +
+                "chat.server.replication.subscribe-interval = 200ms\n" +
+                "chat.server.history.cold-dir = \"" + coldDir + "\"\n" +
+                settings)
+                .withFallback(ConfigFactory.load());
+        ActorSystem system = ActorSystem.create(name, config);
+        systems.add(system);
+        return system;
+    }
+
+    private static Address addressOf(ActorSystem system) {
+        return ((ExtendedActorSystem) system).provider().getDefaultAddress();
+    }
+
+    private static long stat(TestKit probe, ActorRef server, String key) {
+        server.tell(new ServerActor.GetServerStats(), probe.getRef());
+        Map<String, Long> values = probe.expectMsgClass(ServerActor.ServerStats.class).getValues();
+        return values.getOrDefault(key, 0L);
+    }
+
+    private static Message expectMessage(TestKit probe) {
+        return (Message) probe.fishForMessage(Duration.ofSeconds(5), "a direct message",
+                msg -> msg instanceof Message && ((Message) msg).getType() == Message.MessageType.DIRECT);
+    }
+
+    private static ActorRef resolve(ActorSystem from, ActorSystem system, ActorRef ref) {
+        return from.actorSelection(ref.path().toStringWithAddress(addressOf(system)))
+                .resolveOne(Duration.ofSeconds(5)).toCompletableFuture().join();
+    }
+
+    @Test
+    public void largeBatchesReachTheStandby() throws IOException {
+        ActorSystem primarySystem = start("ChatServer", "");
+        ActorRef primary = primarySystem.actorOf(ServerActor.props(), "serverActor");
+        ActorSystem standbySystem = start("ChatServer",
+                "chat.server.replication.role = standby\n" +
+                "chat.server.replication.primary = \"" + primary.path().toStringWithAddress(addressOf(primarySystem)) + "\"\n");
+        ActorRef standby = standbySystem.actorOf(ServerActor.props(), "serverActor");
+        TestKit admin = new TestKit(primarySystem);
+        ActorRef standbyFromPrimary = resolve(primarySystem, standbySystem, standby);
+        admin.awaitAssert(Duration.ofSeconds(10), () -> {
+            assertEquals(1, stat(admin, primary, "replication.standby"));
+            return null;
+        });
+
+        // Local clients, so only the stream to the standby crosses the network
+        TestKit alice = new TestKit(primarySystem);
+        TestKit bob = new TestKit(primarySystem);
+        primary.tell(new ServerActor.RegisterClient("alice", null), alice.getRef());
+        alice.expectMsgClass(ServerActor.RegistrationSuccess.class);
+        primary.tell(new ServerActor.RegisterClient("bob", null), bob.getRef());
+        bob.expectMsgClass(ServerActor.RegistrationSuccess.class);
+
+        // Far more than one frame once serialized
+        char[] text = new char[1000];
+        java.util.Arrays.fill(text, 'x');
+        List<ServerActor.SendMessage> batch = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            batch.add(new ServerActor.SendMessage("alice", "bob", new String(text), Message.MessageType.DIRECT, null));
+        }
+        primary.tell(new ServerActor.SendMessageBatch("alice", batch), alice.getRef());
+        ServerActor.BatchResult result = (ServerActor.BatchResult) alice.fishForMessage(Duration.ofSeconds(5),
+                "the batch result", msg -> msg instanceof ServerActor.BatchResult);
+        assertEquals(400, result.getSent());
+
+        admin.awaitAssert(Duration.ofSeconds(10), () -> {
+            assertEquals(400, stat(admin, standbyFromPrimary, "history.hot.messages"));
+            return null;
+        });
+    }
+
+    @Test
+    public void scheduledSendsSurviveTakeover() throws IOException {
+        ActorSystem primarySystem = start("ChatServer", "");
+        ActorRef primary = primarySystem.actorOf(ServerActor.props(), "serverActor");
+        ActorSystem clientSystem = start("ChatClient", "");
+        TestKit alice = new TestKit(clientSystem);
+        TestKit bob = new TestKit(clientSystem);
+        TestKit admin = new TestKit(clientSystem);
+        ActorRef primaryFromClient = resolve(clientSystem, primarySystem, primary);
+        primaryFromClient.tell(new ServerActor.RegisterClient("alice", null), alice.getRef());
+        alice.expectMsgClass(ServerActor.RegistrationSuccess.class);
+        primaryFromClient.tell(new ServerActor.RegisterClient("bob", null), bob.getRef());
+        bob.expectMsgClass(ServerActor.RegistrationSuccess.class);
+
+        // Scheduled before the standby exists, so it arrives with the snapshot
+        primaryFromClient.tell(new ServerActor.ScheduleMessage(new ServerActor.SendMessage("alice", "bob", "later",
+                Message.MessageType.DIRECT, null), 8000), alice.getRef());
+        alice.fishForMessage(Duration.ofSeconds(5), "the confirmation", msg -> msg instanceof ServerActor.SystemMessage);
+
+        ActorSystem standbySystem = start("ChatServer",
+                "chat.server.replication.role = standby\n" +
+                "chat.server.replication.primary = \"" + primary.path().toStringWithAddress(addressOf(primarySystem)) + "\"\n");
+        ActorRef standby = standbySystem.actorOf(ServerActor.props(), "serverActor");
+        ActorRef standbyFromClient = resolve(clientSystem, standbySystem, standby);
+        admin.awaitAssert(Duration.ofSeconds(10), () -> {
+            assertEquals(1, stat(admin, standbyFromClient, "timers.scheduled-sends"));
+            return null;
+        });
+
+        TestKit.shutdownActorSystem(primarySystem);
+        systems.remove(primarySystem);
+
+        Message delivered = (Message) bob.fishForMessage(Duration.ofSeconds(20), "the scheduled message",
+                msg -> msg instanceof Message && ((Message) msg).getType() == Message.MessageType.DIRECT);
+        assertEquals("later", delivered.getContent());
+        assertEquals(0, stat(admin, standbyFromClient, "timers.scheduled-sends"));
+    }
+
+    @Test
+    public void standbyMirrorsThePrimaryAndTakesOver() throws IOException {
+        ActorSystem primarySystem = start("ChatServer", "");
+        ActorRef primary = primarySystem.actorOf(ServerActor.props(), "serverActor");
+        ActorSystem clientSystem = start("ChatClient", "");
+        TestKit alice = new TestKit(clientSystem);
+        TestKit bob = new TestKit(clientSystem);
+        TestKit admin = new TestKit(clientSystem);
+        ActorRef primaryFromClient = clientSystem.actorSelection(primary.path().toStringWithAddress(addressOf(primarySystem)))
+                .resolveOne(Duration.ofSeconds(5)).toCompletableFuture().join();
+
+        primaryFromClient.tell(new ServerActor.RegisterClient("alice", null), alice.getRef());
+        alice.expectMsgClass(ServerActor.RegistrationSuccess.class);
+        primaryFromClient.tell(new ServerActor.RegisterClient("bob", null), bob.getRef());
+        bob.expectMsgClass(ServerActor.RegistrationSuccess.class);
+
+        // Sent before the standby exists, so it arrives with the snapshot
+        primaryFromClient.tell(new ServerActor.SendMessage("alice", "bob", "before", Message.MessageType.DIRECT, null),
+                alice.getRef());
+        long beforeId = expectMessage(bob).getId();
+
+        String primaryPath = primary.path().toStringWithAddress(addressOf(primarySystem));
+        ActorSystem standbySystem = start("ChatServer",
+                "chat.server.replication.role = standby\n" +
+                "chat.server.replication.primary = \"" + primaryPath + "\"\n");
+        ActorRef standby = standbySystem.actorOf(ServerActor.props(), "serverActor");
+        ActorRef standbyFromClient = clientSystem.actorSelection(standby.path().toStringWithAddress(addressOf(standbySystem)))
+                .resolveOne(Duration.ofSeconds(5)).toCompletableFuture().join();
+        admin.awaitAssert(Duration.ofSeconds(10), () -> {
+            assertEquals(1, stat(admin, standbyFromClient, "history.hot.messages"));
+            return null;
+        });
+
+        // Sent after the snapshot, so it is streamed
+        primaryFromClient.tell(new ServerActor.SendMessage("alice", "bob", "after", Message.MessageType.DIRECT, null),
+                alice.getRef());
+        long afterId = expectMessage(bob).getId();
+        assertTrue(afterId > beforeId);
+        admin.awaitAssert(Duration.ofSeconds(10), () -> {
+            assertEquals(2, stat(admin, standbyFromClient, "history.hot.messages"));
+            return null;
+        });
+
+        // While the primary is up the standby turns clients away
+        standbyFromClient.tell(new ServerActor.SendMessage("alice", "bob", "too early", Message.MessageType.DIRECT, null),
+                alice.getRef());
+        alice.fishForMessage(Duration.ofSeconds(5), "NotActive", msg -> msg instanceof Replication.NotActive);
+
+        TestKit.shutdownActorSystem(primarySystem);
+        systems.remove(primarySystem);
+
+        admin.awaitAssert(Duration.ofSeconds(20), () -> {
+            standbyFromClient.tell(new ServerActor.FindClients("admin"), admin.getRef());
+            admin.expectMsgClass(ServerActor.ClientList.class);
+            return null;
+        });
+
+        // The standby kept the sessions, so clients only switch servers
+        standbyFromClient.tell(new ServerActor.SendMessage("alice", "bob", "after takeover",
+                Message.MessageType.DIRECT, null), alice.getRef());
+        Message delivered = expectMessage(bob);
+        assertEquals("after takeover", delivered.getContent());
+        // Ids continue where the primary left off
+        assertEquals(afterId + 1, delivered.getId());
+
+        standbyFromClient.tell(new ServerActor.GetChatHistory("alice", "bob"), alice.getRef());
+        ServerActor.ChatHistory history = (ServerActor.ChatHistory) alice.fishForMessage(Duration.ofSeconds(5),
+                "the history", msg -> msg instanceof ServerActor.ChatHistory);
+        List<String> contents = new ArrayList<>();
+        for (Message message : history.getMessages()) {
+            contents.add(message.getContent());
+        }
+        assertEquals("before", contents.get(0));
+        assertEquals("after", contents.get(1));
+        assertEquals("after takeover", contents.get(contents.size() - 1));
+    }
+}
@@ -0,0 +1,113 @@
+// ServerMailboxTest.java
+package org.example;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.dispatch.Envelope;
+import akka.testkit.javadsl.TestKit;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ServerMailboxTest {
+    private static ActorSystem system;
+
+    @BeforeClass
+    public static void setUp() {
+        system = ActorSystem.create("ServerMailboxTest");
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        TestKit.shutdownActorSystem(system);
+    }
+
+    private static ServerActor.SendMessage chat(String sender, String group) {
+        return new ServerActor.SendMessage(sender, null, "hi", Message.MessageType.GROUP, group);
+    }
+
+    private ServerMailbox.PriorityMessageQueue queue(int maxSkips) {
+        return new ServerMailbox.PriorityMessageQueue(maxSkips, 1024);
+    }
+
+    private void enqueue(ServerMailbox.PriorityMessageQueue queue, Object message, ActorRef sender) {
+        queue.enqueue(ActorRef.noSender(), Envelope.apply(message, sender, system));
+    }
+
+    private List<Object> drain(ServerMailbox.PriorityMessageQueue queue) {
+        List<Object> messages = new ArrayList<>();
+        Envelope envelope;
+        while ((envelope = queue.dequeue()) != null) {
+            messages.add(envelope.message());
+        }
+        return messages;
+    }
+
+    @Test
+    public void controlOvertakesChatOfOtherSenders() {
+        ActorRef alice = new TestKit(system).getRef();
+        ActorRef bob = new TestKit(system).getRef();
+        ServerMailbox.PriorityMessageQueue queue = queue(16);
+        Object send = chat("alice", "g");
+        Object join = new ServerActor.JoinGroup("g", "bob");
+        enqueue(queue, send, alice);
+        enqueue(queue, join, bob);
+
+        List<Object> order = drain(queue);
+        assertSame(join, order.get(0));
+        assertSame(send, order.get(1));
+    }
+
+    @Test
+    public void keepsTheOrderOfOneSender() {
+        ActorRef alice = new TestKit(system).getRef();
+        ServerMailbox.PriorityMessageQueue queue = queue(16);
+        Object send = chat("alice", "g");
+        Object history = new ServerActor.GetChatHistory("g");
+        Object leave = new ServerActor.LeaveGroup("g", "alice");
+        enqueue(queue, send, alice);
+        enqueue(queue, history, alice);
+        enqueue(queue, leave, alice);
+
+        List<Object> order = drain(queue);
+        assertSame(send, order.get(0));
+        assertSame(history, order.get(1));
+        assertSame(leave, order.get(2));
+        assertEquals(0, queue.numberOfMessages());
+    }
+
+    @Test
+    public void starvationProtectionKeepsTheOrderOfOneSender() {
+        ActorRef alice = new TestKit(system).getRef();
+        ActorRef bob = new TestKit(system).getRef();
+        ServerMailbox.PriorityMessageQueue queue = queue(1);
+        Object join = new ServerActor.JoinGroup("g", "alice");
+        Object send = chat("alice", "g");
+        Object other = new ServerActor.JoinGroup("h", "bob");
+        enqueue(queue, join, alice);
+        enqueue(queue, send, alice);
+        enqueue(queue, other, bob);
+
+        List<Object> order = drain(queue);
+        assertTrue(order.indexOf(join) < order.indexOf(send));
+        assertEquals(3, order.size());
+    }
+
+    @Test
+    public void typingDoesNotHoldBackLaterCommands() {
+        ActorRef alice = new TestKit(system).getRef();
+        ServerMailbox.PriorityMessageQueue queue = queue(16);
+        Object typing = new TypingEvent("alice", null, "g", true);
+        Object leave = new ServerActor.LeaveGroup("g", "alice");
+        enqueue(queue, typing, alice);
+        enqueue(queue, leave, alice);
+
+        assertEquals(1, queue.depth(ServerMailbox.Priority.CONTROL));
+        assertSame(leave, drain(queue).get(0));
+    }
+}
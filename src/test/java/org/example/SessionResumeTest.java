@@ -0,0 +1,121 @@
+// SessionResumeTest.java
+package org.example;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SessionResumeTest {
+    private ActorSystem system;
+    private ActorRef server;
+
+    @Before
+    public void setUp() throws IOException {
+        String coldDir = Files.createTempDirectory("resume-test-cold").toAbsolutePath().toString().replace("\\", "/");
+        // A long delivery window keeps messages in the delivery buffer until the client resumes
+        Config config = ConfigFactory.parseString(
+                "akka.actor.provider = local\n" +
+                "akka.loglevel = WARNING\n" +
+                "chat.server.delivery.window = 1m\n" +
+                "chat.server.history.cold-dir = \"" + coldDir + "\"\n")
+                .withFallback(ConfigFactory.load());
+        system = ActorSystem.create("SessionResumeTest", config);
+        server = system.actorOf(ServerActor.props(), "serverActor");
+    }
+
+    @After
+    public void tearDown() {
+        TestKit.shutdownActorSystem(system);
+    }
+
+    private static List<Message> chatMessages(Object msg) {
+        List<Message> messages = new ArrayList<>();
+        if (msg instanceof Message) {
+            messages.add((Message) msg);
+        } else if (msg instanceof MessageBundle) {
+            messages.addAll(((MessageBundle) msg).getMessages());
+        }
+        messages.removeIf(message -> message.getType() != Message.MessageType.DIRECT);
+        return messages;
+    }
+
+    /**
+     * Waits until alice's sends are stored. RegisterClient is served before chat
+     * messages of other senders, but her own query is not served before them.
+     */
+    private void awaitStored(TestKit alice) {
+        server.tell(new ServerActor.GetChatHistory("alice", "bob"), alice.getRef());
+        alice.fishForMessage(Duration.ofSeconds(5), "the history", msg -> msg instanceof ServerActor.ChatHistory);
+    }
+
+    @Test
+    public void resumedSessionGetsMessagesStillBuffered() {
+        TestKit alice = new TestKit(system);
+        TestKit bob = new TestKit(system);
+        server.tell(new ServerActor.RegisterClient("alice"), alice.getRef());
+        alice.expectMsgClass(ServerActor.RegistrationSuccess.class);
+        server.tell(new ServerActor.RegisterClient("bob"), bob.getRef());
+        String token = bob.expectMsgClass(ServerActor.RegistrationSuccess.class).getResumeToken();
+
+        server.tell(new ServerActor.SendMessage("alice", "bob", "buffered", Message.MessageType.DIRECT, null),
+                alice.getRef());
+        awaitStored(alice);
+
+        // The client saw a later message that bypassed the buffer, so the replay alone would skip this one
+        TestKit resumed = new TestKit(system);
+        server.tell(new ServerActor.RegisterClient("bob", null, token, Long.MAX_VALUE - 1,
+                LocalDateTime.now().minusMinutes(1)), resumed.getRef());
+        assertTrue(resumed.expectMsgClass(ServerActor.RegistrationSuccess.class).isResumed());
+
+        List<Message> delivered = new ArrayList<>();
+        resumed.fishForMessage(Duration.ofSeconds(5), "the buffered message", msg -> {
+            delivered.addAll(chatMessages(msg));
+            return !delivered.isEmpty();
+        });
+        assertEquals(1, delivered.size());
+        assertEquals("buffered", delivered.get(0).getContent());
+    }
+
+    @Test
+    public void bufferedAndReplayedMessagesAreDeliveredOnce() {
+        TestKit alice = new TestKit(system);
+        TestKit bob = new TestKit(system);
+        server.tell(new ServerActor.RegisterClient("alice"), alice.getRef());
+        alice.expectMsgClass(ServerActor.RegistrationSuccess.class);
+        server.tell(new ServerActor.RegisterClient("bob"), bob.getRef());
+        String token = bob.expectMsgClass(ServerActor.RegistrationSuccess.class).getResumeToken();
+
+        server.tell(new ServerActor.SendMessage("alice", "bob", "one", Message.MessageType.DIRECT, null), alice.getRef());
+        server.tell(new ServerActor.SendMessage("alice", "bob", "two", Message.MessageType.DIRECT, null), alice.getRef());
+        awaitStored(alice);
+
+        TestKit resumed = new TestKit(system);
+        server.tell(new ServerActor.RegisterClient("bob", null, token, 0, LocalDateTime.now().minusMinutes(1)),
+                resumed.getRef());
+        resumed.expectMsgClass(ServerActor.RegistrationSuccess.class);
+
+        List<Message> delivered = new ArrayList<>();
+        resumed.fishForMessage(Duration.ofSeconds(5), "both messages", msg -> {
+            delivered.addAll(chatMessages(msg));
+            return delivered.size() >= 2;
+        });
+        resumed.expectNoMessage(Duration.ofMillis(300));
+        assertEquals(2, delivered.size());
+        assertEquals("one", delivered.get(0).getContent());
+        assertEquals("two", delivered.get(1).getContent());
+    }
+}
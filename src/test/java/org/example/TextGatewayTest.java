@@ -0,0 +1,189 @@
+// TextGatewayTest.java
+package org.example;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Talks to a gateway over loopback like a text client would.
+ */
+public class TextGatewayTest {
+    private ActorSystem system;
+    private TextGateway gateway;
+    private int port;
+
+    @Before
+    public void setUp() throws IOException {
+        File coldDir = Files.createTempDirectory("gateway-test-cold").toFile();
+        Config config = ConfigFactory.parseString(
+                "akka.actor.provider = local\n" +
+                "akka.loglevel = WARNING\n" +
+                "chat.server.delivery.window = 0\n" +
+                "chat.server.history.cold-dir = \"" + coldDir.getAbsolutePath().replace("\\", "/") + "\"\n")
+                .withFallback(ConfigFactory.load());
+        system = ActorSystem.create("GatewayTest", config);
+        ActorRef serverActor = system.actorOf(ServerActor.props(), "serverActor");
+        ActorRef relay = system.actorOf(FanoutRelay.props(), "relay");
+        gateway = new TextGateway(system, serverActor, relay, 256, 1024);
+        port = gateway.start("127.0.0.1", 0);
+    }
+
+    @After
+    public void tearDown() {
+        gateway.stop();
+        TestKit.shutdownActorSystem(system);
+    }
+
+    @Test
+    public void deliversDirectMessagesBetweenConnections() throws IOException {
+        try (LineClient alice = new LineClient(port); LineClient bob = new LineClient(port)) {
+            alice.login("alice");
+            bob.login("bob");
+
+            alice.send("MSG bob hello over loopback");
+            String line = bob.expect("MSG ");
+            assertTrue(line, line.endsWith(" alice hello over loopback"));
+        }
+    }
+
+    @Test
+    public void closesOnlyTheFailingConnection() throws IOException {
+        try (LineClient alice = new LineClient(port); LineClient bob = new LineClient(port)) {
+            alice.login("alice");
+            bob.login("bob");
+
+            try (LineClient rogue = new LineClient(port)) {
+                rogue.expect("HELLO");
+                char[] tooLong = new char[1024];
+                java.util.Arrays.fill(tooLong, 'x');
+                rogue.send(new String(tooLong));
+                assertNull(rogue.readLine());
+            }
+
+            alice.send("MSG bob still there");
+            String line = bob.expect("MSG ");
+            assertTrue(line, line.endsWith(" alice still there"));
+        }
+    }
+
+    @Test
+    public void acceptsNewConnectionsAfterOthersClose() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            try (LineClient client = new LineClient(port)) {
+                client.login("user" + i);
+            }
+        }
+        try (LineClient alice = new LineClient(port); LineClient bob = new LineClient(port)) {
+            alice.login("alice");
+            bob.login("bob");
+            bob.send("USERS");
+            assertTrue(bob.expect("USERS ").contains("alice"));
+        }
+    }
+
+    @Test
+    public void refusesBatchesOverTheLimit() throws IOException {
+        try (LineClient alice = new LineClient(port); LineClient bob = new LineClient(port)) {
+            alice.login("alice");
+            bob.login("bob");
+
+            alice.send("BATCH 2000000000");
+            assertTrue(alice.expect("ERR").contains("at most"));
+
+            alice.send("BATCH 2");
+            alice.send("bob first");
+            alice.send("bob second");
+            assertTrue(alice.expect("OK BATCH").startsWith("OK BATCH 2 2"));
+            assertTrue(bob.expect("MSG ").endsWith(" alice first"));
+            assertTrue(bob.expect("MSG ").endsWith(" alice second"));
+        }
+    }
+
+    @Test
+    public void sendsLongRangesPageByPage() throws IOException {
+        try (LineClient alice = new LineClient(port); LineClient bob = new LineClient(port)) {
+            alice.login("alice");
+            bob.login("bob");
+
+            // More than one history page of the query replicas
+            alice.send("BATCH 120");
+            for (int i = 0; i < 120; i++) {
+                alice.send("bob line " + i);
+            }
+            alice.expect("OK BATCH 120 120");
+
+            alice.send("RANGE bob 1h");
+            for (int i = 0; i < 120; i++) {
+                assertTrue(alice.expect("MSG ").endsWith(" line " + i));
+            }
+            assertEquals("OK HISTORY 120", alice.expect("OK HISTORY"));
+        }
+    }
+
+    private static class LineClient implements Closeable {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final Writer out;
+
+        LineClient(int port) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            socket.setSoTimeout(5000);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+        }
+
+        void login(String name) throws IOException {
+            expect("HELLO");
+            send("LOGIN " + name);
+            expect("OK LOGIN " + name);
+        }
+
+        void send(String line) throws IOException {
+            out.write(line + "\n");
+            out.flush();
+        }
+
+        String readLine() throws IOException {
+            try {
+                return in.readLine();
+            } catch (SocketTimeoutException e) {
+                throw new AssertionError("No line from the gateway within the timeout", e);
+            } catch (IOException e) {
+                // A reset counts as closed as well
+                return null;
+            }
+        }
+
+        /**
+         * Skips lines until one starts with prefix.
+         */
+        String expect(String prefix) throws IOException {
+            String line;
+            while ((line = readLine()) != null) {
+                if (line.startsWith(prefix)) {
+                    return line;
+                }
+            }
+            throw new AssertionError("Connection closed while waiting for " + prefix);
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+// TypingTest.java
+package org.example;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class TypingTest {
+    private ActorSystem system;
+    private ActorRef server;
+
+    @Before
+    public void setUp() throws IOException {
+        String coldDir = Files.createTempDirectory("typing-test-cold").toAbsolutePath().toString().replace("\\", "/");
+        Config config = ConfigFactory.parseString(
+                "akka.actor.provider = local\n" +
+                "akka.loglevel = WARNING\n" +
+                "chat.server.delivery.window = 0\n" +
+                "chat.server.typing.tick = 100ms\n" +
+                "chat.server.history.cold-dir = \"" + coldDir + "\"\n")
+                .withFallback(ConfigFactory.load());
+        system = ActorSystem.create("TypingTest", config);
+        server = system.actorOf(ServerActor.props(), "serverActor");
+    }
+
+    @After
+    public void tearDown() {
+        TestKit.shutdownActorSystem(system);
+    }
+
+    @Test
+    public void batchSendEndsTyping() {
+        TestKit alice = new TestKit(system);
+        TestKit bob = new TestKit(system);
+        server.tell(new ServerActor.RegisterClient("alice"), alice.getRef());
+        alice.expectMsgClass(ServerActor.RegistrationSuccess.class);
+        server.tell(new ServerActor.RegisterClient("bob"), bob.getRef());
+        bob.expectMsgClass(ServerActor.RegistrationSuccess.class);
+
+        // Typed before sending, whichever of the two the server handles first
+        server.tell(new TypingEvent("alice", "bob", null, true), alice.getRef());
+        server.tell(new ServerActor.SendMessageBatch("alice", Collections.singletonList(
+                new ServerActor.SendMessage("alice", "bob", "hi", Message.MessageType.DIRECT, null))), alice.getRef());
+        alice.fishForMessage(Duration.ofSeconds(5), "the batch result", msg -> msg instanceof ServerActor.BatchResult);
+
+        long deadline = System.currentTimeMillis() + 1000;
+        Object msg;
+        while ((msg = bob.receiveOne(Duration.ofMillis(Math.max(1, deadline - System.currentTimeMillis())))) != null) {
+            assertFalse("typing after the message was sent", msg instanceof TypingEvent);
+        }
+    }
+}